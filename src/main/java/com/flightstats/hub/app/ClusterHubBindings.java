@@ -10,6 +10,7 @@ import com.flightstats.hub.model.ChannelConfig;
 import com.flightstats.hub.spoke.FileSpokeStore;
 import com.flightstats.hub.spoke.RemoteSpokeStore;
 import com.flightstats.hub.spoke.SpokeReadContentDao;
+import com.flightstats.hub.spoke.SpokeRepair;
 import com.flightstats.hub.spoke.SpokeWriteContentDao;
 import com.flightstats.hub.spoke.SpokeStore;
 import com.flightstats.hub.spoke.SpokeTtlEnforcer;
@@ -61,6 +62,7 @@ class ClusterHubBindings extends AbstractModule {
 
         bind(DocumentationDao.class).to(S3DocumentationDao.class).asEagerSingleton();
         bind(SpokeDecommissionManager.class).asEagerSingleton();
+        bind(SpokeRepair.class).asEagerSingleton();
         bind(HubS3Client.class).asEagerSingleton();
     }
 
@@ -17,6 +17,10 @@ import com.flightstats.hub.replication.ReplicationManager;
 import com.flightstats.hub.rest.*;
 import com.flightstats.hub.spoke.FileSpokeStore;
 import com.flightstats.hub.spoke.GCRunner;
+import com.flightstats.hub.spoke.HotSpokeStore;
+import com.flightstats.hub.spoke.LocalSpokeStore;
+import com.flightstats.hub.spoke.SegmentSpokeStore;
+import com.flightstats.hub.spoke.SpokeDurability;
 import com.flightstats.hub.spoke.SpokeClusterRegister;
 import com.flightstats.hub.spoke.SpokeFinalCheck;
 import com.flightstats.hub.spoke.SpokeReadContentDao;
@@ -25,6 +29,7 @@ import com.flightstats.hub.spoke.SpokeWriteContentDao;
 import com.flightstats.hub.time.NtpMonitor;
 import com.flightstats.hub.time.TimeService;
 import com.flightstats.hub.util.HubUtils;
+import com.flightstats.hub.util.WriteActivity;
 import com.flightstats.hub.webhook.WebhookManager;
 import com.flightstats.hub.webhook.WebhookValidator;
 import com.google.inject.AbstractModule;
@@ -184,17 +189,35 @@ public class HubBindings extends AbstractModule {
                 .annotatedWith(Names.named(ContentDao.READ_CACHE))
                 .to(SpokeReadContentDao.class).asEagerSingleton();
 
-        bind(FileSpokeStore.class)
+        WriteActivity writeActivity = new WriteActivity();
+        bind(WriteActivity.class).toInstance(writeActivity);
+
+        bind(LocalSpokeStore.class)
                 .annotatedWith(Names.named(SpokeStore.WRITE.name()))
-                .toInstance(new FileSpokeStore(
-                        HubProperties.getSpokePath(SpokeStore.WRITE),
-                        HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE)));
+                .toInstance(buildLocalSpokeStore(SpokeStore.WRITE, writeActivity));
 
-        bind(FileSpokeStore.class)
+        bind(LocalSpokeStore.class)
                 .annotatedWith(Names.named(SpokeStore.READ.name()))
-                .toInstance(new FileSpokeStore(
-                        HubProperties.getSpokePath(SpokeStore.READ),
-                        HubProperties.getSpokeTtlMinutes(SpokeStore.READ)));
+                .toInstance(buildLocalSpokeStore(SpokeStore.READ, writeActivity));
+    }
+
+    private static LocalSpokeStore buildLocalSpokeStore(SpokeStore spokeStore, WriteActivity writeActivity) {
+        String path = HubProperties.getSpokePath(spokeStore);
+        int ttlMinutes = HubProperties.getSpokeTtlMinutes(spokeStore);
+        String layout = HubProperties.getSpokeLayout(spokeStore);
+        logger.info("using {} layout for spoke {}", layout, spokeStore);
+        SpokeDurability.Mode mode = SpokeDurability.Mode.valueOf(HubProperties.getSpokeDurability(spokeStore).toUpperCase());
+        SpokeDurability durability = new SpokeDurability(mode, HubProperties.getProperty("spoke.durability.periodMillis", 1000));
+        LocalSpokeStore store;
+        if (layout.equalsIgnoreCase("segment")) {
+            store = new SegmentSpokeStore(path, ttlMinutes, durability, writeActivity);
+        } else {
+            store = new FileSpokeStore(path, ttlMinutes, durability, writeActivity);
+        }
+        if (spokeStore == SpokeStore.WRITE && HubProperties.getProperty("spoke.hot", false)) {
+            return HotSpokeStore.create(store);
+        }
+        return store;
     }
 
 }
@@ -54,6 +54,24 @@ public class HubProperties {
         return getProperty(property, getProperty(fallbackProperty, defaultPath));
     }
 
+    /**
+     * @return "file" for one file per item, or "segment" for per minute segment files
+     */
+    public static String getSpokeLayout(SpokeStore spokeStore) {
+        String property = "spoke." + spokeStore + ".layout";
+        String fallbackProperty = "spoke.layout";
+        return getProperty(property, getProperty(fallbackProperty, "file"));
+    }
+
+    /**
+     * @return "none", "periodic" for a group fsync every spoke.durability.periodMillis, or "item" to fsync each write
+     */
+    public static String getSpokeDurability(SpokeStore spokeStore) {
+        String property = "spoke." + spokeStore + ".durability";
+        String fallbackProperty = "spoke.durability";
+        return getProperty(property, getProperty(fallbackProperty, "none"));
+    }
+
     public static long getLargePayload() {
         return HubProperties.getProperty("app.large.payload.MB", 40) * 1024 * 1024;
     }
@@ -99,6 +117,10 @@ public class HubProperties {
         return Integer.parseInt(properties.getProperty(name, Integer.toString(defaultValue)));
     }
 
+    public static long getProperty(String name, long defaultValue) {
+        return Long.parseLong(properties.getProperty(name, Long.toString(defaultValue)));
+    }
+
     public static double getProperty(String key, double defaultValue) {
         return Double.parseDouble(properties.getProperty(key, Double.toString(defaultValue)));
     }
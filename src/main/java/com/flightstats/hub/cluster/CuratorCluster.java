@@ -25,12 +25,16 @@ public class CuratorCluster implements Cluster {
     private final static Logger logger = LoggerFactory.getLogger(CuratorCluster.class);
 
     private final static int WRITE_FACTOR = HubProperties.getProperty("spoke.write.factor", 3);
+    private final static boolean LOAD_AWARE = HubProperties.getProperty("spoke.write.loadAware", true);
     private final CuratorFramework curator;
     private final String clusterPath;
     private final boolean useName;
     private boolean checkReadOnly;
     private DecommissionCluster decommissionCluster;
     private final PathChildrenCache clusterCache;
+    private final ServerLoads writeLoads = new ServerLoads(
+            HubProperties.getProperty("spoke.write.loadAware.weight", 0.2),
+            HubProperties.getProperty("spoke.write.loadAware.maxAgeMillis", 10_000));
     private String fullPath;
 
     @Inject
@@ -84,16 +88,37 @@ public class CuratorCluster implements Cluster {
         return fullPath;
     }
 
+    /**
+     * Writes go to spoke.write.factor servers.  With spoke.write.loadAware, each is the less loaded of two random
+     * servers, so servers with slow or queued writes receive fewer of them.  Reads ask every server, so placement
+     * does not affect finding the data.
+     */
     public List<String> getWriteServers() {
-        List<String> servers = decommissionCluster.filter(getAllServers());
+        List<String> servers = getActiveServers();
         if (servers.size() <= WRITE_FACTOR) {
             return servers;
+        } else if (LOAD_AWARE) {
+            return writeLoads.choose(servers, WRITE_FACTOR);
         } else {
             Collections.shuffle(servers);
             return servers.subList(0, WRITE_FACTOR);
         }
     }
 
+    /**
+     * @return all servers except those being decommissioned
+     */
+    public List<String> getActiveServers() {
+        return decommissionCluster.filter(getAllServers());
+    }
+
+    /**
+     * Callers writing to the servers from {@link #getWriteServers()} report each write here.
+     */
+    public ServerLoads getWriteLoads() {
+        return writeLoads;
+    }
+
     @Override
     public Set<String> getAllServers() {
         Set<String> servers = new HashSet<>();
@@ -0,0 +1,90 @@
+package com.flightstats.hub.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks the requests in flight and a moving average of recent response times for each server,
+ * so writes can be placed on the less loaded servers with the power of two choices.
+ * Latencies older than maxAgeMillis are forgotten, so an avoided server is tried again once it may have recovered.
+ */
+public class ServerLoads {
+
+    private final Map<String, Load> servers = new ConcurrentHashMap<>();
+    private final double weight;
+    private final long maxAgeMillis;
+
+    public ServerLoads(double weight, long maxAgeMillis) {
+        this.weight = weight;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public void started(String server) {
+        getLoad(server).started();
+    }
+
+    public void completed(String server, long millis) {
+        getLoad(server).completed(millis, weight);
+    }
+
+    /**
+     * @return count servers, each the less loaded of two randomly chosen remaining servers
+     */
+    List<String> choose(Collection<String> candidates, int count) {
+        List<String> remaining = new ArrayList<>(candidates);
+        List<String> chosen = new ArrayList<>(Math.min(count, remaining.size()));
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (chosen.size() < count && !remaining.isEmpty()) {
+            int index = random.nextInt(remaining.size());
+            if (remaining.size() > 1) {
+                int other = random.nextInt(remaining.size() - 1);
+                if (other >= index) {
+                    other++;
+                }
+                if (score(remaining.get(other), now) < score(remaining.get(index), now)) {
+                    index = other;
+                }
+            }
+            chosen.add(remaining.remove(index));
+        }
+        return chosen;
+    }
+
+    double score(String server, long now) {
+        Load load = servers.get(server);
+        if (load == null) {
+            return 1;
+        }
+        return load.score(now, maxAgeMillis);
+    }
+
+    private Load getLoad(String server) {
+        return servers.computeIfAbsent(server, s -> new Load());
+    }
+
+    private static class Load {
+        private int inFlight;
+        private double averageMillis;
+        private long updated;
+
+        synchronized void started() {
+            inFlight++;
+        }
+
+        synchronized void completed(long millis, double weight) {
+            inFlight = Math.max(0, inFlight - 1);
+            averageMillis = updated == 0 ? millis : weight * millis + (1 - weight) * averageMillis;
+            updated = System.currentTimeMillis();
+        }
+
+        synchronized double score(long now, long maxAgeMillis) {
+            double millis = now - updated > maxAgeMillis ? 1 : Math.max(1, averageMillis);
+            return (inFlight + 1) * millis;
+        }
+    }
+}
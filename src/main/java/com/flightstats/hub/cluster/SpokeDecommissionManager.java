@@ -3,6 +3,7 @@ package com.flightstats.hub.cluster;
 import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.app.ShutdownManager;
 import com.flightstats.hub.health.HubHealthCheck;
+import com.flightstats.hub.spoke.SpokeHandoff;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -11,7 +12,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * SpokeDecommissionManager is responsible for:
@@ -20,6 +23,7 @@ import java.util.concurrent.TimeUnit;
  * getting cached list of decomm'd servers
  * preventing a node from starting if it is decomm'd and old
  * allowing a node to start as decomm'd and young
+ * optionally handing off a decomm'd node's items, so it can stop before they age out
  */
 @Singleton
 public class SpokeDecommissionManager implements DecommissionManager {
@@ -31,18 +35,23 @@ public class SpokeDecommissionManager implements DecommissionManager {
     private HubHealthCheck hubHealthCheck;
     private SpokeDecommissionCluster decommissionCluster;
     private ShutdownManager shutdownManager;
+    private SpokeHandoff spokeHandoff;
+    private final AtomicBoolean doNotRestartStarted = new AtomicBoolean();
+    private final ScheduledExecutorService handoffExecutor = Executors.newSingleThreadScheduledExecutor();
 
     @Inject
     public SpokeDecommissionManager(SpokeDecommissionCluster decommissionCluster,
                                     @Named("SpokeCuratorCluster") CuratorCluster spokeCuratorCluster,
                                     @Named("HubCuratorCluster") CuratorCluster hubCuratorCluster,
                                     ShutdownManager shutdownManager,
-                                    HubHealthCheck hubHealthCheck) throws Exception {
+                                    HubHealthCheck hubHealthCheck,
+                                    SpokeHandoff spokeHandoff) throws Exception {
         this.decommissionCluster = decommissionCluster;
         this.spokeCuratorCluster = spokeCuratorCluster;
         this.hubCuratorCluster = hubCuratorCluster;
         this.shutdownManager = shutdownManager;
         this.hubHealthCheck = hubHealthCheck;
+        this.spokeHandoff = spokeHandoff;
         HubServices.register(new SpokeDecommissionManagerService(), HubServices.TYPE.BEFORE_HEALTH_CHECK);
     }
 
@@ -99,6 +108,9 @@ public class SpokeDecommissionManager implements DecommissionManager {
                 logger.info("scheduling doNotRestart in {} minutes", doNotRestartMinutes);
                 Executors.newSingleThreadScheduledExecutor().schedule(this::doNotRestart,
                         doNotRestartMinutes, TimeUnit.MINUTES);
+                if (spokeHandoff.isEnabled()) {
+                    scheduleHandoff();
+                }
             } else {
                 doNotRestart();
             }
@@ -107,7 +119,36 @@ public class SpokeDecommissionManager implements DecommissionManager {
         }
     }
 
+    private void scheduleHandoff() {
+        logger.info("scheduling handoff in {} seconds", spokeHandoff.getDelaySeconds());
+        handoffExecutor.schedule(this::handoff, spokeHandoff.getDelaySeconds(), TimeUnit.SECONDS);
+    }
+
+    private void handoff() {
+        try {
+            if (doNotRestartStarted.get()) {
+                return;
+            }
+            if (!spokeHandoff.isReady()) {
+                logger.info("handoff is waiting for usage to load");
+                scheduleHandoff();
+                return;
+            }
+            if (spokeHandoff.handoff()) {
+                logger.info("handoff complete");
+                doNotRestart();
+            } else {
+                logger.warn("handoff failed, waiting for the spoke ttl");
+            }
+        } catch (Exception e) {
+            logger.warn("handoff failed, waiting for the spoke ttl", e);
+        }
+    }
+
     private void doNotRestart() {
+        if (!doNotRestartStarted.compareAndSet(false, true)) {
+            return;
+        }
         try {
             logger.info("doNotRestart starting ...");
             decommissionCluster.doNotRestart();
@@ -12,6 +12,7 @@ import com.flightstats.hub.metrics.MetricsService.Insert;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
 import com.flightstats.hub.replication.ReplicationManager;
+import com.flightstats.hub.spoke.SpokeQuotas;
 import com.flightstats.hub.time.TimeService;
 import com.flightstats.hub.util.TimeUtil;
 import com.flightstats.hub.webhook.TagWebhook;
@@ -54,6 +55,8 @@ public class ChannelService {
     private TimeService timeService;
     @Inject
     private MetricsService metricsService;
+    @Inject
+    private SpokeQuotas spokeQuotas;
 
     public boolean channelExists(String channelName) {
         return channelConfigDao.exists(channelName);
@@ -103,6 +106,7 @@ public class ChannelService {
         if (content.isNew() && isReplicating(channelName)) {
             throw new ForbiddenRequestException(channelName + " cannot modified while replicating");
         }
+        spokeQuotas.check(channelName);
         long start = System.currentTimeMillis();
         ContentKey contentKey = insertInternal(channelName, content);
         metricsService.insert(channelName, start, Insert.single, 1, content.getSize());
@@ -170,6 +174,7 @@ public class ChannelService {
         if (bulkContent.isNew() && isReplicating(channel)) {
             throw new ForbiddenRequestException(channel + " cannot modified while replicating");
         }
+        spokeQuotas.check(channel);
         long start = System.currentTimeMillis();
         Collection<ContentKey> contentKeys = inFlightService.inFlight(() -> {
             MultiPartParser multiPartParser = new MultiPartParser(bulkContent);
@@ -6,6 +6,7 @@ import com.google.common.base.Optional;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.function.Consumer;
@@ -26,6 +27,20 @@ public interface ContentDao {
 
     Content get(String channelName, ContentKey key);
 
+    /**
+     * @return the items which were found, keyed by ContentKey
+     */
+    default Map<ContentKey, Content> getAll(String channelName, Collection<ContentKey> keys) {
+        Map<ContentKey, Content> found = new HashMap<>();
+        for (ContentKey key : keys) {
+            Content content = get(channelName, key);
+            if (content != null) {
+                found.put(key, content);
+            }
+        }
+        return found;
+    }
+
     SortedSet<ContentKey> queryByTime(TimeQuery timQuery);
 
     SortedSet<ContentKey> query(DirectionQuery query);
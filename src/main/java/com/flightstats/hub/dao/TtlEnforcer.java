@@ -1,7 +1,7 @@
 package com.flightstats.hub.dao;
 
 import com.flightstats.hub.model.ChannelConfig;
-import com.flightstats.hub.util.Commander;
+import com.flightstats.hub.util.DirectoryPurger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,7 +14,7 @@ import java.util.function.Consumer;
 public class TtlEnforcer {
     private final static Logger logger = LoggerFactory.getLogger(TtlEnforcer.class);
 
-    public static void enforce(String path, ChannelService channelService,
+    public static void enforce(String path, ChannelService channelService, DirectoryPurger purger,
                                Consumer<ChannelConfig> channelConsumer) {
         try {
             File spokeRoot = new File(path);
@@ -27,10 +27,11 @@ public class TtlEnforcer {
             }
             dirSet.removeAll(channelSet);
             dirSet.remove("lost+found");
+            dirSet.removeIf(dir -> dir.startsWith("."));
             for (String dir : dirSet) {
                 String dirPath = path + "/" + dir;
                 logger.info("removing dir without channel {}", dirPath);
-                Commander.run(new String[]{"rm", "-rf", dirPath}, 1);
+                purger.delete(dirPath);
             }
         } catch (Exception e) {
             logger.warn("unble to run " + path, e);
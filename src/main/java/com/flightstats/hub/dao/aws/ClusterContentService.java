@@ -6,6 +6,7 @@ import com.flightstats.hub.cluster.LastContentPath;
 import com.flightstats.hub.dao.*;
 import com.flightstats.hub.exception.FailedQueryException;
 import com.flightstats.hub.metrics.ActiveTraces;
+import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
 import com.flightstats.hub.replication.S3Batch;
@@ -31,7 +32,6 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Supplier;
 
 import static com.flightstats.hub.model.LargeContent.createIndex;
 import static com.flightstats.hub.model.LargeContent.fromIndex;
@@ -43,6 +43,9 @@ public class ClusterContentService implements ContentService {
     private static final long largePayload = HubProperties.getLargePayload();
     private final boolean dropSomeWrites = HubProperties.getProperty("s3.dropSomeWrites", false);
     private static final int queryMergeMaxWaitMinutes = HubProperties.getProperty("query.merge.max.wait.minutes", 2);
+    private static final ReadCacheAdmission readCacheAdmission = new ReadCacheAdmission(
+            HubProperties.getProperty("spoke.read.admission.width", 64 * 1024),
+            HubProperties.getProperty("spoke.read.admission.threshold", 2));
 
     @Inject
     @Named(ContentDao.WRITE_CACHE)
@@ -67,6 +70,8 @@ public class ClusterContentService implements ContentService {
     private S3WriteQueue s3WriteQueue;
     @Inject
     private HubUtils hubUtils;
+    @Inject
+    private MetricsService metricsService;
 
     private static final ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("ClusterContentService-%d").build());
 
@@ -85,19 +90,20 @@ public class ClusterContentService implements ContentService {
         ContentKey key = spokeWriteContentDao.insert(channelName, spokeContent);
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         if (channel.isSingle() || channel.isBoth()) {
-            Supplier<Void> local = () -> {
-                s3SingleWrite(channelName, key, content.isForceWrite());
-                return null;
-            };
+            s3SingleWrite(channelName, spokeContent, content.isForceWrite());
         }
         return key;
     }
 
-    private void s3SingleWrite(String channelName, ContentKey key, boolean forceWrite) {
+    /**
+     * The content as written to spoke is handed to the queue, so it does not need to be read back.
+     */
+    private void s3SingleWrite(String channelName, Content content, boolean forceWrite) {
+        ContentKey key = content.getContentKey().get();
         if (!forceWrite && dropSomeWrites && Math.random() > 0.5) {
             logger.debug("dropping {} {}", channelName, key);
         } else {
-            s3WriteQueue.add(new ChannelContentKey(channelName, key));
+            s3WriteQueue.add(new ChannelContentKey(channelName, key), content);
         }
     }
 
@@ -107,8 +113,8 @@ public class ClusterContentService implements ContentService {
         SortedSet<ContentKey> keys = spokeWriteContentDao.insert(bulkContent);
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         if (channel.isSingle() || channel.isBoth()) {
-            for (ContentKey key : keys) {
-                s3SingleWrite(channelName, key, false);
+            for (Content content : bulkContent.getItems()) {
+                s3SingleWrite(channelName, content, false);
             }
         }
         return keys;
@@ -139,12 +145,12 @@ public class ClusterContentService implements ContentService {
         if (channel.isSingle()) {
             content = s3SingleContentDao.get(channelName, key);
         } else if (channel.isBatch()) {
-            content = spokeReadContentDao.get(channelName, key);
+            content = getFromReadCache(channelName, key);
             if (content == null) {
                 content = getFromS3BatchAndStoreInReadCache(channelName, key);
             }
         } else {
-            content = spokeReadContentDao.get(channelName, key);
+            content = getFromReadCache(channelName, key);
             if (content == null) {
                 content = getFromS3BatchAndStoreInReadCache(channelName, key);
             }
@@ -155,13 +161,29 @@ public class ClusterContentService implements ContentService {
         return checkForLargeIndex(channelName, content);
     }
 
+    private Content getFromReadCache(String channelName, ContentKey key) {
+        Content content = spokeReadContentDao.get(channelName, key);
+        metricsService.increment(content == null ? "spoke.read.cache.miss" : "spoke.read.cache.hit", "channel:" + channelName);
+        return content;
+    }
+
+    /**
+     * Only minutes which pass the admission policy are written to the read cache,
+     * so scans of old data do not push out the minutes which are read repeatedly.
+     * For minutes which are not admitted, only the requested item is read.
+     */
     private Content getFromS3BatchAndStoreInReadCache(String channelName, ContentKey key) {
         try {
+            if (!readCacheAdmission.recordAndAdmit(channelName, key)) {
+                metricsService.increment("spoke.read.cache.rejected", "channel:" + channelName);
+                return s3BatchContentDao.get(channelName, key);
+            }
             Map<ContentKey, Content> map = s3BatchContentDao.readBatch(channelName, key);
             Content content = map.get(key);
             if (content == null) {
                 return null;
             }
+            metricsService.increment("spoke.read.cache.admitted", "channel:" + channelName);
             Content copy = Content.copy(content);
             storeBatchInReadCache(channelName, map);
             return copy;
@@ -210,24 +232,42 @@ public class ClusterContentService implements ContentService {
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         DateTime spokeTtlTime = getSpokeTtlTime(channelName);
         for (MinutePath minutePath : minutePaths) {
-            if (minutePath.getTime().isAfter(spokeTtlTime)
-                    || channel.isSingle()) {
-                getValues(channelName, streamResults.getCallback(), minutePath, streamResults.isDescending());
+            boolean inSpoke = minutePath.getTime().isAfter(spokeTtlTime);
+            if (inSpoke || channel.isSingle()) {
+                getValues(channelName, streamResults.getCallback(), minutePath, streamResults.isDescending(), inSpoke);
             } else {
-                if (!s3BatchContentDao.streamMinute(channelName, minutePath, streamResults.isDescending(), callback)) {
-                    getValues(channelName, callback, minutePath, streamResults.isDescending());
+                Set<ContentKey> streamed = new HashSet<>();
+                Consumer<Content> streaming = content -> {
+                    streamed.add(content.getContentKey().get());
+                    callback.accept(content);
+                };
+                if (!s3BatchContentDao.streamMinute(channelName, minutePath, streamResults.isDescending(), streaming)) {
+                    List<ContentKey> remaining = new ArrayList<>(minutePath.getKeys());
+                    remaining.removeAll(streamed);
+                    getValues(channelName, callback, new MinutePath(minutePath.getTime(), remaining),
+                            streamResults.isDescending(), false);
                 }
             }
         }
     }
 
-    private void getValues(String channelName, Consumer<Content> callback, ContentPathKeys contentPathKeys, boolean descending) {
+    /**
+     * Keys within the spoke ttl are fetched from spoke with one multi-get, and any it misses are read individually.
+     */
+    private void getValues(String channelName, Consumer<Content> callback, ContentPathKeys contentPathKeys,
+                           boolean descending, boolean inSpoke) {
         List<ContentKey> keys = new ArrayList<>(contentPathKeys.getKeys());
         if (descending) {
             Collections.reverse(keys);
         }
+        Map<ContentKey, Content> spokeContent = Collections.emptyMap();
+        if (inSpoke && keys.size() > 1) {
+            spokeContent = spokeWriteContentDao.getAll(channelName, keys);
+        }
         for (ContentKey contentKey : keys) {
-            Optional<Content> contentOptional = get(channelName, contentKey, false);
+            Content content = spokeContent.get(contentKey);
+            Optional<Content> contentOptional = content == null
+                    ? get(channelName, contentKey, false) : checkForLargeIndex(channelName, content);
             if (contentOptional.isPresent()) {
                 callback.accept(contentOptional.get());
             }
@@ -0,0 +1,165 @@
+package com.flightstats.hub.dao.aws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.ContentPath;
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The index of a batch minute in S3, which lists the minute's keys.
+ * Indexes written with ranges also hold the offset and length of each item's entry within the minute's zip,
+ * from its local header through its data descriptor, so a single item can be read with one ranged GET.
+ * Indexes written before ranges were recorded only list the keys.
+ */
+class MinuteIndex {
+
+    private final static Logger logger = LoggerFactory.getLogger(MinuteIndex.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_LENGTH = 46;
+
+    private final String id;
+    private final List<ContentKey> keys;
+    private final Map<ContentKey, long[]> ranges;
+
+    private MinuteIndex(String id, List<ContentKey> keys, Map<ContentKey, long[]> ranges) {
+        this.id = id;
+        this.keys = keys;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param zip the minute's zip, which the ranges are read from.  If it can not be read, the index has no ranges.
+     */
+    static MinuteIndex create(ContentPath path, Collection<ContentKey> keys, byte[] zip) {
+        Map<ContentKey, long[]> ranges = new HashMap<>();
+        try {
+            for (Map.Entry<String, long[]> entry : readRanges(zip).entrySet()) {
+                Optional<ContentKey> key = ContentKey.fromUrl(entry.getKey());
+                if (key.isPresent()) {
+                    ranges.put(key.get(), entry.getValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("unable to read ranges for " + path, e);
+            ranges.clear();
+        }
+        return new MinuteIndex(path.toUrl(), new ArrayList<>(keys), ranges);
+    }
+
+    static MinuteIndex parse(byte[] bytes) throws IOException {
+        JsonNode root = mapper.readTree(bytes);
+        List<ContentKey> keys = new ArrayList<>();
+        for (JsonNode item : root.get("items")) {
+            keys.add(ContentKey.fromUrl(item.asText()).get());
+        }
+        Map<ContentKey, long[]> ranges = new HashMap<>();
+        JsonNode rangesNode = root.get("ranges");
+        if (rangesNode != null) {
+            Iterator<Map.Entry<String, JsonNode>> fields = rangesNode.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                ranges.put(ContentKey.fromUrl(field.getKey()).get(),
+                        new long[]{field.getValue().get(0).asLong(), field.getValue().get(1).asLong()});
+            }
+        }
+        JsonNode id = root.get("id");
+        return new MinuteIndex(id == null ? "" : id.asText(), keys, ranges);
+    }
+
+    byte[] toBytes() {
+        ObjectNode root = mapper.createObjectNode();
+        root.put("id", id);
+        ArrayNode items = root.putArray("items");
+        for (ContentKey key : keys) {
+            items.add(key.toUrl());
+        }
+        if (!ranges.isEmpty()) {
+            ObjectNode rangesNode = root.putObject("ranges");
+            for (ContentKey key : keys) {
+                long[] range = ranges.get(key);
+                if (range != null) {
+                    rangesNode.putArray(key.toUrl()).add(range[0]).add(range[1]);
+                }
+            }
+        }
+        return root.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    List<ContentKey> getKeys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return an estimate of the bytes held, for sizing caches
+     */
+    int getWeight() {
+        return 64 + keys.size() * 160 + ranges.size() * 96;
+    }
+
+    /**
+     * @return the offset and length of the key's zip entry, or null if it was not recorded
+     */
+    long[] getRange(ContentKey key) {
+        return ranges.get(key);
+    }
+
+    /**
+     * Reads the offset of each entry's local header from the zip's central directory.
+     * An entry's range ends where the next entry, or the central directory, starts.
+     */
+    static Map<String, long[]> readRanges(byte[] zip) {
+        ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        int end = zip.length - END_LENGTH;
+        while (end >= 0 && buffer.getInt(end) != END_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            throw new IllegalArgumentException("no end of central directory");
+        }
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        long directory = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        TreeMap<Long, String> offsets = new TreeMap<>();
+        int position = (int) directory;
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IllegalArgumentException("bad central directory entry at " + position);
+            }
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            long offset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+            String name = new String(zip, position + CENTRAL_LENGTH, nameLength, StandardCharsets.UTF_8);
+            offsets.put(offset, name);
+            position += CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+        }
+        Map<String, long[]> ranges = new HashMap<>();
+        for (Map.Entry<Long, String> entry : offsets.entrySet()) {
+            Long next = offsets.higherKey(entry.getKey());
+            long limit = next == null ? directory : next;
+            ranges.put(entry.getValue(), new long[]{entry.getKey(), limit - entry.getKey()});
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,180 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ContentPath;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds parsed batch minute indexes, which do not change once written, so repeated queries of a minute do not
+ * read its index from S3 again.  Up to s3.indexCache.maxMegaBytes of indexes are held in memory, by estimated size.
+ * If s3.indexCache.path is set, indexes are also written there, up to s3.indexCache.diskMegaBytes,
+ * oldest files dropping first, so they outlive memory eviction and restarts.
+ * A channel's indexes are dropped when its batches are deleted, and any index is dropped from both tiers
+ * s3.indexCache.maxAgeMinutes after it was cached, so a channel deleted or recreated through another server
+ * does not serve stale indexes for longer than that.
+ */
+class MinuteIndexCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(MinuteIndexCache.class);
+    private static final String SUFFIX = ".json";
+
+    private final Cache<String, MinuteIndex> memory;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final long maxAgeMillis;
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final Queue<File> diskFiles = new ConcurrentLinkedQueue<>();
+
+    static MinuteIndexCache create() {
+        String path = HubProperties.getProperty("s3.indexCache.path", "");
+        return new MinuteIndexCache(HubProperties.getProperty("s3.indexCache.maxMegaBytes", 64) * 1024L * 1024L,
+                path.isEmpty() ? null : new File(path),
+                HubProperties.getProperty("s3.indexCache.diskMegaBytes", 1024) * 1024L * 1024L,
+                TimeUnit.MINUTES.toMillis(HubProperties.getProperty("s3.indexCache.maxAgeMinutes", 60)));
+    }
+
+    /**
+     * @param directory null to only hold indexes in memory
+     */
+    MinuteIndexCache(long maxBytes, File directory, long maxDiskBytes, long maxAgeMillis) {
+        this.memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, MinuteIndex index) -> index.getWeight())
+                .expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        if (directory != null) {
+            loadDiskFiles();
+        }
+        logger.info("caching {} bytes of indexes, disk {} {} bytes, for {} millis",
+                maxBytes, directory, maxDiskBytes, maxAgeMillis);
+    }
+
+    /**
+     * @return null if the index is not cached
+     */
+    MinuteIndex get(String channel, ContentPath path) {
+        String key = getKey(channel, path);
+        MinuteIndex index = memory.getIfPresent(key);
+        if (index != null || directory == null) {
+            return index;
+        }
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        if (isExpired(file)) {
+            dropFile(file);
+            return null;
+        }
+        try {
+            index = MinuteIndex.parse(Files.readAllBytes(file.toPath()));
+            memory.put(key, index);
+            return index;
+        } catch (IOException e) {
+            logger.info("unable to read " + file, e);
+            return null;
+        }
+    }
+
+    void put(String channel, ContentPath path, MinuteIndex index) {
+        String key = getKey(channel, path);
+        memory.put(key, index);
+        if (directory == null) {
+            return;
+        }
+        File file = getFile(key);
+        try {
+            byte[] bytes = index.toBytes();
+            file.getParentFile().mkdirs();
+            long previous = file.length();
+            Files.write(file.toPath(), bytes);
+            diskBytes.addAndGet(bytes.length - previous);
+            if (previous == 0) {
+                diskFiles.add(file);
+            }
+            while (diskBytes.get() > maxDiskBytes && dropOldestFile()) {
+                logger.trace("dropped oldest index");
+            }
+        } catch (IOException e) {
+            logger.info("unable to write " + file, e);
+        }
+    }
+
+    void invalidate(String channel) {
+        String prefix = channel + "/";
+        memory.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        if (directory != null) {
+            File channelDirectory = new File(directory, channel);
+            diskFiles.removeIf(file -> file.toPath().startsWith(channelDirectory.toPath()));
+            FileUtils.deleteQuietly(channelDirectory);
+            diskBytes.set(0);
+            diskFiles.forEach(file -> diskBytes.addAndGet(file.length()));
+        }
+    }
+
+    private boolean dropOldestFile() {
+        File oldest = diskFiles.poll();
+        if (oldest == null) {
+            return false;
+        }
+        delete(oldest);
+        return true;
+    }
+
+    private void dropFile(File file) {
+        diskFiles.remove(file);
+        delete(file);
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    private boolean isExpired(File file) {
+        return System.currentTimeMillis() - file.lastModified() >= maxAgeMillis;
+    }
+
+    private void loadDiskFiles() {
+        directory.mkdirs();
+        List<File> files = new ArrayList<>(FileUtils.listFiles(directory, new String[]{SUFFIX.substring(1)}, true));
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (isExpired(file)) {
+                FileUtils.deleteQuietly(file);
+                continue;
+            }
+            diskFiles.add(file);
+            diskBytes.addAndGet(file.length());
+        }
+        logger.info("found {} cached indexes, {} bytes", diskFiles.size(), diskBytes.get());
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private static String getKey(String channel, ContentPath path) {
+        return channel + "/" + path.toUrl();
+    }
+}
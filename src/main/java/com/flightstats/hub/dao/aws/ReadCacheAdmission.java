@@ -0,0 +1,74 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.ContentKey;
+
+/**
+ * Decides whether a minute read from batch storage is worth writing into the spoke READ store.
+ * Requests for each item are counted in a small count-min sketch, which is halved after every
+ * width * 10 requests so past popularity fades.  The item's minute is admitted once the item has been requested
+ * admitThreshold times, so a scan which reads each item once is served from S3 without displacing the hot minutes.
+ */
+class ReadCacheAdmission {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int admitThreshold;
+    private final int mask;
+    private final int[][] counters;
+    private final int resetAfter;
+    private int additions;
+
+    /**
+     * @param width          counters per row, rounded up to a power of two
+     * @param admitThreshold requests needed before a minute is admitted, 1 admits everything
+     */
+    ReadCacheAdmission(int width, int admitThreshold) {
+        int size = Integer.highestOneBit(Math.max(16, width));
+        if (size < width) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.counters = new int[DEPTH][size];
+        this.resetAfter = size * 10;
+        this.admitThreshold = admitThreshold;
+    }
+
+    /**
+     * Counts a request for the item, and returns true if the item's minute should be cached.
+     */
+    synchronized boolean recordAndAdmit(String channel, ContentKey key) {
+        if (admitThreshold <= 1) {
+            return true;
+        }
+        int hash = channel.hashCode() * 31 + key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+            }
+            estimate = Math.min(estimate, counters[i][index]);
+        }
+        if (++additions >= resetAfter) {
+            age();
+        }
+        return estimate >= admitThreshold;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void age() {
+        additions = 0;
+        for (int[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+    }
+}
@@ -1,10 +1,6 @@
 package com.flightstats.hub.dao.aws;
 
 import com.amazonaws.services.s3.model.*;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.dao.ContentDao;
 import com.flightstats.hub.dao.ContentMarshaller;
@@ -12,9 +8,11 @@ import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
+import com.flightstats.hub.util.RuntimeInterruptedException;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
@@ -30,6 +28,10 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
@@ -41,10 +43,14 @@ public class S3BatchContentDao implements ContentDao {
     private final static Logger logger = LoggerFactory.getLogger(S3BatchContentDao.class);
     private static final String BATCH_INDEX = "Batch/index/";
     private static final String BATCH_ITEMS = "Batch/items/";
-    private static final ObjectMapper mapper = new ObjectMapper();
 
     private final boolean useEncrypted = HubProperties.isAppEncrypted();
     private final int s3MaxQueryItems = HubProperties.getProperty("s3.maxQueryItems", 1000);
+    private final int queryThreads = HubProperties.getProperty("s3.batchQueryThreads", 20);
+    private final long descendingBytes = HubProperties.getProperty("s3.batchDescendingBytes", 4L * 1024 * 1024);
+    private final MinuteIndexCache indexCache = MinuteIndexCache.create();
+    private final ExecutorService queryThreadPool = Executors.newFixedThreadPool(queryThreads,
+            new ThreadFactoryBuilder().setNameFormat("S3BatchQuery-%d").build());
     @Inject
     private HubS3Client s3Client;
     @Inject
@@ -75,11 +81,50 @@ public class S3BatchContentDao implements ContentDao {
         }
     }
 
+    /**
+     * Reads the item with one ranged GET when the minute's index records its range,
+     * otherwise reads the whole minute.
+     */
     private Content getS3Object(String channel, ContentKey key) throws IOException {
         logger.trace("S3BatchContentDao.getS3Object {} {}", channel, key);
+        MinutePath minutePath = new MinutePath(key.getTime());
+        MinuteIndex index = getIndex(channel, minutePath, ActiveTraces.getLocal());
+        long[] range = index == null ? null : index.getRange(key);
+        if (range != null) {
+            Content content = readRange(channel, minutePath, range[0], range[0] + range[1]).get(key);
+            if (content != null) {
+                return content;
+            }
+            logger.warn("range {} {} did not match {} {}", range[0], range[1], channel, key);
+        }
         return readBatch(channel, key).get(key);
     }
 
+    /**
+     * Reads the zip entries from the start offset of one entry up to the end offset of another.
+     */
+    private Map<ContentKey, Content> readRange(String channel, MinutePath minutePath, long start, long end) throws IOException {
+        ActiveTraces.getLocal().add("S3BatchContentDao.readRange", minutePath, start, end);
+        Map<ContentKey, Content> map = new HashMap<>();
+        long startMillis = System.currentTimeMillis();
+        GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3BatchItemsKey(channel, minutePath))
+                .withRange(start, end - 1);
+        try (S3Object object = s3Client.getObject(request);
+             ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(object.getObjectContent()))) {
+            ZipEntry nextEntry = zipStream.getNextEntry();
+            while (nextEntry != null) {
+                Optional<ContentKey> key = ContentKey.fromUrl(nextEntry.getName());
+                if (key.isPresent()) {
+                    map.put(key.get(), getContent(key.get(), zipStream, nextEntry));
+                }
+                nextEntry = zipStream.getNextEntry();
+            }
+        } finally {
+            metricsService.time(channel, "s3.get", startMillis, "type:batchRange");
+        }
+        return map;
+    }
+
     @Override
     public Map<ContentKey, Content> readBatch(String channelName, ContentKey key) throws IOException {
         MinutePath minutePath = new MinutePath(key.getTime());
@@ -137,7 +182,73 @@ public class S3BatchContentDao implements ContentDao {
         return ascending(channel, minutePath, callback);
     }
 
+    /**
+     * Walks the minute's index from its newest key, reading runs of adjacent entries of up to
+     * s3.batchDescendingBytes with ranged GETs, so only one run is held at a time.
+     * Minutes whose index has no ranges are read whole.
+     * Returns false if a read fails, so the caller can read the keys which were not streamed.
+     */
     private boolean descending(String channel, MinutePath minutePath, Consumer<Content> callback) {
+        MinuteIndex index = getIndex(channel, minutePath, ActiveTraces.getLocal());
+        if (index == null) {
+            return descendingMinute(channel, minutePath, callback);
+        }
+        TreeSet<ContentKey> keys = new TreeSet<>(index.getKeys());
+        keys.retainAll(minutePath.getKeys());
+        for (ContentKey key : keys) {
+            if (index.getRange(key) == null) {
+                return descendingMinute(channel, minutePath, callback);
+            }
+        }
+        boolean found = false;
+        try {
+            List<ContentKey> run = new ArrayList<>();
+            long start = 0;
+            long end = 0;
+            for (ContentKey key : keys.descendingSet()) {
+                long[] range = index.getRange(key);
+                if (!run.isEmpty() && (range[0] + range[1] != start || end - range[0] > descendingBytes)) {
+                    found |= emitRun(channel, minutePath, run, start, end, callback);
+                    run.clear();
+                }
+                if (run.isEmpty()) {
+                    end = range[0] + range[1];
+                }
+                start = range[0];
+                run.add(key);
+            }
+            if (!run.isEmpty()) {
+                found |= emitRun(channel, minutePath, run, start, end, callback);
+            }
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                logger.warn("AmazonS3Exception : unable to read " + channel + " " + minutePath, e);
+            }
+            return false;
+        } catch (IOException e) {
+            logger.warn("unexpected IOException for " + channel + " " + minutePath, e);
+            return false;
+        } finally {
+            ActiveTraces.getLocal().add("S3BatchContentDao.streamMinute completed");
+        }
+        return found;
+    }
+
+    private boolean emitRun(String channel, MinutePath minutePath, List<ContentKey> run, long start, long end,
+                            Consumer<Content> callback) throws IOException {
+        Map<ContentKey, Content> map = readRange(channel, minutePath, start, end);
+        boolean found = false;
+        for (ContentKey key : run) {
+            Content content = map.get(key);
+            if (content != null) {
+                callback.accept(content);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private boolean descendingMinute(String channel, MinutePath minutePath, Consumer<Content> callback) {
         boolean found = false;
         try {
             Map<ContentKey, Content> map = mapMinute(channel, minutePath);
@@ -150,6 +261,7 @@ public class S3BatchContentDao implements ContentDao {
             }
         } catch (IOException e) {
             logger.warn("unexpected IOException for " + channel + " " + minutePath, e);
+            return false;
         }
         return found;
     }
@@ -175,8 +287,10 @@ public class S3BatchContentDao implements ContentDao {
             if (e.getStatusCode() != 404) {
                 logger.warn("AmazonS3Exception : unable to read " + channel + " " + minutePath, e);
             }
+            return false;
         } catch (IOException e) {
             logger.warn("unexpected IOException for " + channel + " " + minutePath, e);
+            return false;
         } finally {
             ActiveTraces.getLocal().add("S3BatchContentDao.streamMinute completed");
         }
@@ -207,13 +321,50 @@ public class S3BatchContentDao implements ContentDao {
                 .withPrefix(channel + BATCH_INDEX + query.getUnit().format(rounded))
                 .withMaxKeys(s3MaxQueryItems);
         SortedSet<MinutePath> minutePaths = listMinutePaths(channel, request, traces, true);
-        for (MinutePath minutePath : minutePaths) {
-            getKeysForMinute(channel, minutePath, keys, traces);
-        }
+        getKeysForMinutes(channel, minutePaths, keys, query.getCount(), traces);
         traces.add("S3BatchContentDao.queryHourPlus found keys", keys);
         return keys;
     }
 
+    /**
+     * Fetches up to s3.batchQueryThreads minute indexes at once, adding their keys in order.
+     * With a count, the newest minutes are read first, and reading stops once count keys are found,
+     * as the keys of older minutes would be dropped.
+     */
+    private void getKeysForMinutes(String channel, SortedSet<MinutePath> minutePaths, SortedSet<ContentKey> keys,
+                                   int count, Traces traces) {
+        List<MinutePath> paths = new ArrayList<>(minutePaths);
+        if (count > 0) {
+            Collections.reverse(paths);
+        }
+        Deque<Future<MinuteIndex>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < paths.size() || !pending.isEmpty()) {
+                while (next < paths.size() && pending.size() < queryThreads) {
+                    MinutePath path = paths.get(next++);
+                    pending.add(queryThreadPool.submit(() -> getIndex(channel, path, traces)));
+                }
+                MinuteIndex index = pending.remove().get();
+                if (index != null) {
+                    keys.addAll(index.getKeys());
+                }
+                if (count > 0 && keys.size() >= count) {
+                    traces.add("S3BatchContentDao.getKeysForMinutes stopping with minutes remaining", paths.size() - next + pending.size());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<MinuteIndex> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
     private SortedSet<ContentKey> queryMinute(String channel, DateTime startTime, TimeUtil.Unit unit) {
         Traces traces = ActiveTraces.getLocal();
         SortedSet<ContentKey> keys = new TreeSet<>();
@@ -233,22 +384,33 @@ public class S3BatchContentDao implements ContentDao {
     }
 
     private void getKeysForMinute(String channel, MinutePath minutePath, SortedSet<ContentKey> keys, Traces traces) {
-        getKeysForMinute(channel, minutePath, traces, item -> {
-            keys.add(ContentKey.fromUrl(item.asText()).get());
-        });
+        getKeysForMinute(channel, minutePath, traces, keys::add);
     }
 
-    private void getKeysForMinute(String channel, MinutePath minutePath, Traces traces, Consumer<JsonNode> itemNodeConsumer) {
+    private void getKeysForMinute(String channel, MinutePath minutePath, Traces traces, Consumer<ContentKey> keyConsumer) {
+        MinuteIndex index = getIndex(channel, minutePath, traces);
+        if (index != null) {
+            index.getKeys().forEach(keyConsumer);
+        }
+    }
+
+    /**
+     * @return null if the minute has no index, or it could not be read
+     */
+    private MinuteIndex getIndex(String channel, MinutePath minutePath, Traces traces) {
+        MinuteIndex cached = indexCache.get(channel, minutePath);
+        if (cached != null) {
+            traces.add("S3BatchContentDao.getKeysForMinute cached ", minutePath, cached.getKeys().size());
+            return cached;
+        }
         long start = System.currentTimeMillis();
         GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3BatchIndexKey(channel, minutePath));
         try (S3Object object = s3Client.getObject(request)) {
             byte[] bytes = ByteStreams.toByteArray(object.getObjectContent());
-            JsonNode root = mapper.readTree(bytes);
-            JsonNode items = root.get("items");
-            for (JsonNode item : items) {
-                itemNodeConsumer.accept(item);
-            }
-            traces.add("S3BatchContentDao.getKeysForMinute ", minutePath, items.size());
+            MinuteIndex index = MinuteIndex.parse(bytes);
+            indexCache.put(channel, minutePath, index);
+            traces.add("S3BatchContentDao.getKeysForMinute ", minutePath, index.getKeys().size());
+            return index;
         } catch (AmazonS3Exception e) {
             if (e.getStatusCode() != 404) {
                 logger.warn("unable to get index " + channel, minutePath, e);
@@ -262,6 +424,7 @@ public class S3BatchContentDao implements ContentDao {
         } finally {
             metricsService.time(channel, "s3.get", start, "type:batch");
         }
+        return null;
     }
 
     @Override
@@ -302,8 +465,7 @@ public class S3BatchContentDao implements ContentDao {
                 return keys;
             }
             for (MinutePath path : paths) {
-                getKeysForMinute(channel, path, traces, item -> {
-                    ContentKey contentKey = ContentKey.fromUrl(item.asText()).get();
+                getKeysForMinute(channel, path, traces, contentKey -> {
                     if (contentKey.compareTo(query.getStartKey()) > 0
                             && keys.size() < query.getCount()) {
                         keys.add(contentKey);
@@ -346,6 +508,7 @@ public class S3BatchContentDao implements ContentDao {
         try {
             S3Util.delete(channel + BATCH_ITEMS, limitKey, s3BucketName.getS3BucketName(), s3Client);
             S3Util.delete(channel + BATCH_INDEX, limitKey, s3BucketName.getS3BucketName(), s3Client);
+            indexCache.invalidate(channel);
             logger.info("completed deleteBefore of " + channel);
         } catch (Exception e) {
             logger.warn("unable to delete " + channel + " in " + s3BucketName.getS3BucketName(), e);
@@ -379,7 +542,7 @@ public class S3BatchContentDao implements ContentDao {
         try {
             logger.debug("writing {} batch {} keys {} bytes {}", channel, path, keys.size(), bytes.length);
             writeBatchItems(channel, path, bytes);
-            writeBatchIndex(channel, path, keys);
+            writeBatchIndex(channel, path, keys, bytes);
         } catch (Exception e) {
             logger.warn("unable to write batch to S3 " + channel + " " + path, e);
             throw e;
@@ -388,18 +551,13 @@ public class S3BatchContentDao implements ContentDao {
         }
     }
 
-    private void writeBatchIndex(String channel, ContentPath path, Collection<ContentKey> keys) {
+    private void writeBatchIndex(String channel, ContentPath path, Collection<ContentKey> keys, byte[] zip) {
         String batchIndexKey = getS3BatchIndexKey(channel, path);
-        ObjectNode root = mapper.createObjectNode();
-        root.put("id", path.toUrl());
-        ArrayNode items = root.putArray("items");
-        for (ContentKey key : keys) {
-            items.add(key.toUrl());
-        }
-        String index = root.toString();
-        logger.trace("index is {} {}", batchIndexKey, index);
-        byte[] bytes = index.getBytes(StandardCharsets.UTF_8);
+        MinuteIndex index = MinuteIndex.create(path, keys, zip);
+        byte[] bytes = index.toBytes();
+        logger.trace("index is {} {}", batchIndexKey, new String(bytes, StandardCharsets.UTF_8));
         putObject(channel, batchIndexKey, bytes);
+        indexCache.put(channel, path, index);
     }
 
     private void writeBatchItems(String channel, ContentPath path, byte[] bytes) {
@@ -12,20 +12,27 @@ import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.DirectionQuery;
 import com.flightstats.hub.model.TimeQuery;
 import com.flightstats.hub.util.ChunkOutputStream;
+import com.flightstats.hub.util.ChunkPool;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @SuppressWarnings("Duplicates")
 @Singleton
@@ -33,6 +40,12 @@ public class S3LargeContentDao implements ContentDao {
 
     private final static Logger logger = LoggerFactory.getLogger(S3LargeContentDao.class);
 
+    private static final ExecutorService uploadPool = Executors.newFixedThreadPool(
+            HubProperties.getProperty("s3.large.uploadThreads", 20),
+            new ThreadFactoryBuilder().setNameFormat("S3LargeUpload-%d").build());
+    private static final ChunkPool chunkPool = new ChunkPool(HubProperties.getProperty("s3.large.poolMegaBytes", 32) * 1024L * 1024L,
+            HubProperties.getProperty("s3.large.poolIdleSeconds", 60) * 1000L);
+
     private final boolean useEncrypted = HubProperties.isAppEncrypted();
 
     @Inject
@@ -72,6 +85,7 @@ public class S3LargeContentDao implements ContentDao {
         long start = System.currentTimeMillis();
         int length = 0;
         List<PartETag> partETags = Collections.synchronizedList(new ArrayList<>());
+        Map<Integer, byte[]> partMd5s = new ConcurrentSkipListMap<>();
         String s3Key = getS3ContentKey(channelName, key, content.isHistorical());
         String name = s3BucketName.getS3BucketName();
         String uploadId = "";
@@ -81,21 +95,26 @@ public class S3LargeContentDao implements ContentDao {
             InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(name, s3Key, metadata);
             InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
             uploadId = initResponse.getUploadId();
-            ChunkOutputStream outputStream = new ChunkOutputStream(content.getThreads(), chunk -> {
+            ChunkOutputStream outputStream = new ChunkOutputStream(uploadPool, chunkPool, content.getThreads(), chunk -> {
                 try {
-                    byte[] bytes = chunk.getBytes();
-                    logger.info("got bytes {} {}", s3Key, bytes.length);
-                    ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+                    int partLength = chunk.getLength();
+                    byte[] md5 = chunk.getMd5();
+                    logger.info("got bytes {} {}", s3Key, partLength);
                     UploadPartRequest uploadRequest = new UploadPartRequest()
                             .withBucketName(name)
                             .withKey(s3Key)
                             .withUploadId(initResponse.getUploadId())
                             .withPartNumber(chunk.getCount())
-                            .withInputStream(bais)
-                            .withPartSize(bytes.length);
+                            .withInputStream(chunk.getStream())
+                            .withPartSize(partLength)
+                            .withMD5Digest(Base64.getEncoder().encodeToString(md5));
                     UploadPartResult uploadPart = s3Client.uploadPart(uploadRequest);
+                    if (!Hex.encodeHexString(md5).equalsIgnoreCase(uploadPart.getETag())) {
+                        throw new RuntimeException("part " + chunk.getCount() + " has etag " + uploadPart.getETag());
+                    }
+                    partMd5s.put(chunk.getCount(), md5);
                     partETags.add(uploadPart.getPartETag());
-                    logger.info("wrote chunk {} {} {}", s3Key, chunk.getCount(), bytes.length);
+                    logger.info("wrote chunk {} {} {}", s3Key, chunk.getCount(), partLength);
                     return "ok";
                 } catch (Exception e) {
                     logger.warn("what happened POST to " + channelName + " for chunk " + chunk.getCount(), e);
@@ -108,18 +127,20 @@ public class S3LargeContentDao implements ContentDao {
             ActiveTraces.getLocal().add("S3LargeContentDao.write processed", copied);
             logger.info("before complete key {} with {} parts", s3Key, partETags.size());
             outputStream.close();
+            partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
             CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(name, s3Key, uploadId, partETags);
-            s3Client.completeMultipartUpload(compRequest);
+            CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(compRequest);
             S3ResponseMetadata completedMetaData = s3Client.getCachedResponseMetadata(compRequest);
             logger.info("completed key {} request id {} with {} parts", s3Key, completedMetaData.getRequestId(), partETags.size());
             completed = true;
             content.setSize(copied);
-            long s3Length = getLength(s3Key, name);
-            if (s3Length != copied) {
-                String message = "object is not the correct size. expected " + copied + ", found " + s3Length;
+            String expected = getMultipartETag(partMd5s);
+            if (!expected.equalsIgnoreCase(result.getETag())) {
+                String message = "object does not have the expected etag " + expected + ", found " + result.getETag();
                 logger.warn(message);
                 throw new RuntimeException(message);
             }
+            ActiveTraces.getLocal().add("S3LargeContentDao.write completed etag ", result.getETag());
             return key;
         } catch (Exception e) {
             logger.warn("unable to write large item to S3 " + channelName + " " + key, e);
@@ -140,18 +161,19 @@ public class S3LargeContentDao implements ContentDao {
         }
     }
 
-    private long getLength(String s3Key, String name) throws IOException {
-        GetObjectRequest request = new GetObjectRequest(name, s3Key);
-        try (S3Object object = s3Client.getObject(request)) {
-            ObjectMetadata metadata = object.getObjectMetadata();
-            long contentLength = metadata.getContentLength();
-            S3ResponseMetadata responseMetadata = s3Client.getCachedResponseMetadata(request);
-            logger.info("{} {} get content length {} {}", name, s3Key, contentLength, responseMetadata.getRequestId());
-            ActiveTraces.getLocal().add("S3LargeContentDao.write completed length ", contentLength);
-            return contentLength;
-        } catch (Exception e) {
-            logger.warn("unable to get length" + name + " " + s3Key, e);
-            return 0;
+    /**
+     * S3 gives a multipart object the md5 of its parts' md5s, followed by the number of parts,
+     * so the upload can be verified without reading the object back.
+     */
+    static String getMultipartETag(Map<Integer, byte[]> partMd5s) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (byte[] md5 : partMd5s.values()) {
+                digest.update(md5);
+            }
+            return Hex.encodeHexString(digest.digest()) + "-" + partMd5s.size();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
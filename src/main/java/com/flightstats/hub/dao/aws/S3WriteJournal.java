@@ -0,0 +1,222 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ChannelContentKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only journal of the keys queued for S3 single writes, so pending writes survive a restart,
+ * and keys which do not fit in the queue spill to disk instead of being dropped.
+ * Queued keys are appended to segment files of up to s3.writeJournal.segmentKeys lines, and a full segment is deleted
+ * once each of its keys has been written or given up on.  Spilled keys are appended to separate segments,
+ * which are read back into the queue as it empties, as are the segments found at startup.
+ * Appends are not synced, so the journal survives the process ending, but not the host.
+ */
+class S3WriteJournal {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3WriteJournal.class);
+    private static final String SUFFIX = ".journal";
+
+    private final File directory;
+    private final int segmentKeys;
+    private final Deque<Segment> spilled = new ArrayDeque<>();
+    private long sequence;
+    private Segment queued;
+    private Segment spill;
+
+    /**
+     * @return null unless s3.writeJournal is enabled
+     */
+    static S3WriteJournal create() {
+        if (!HubProperties.getProperty("s3.writeJournal", false)) {
+            return null;
+        }
+        return new S3WriteJournal(new File(HubProperties.getProperty("s3.writeJournal.path", "/spoke/s3WriteJournal")),
+                HubProperties.getProperty("s3.writeJournal.segmentKeys", 1000));
+    }
+
+    S3WriteJournal(File directory, int segmentKeys) {
+        this.directory = directory;
+        this.segmentKeys = segmentKeys;
+        directory.mkdirs();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(S3WriteJournal::getSequence));
+            for (File file : files) {
+                sequence = Math.max(sequence, getSequence(file));
+                spilled.add(new Segment(file));
+            }
+        }
+        logger.info("found {} journal segments in {}", spilled.size(), directory);
+    }
+
+    /**
+     * Records a key which is being added to the queue.
+     * @return the segment to complete once the key is written or given up on, or null if the key could not be recorded
+     */
+    synchronized Segment append(ChannelContentKey key) {
+        try {
+            if (queued == null) {
+                queued = newSegment();
+            }
+            Segment segment = queued;
+            segment.append(key);
+            segment.pending.incrementAndGet();
+            if (segment.keys >= segmentKeys) {
+                queued = null;
+                segment.close();
+                deleteIfComplete(segment);
+            }
+            return segment;
+        } catch (IOException e) {
+            logger.warn("unable to journal " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Records a key which does not fit in the queue, to be read back by {@link #nextSpilled()}.
+     * @return false if the key could not be recorded
+     */
+    synchronized boolean spill(ChannelContentKey key) {
+        try {
+            if (spill == null) {
+                spill = newSegment();
+            }
+            spill.append(key);
+            if (spill.keys >= segmentKeys) {
+                closeSpill();
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("unable to spill " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the oldest spilled segment, with its keys pending, or null if nothing has spilled
+     */
+    Segment nextSpilled() {
+        Segment segment;
+        synchronized (this) {
+            if (spilled.isEmpty() && spill != null) {
+                closeSpill();
+            }
+            segment = spilled.poll();
+        }
+        if (segment == null) {
+            return null;
+        }
+        segment.read();
+        segment.pending.set(segment.readKeys.size());
+        deleteIfComplete(segment);
+        return segment;
+    }
+
+    void completed(Segment segment) {
+        if (segment != null && segment.pending.decrementAndGet() == 0) {
+            deleteIfComplete(segment);
+        }
+    }
+
+    synchronized void close() {
+        for (Segment segment : Arrays.asList(queued, spill)) {
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    private void closeSpill() {
+        spill.close();
+        spilled.add(spill);
+        spill = null;
+    }
+
+    private void deleteIfComplete(Segment segment) {
+        if (segment.closed && segment.pending.get() == 0 && segment.file.delete()) {
+            logger.trace("deleted {}", segment.file);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        sequence++;
+        Segment segment = new Segment(new File(directory, sequence + SUFFIX));
+        segment.output = new FileOutputStream(segment.file, true);
+        segment.closed = false;
+        return segment;
+    }
+
+    private static long getSequence(File file) {
+        try {
+            return Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static class Segment {
+        private final File file;
+        private final AtomicInteger pending = new AtomicInteger();
+        private OutputStream output;
+        private int keys;
+        private volatile boolean closed = true;
+        private final List<ChannelContentKey> readKeys = new ArrayList<>();
+
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        List<ChannelContentKey> getKeys() {
+            return readKeys;
+        }
+
+        private void append(ChannelContentKey key) throws IOException {
+            String line = key.getChannel() + "/" + key.getContentKey().toUrl() + "\n";
+            output.write(line.getBytes(StandardCharsets.UTF_8));
+            keys++;
+        }
+
+        private void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                logger.warn("unable to close " + file, e);
+            }
+            closed = true;
+        }
+
+        /**
+         * A line cut short by the process ending is skipped.
+         */
+        private void read() {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    try {
+                        readKeys.add(ChannelContentKey.fromChannelPath(line));
+                    } catch (RuntimeException e) {
+                        logger.info("skipping {} in {}", line, file);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("unable to read " + file, e);
+            }
+        }
+    }
+}
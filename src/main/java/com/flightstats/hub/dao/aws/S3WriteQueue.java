@@ -8,11 +8,8 @@ import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.model.ChannelContentKey;
 import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.util.Sleeper;
-import com.github.rholder.retry.Retryer;
-import com.github.rholder.retry.RetryerBuilder;
-import com.github.rholder.retry.StopStrategies;
-import com.github.rholder.retry.WaitStrategies;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -20,12 +17,31 @@ import com.google.inject.name.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Writes single items to S3 in the background.
+ * Items queued from the insert path carry their content, up to s3.writeQueueContentBytes held at once,
+ * so they are written without reading them back from spoke.  Items queued by key alone are read from spoke
+ * in one multi-get per channel for each batch taken from the queue.
+ * Puts run on a bounded pool of s3.writeQueueThreads, and when every thread is busy the dispatcher runs the put
+ * itself, which holds the queue back.  Failed writes are queued again after a delay instead of holding a thread.
+ * With s3.writeJournal enabled, queued keys are also recorded in a {@link S3WriteJournal}, so they survive a restart,
+ * and keys which do not fit in the queue spill to the journal instead of being dropped.
+ */
 @SuppressWarnings("WeakerAccess")
 @Singleton
 public class S3WriteQueue {
@@ -34,105 +50,291 @@ public class S3WriteQueue {
 
     private static final int THREADS = HubProperties.getS3WriteQueueThreads();
     private static final int QUEUE_SIZE = HubProperties.getS3WriteQueueSize();
-    private Retryer<Void> retryer = buildRetryer();
-    private BlockingQueue<ChannelContentKey> keys = new LinkedBlockingQueue<>(QUEUE_SIZE);
-    private ExecutorService executorService = Executors.newFixedThreadPool(THREADS,
-            new ThreadFactoryBuilder().setNameFormat("S3WriteQueue-%d").build());
-    @Inject
-    @Named(ContentDao.WRITE_CACHE)
-    private ContentDao spokeWriteContentDao;
-    @Inject
-    @Named(ContentDao.SINGLE_LONG_TERM)
-    private ContentDao s3SingleContentDao;
-    @Inject
-    private MetricsService metricsService;
+    private static final int BATCH_SIZE = HubProperties.getProperty("s3.writeQueueBatchSize", 100);
+    private static final long CONTENT_BYTES = HubProperties.getProperty("s3.writeQueueContentBytes", 256L * 1024 * 1024);
+    private static final int ATTEMPTS = 3;
+
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong contentBytes = new AtomicLong();
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("S3WriteQueue-dispatch-%d").build());
+    private final ThreadPoolExecutor putPool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(THREADS), new ThreadFactoryBuilder().setNameFormat("S3WriteQueue-%d").build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("S3WriteQueue-retry-%d").build());
+    private final ContentDao spokeWriteContentDao;
+    private final ContentDao s3SingleContentDao;
+    private final MetricsService metricsService;
+    private final S3WriteJournal journal;
 
     @Inject
-    private S3WriteQueue() throws InterruptedException {
-        logger.info("queue size {}", QUEUE_SIZE);
-        for (int i = 0; i < THREADS; i++) {
-            executorService.submit(() -> {
-                try {
-                    while (true) {
-                        write();
-                    }
-                } catch (Exception e) {
-                    logger.warn("exited thread", e);
-                    return null;
+    S3WriteQueue(@Named(ContentDao.WRITE_CACHE) ContentDao spokeWriteContentDao,
+                 @Named(ContentDao.SINGLE_LONG_TERM) ContentDao s3SingleContentDao,
+                 MetricsService metricsService) {
+        this(spokeWriteContentDao, s3SingleContentDao, metricsService, S3WriteJournal.create());
+    }
+
+    S3WriteQueue(ContentDao spokeWriteContentDao, ContentDao s3SingleContentDao,
+                 MetricsService metricsService, S3WriteJournal journal) {
+        this.spokeWriteContentDao = spokeWriteContentDao;
+        this.s3SingleContentDao = s3SingleContentDao;
+        this.metricsService = metricsService;
+        this.journal = journal;
+        logger.info("queue size {}, journal {}", QUEUE_SIZE, journal != null);
+        if (journal != null) {
+            retries.scheduleWithFixedDelay(this::readSpilled, 1, 1, TimeUnit.SECONDS);
+        }
+        dispatcher.submit(() -> {
+            try {
+                while (true) {
+                    dispatch();
                 }
-            });
+            } catch (Exception e) {
+                logger.warn("exited thread", e);
+                return null;
+            }
+        });
+    }
+
+    private void dispatch() throws InterruptedException {
+        Write first = writes.poll(5, TimeUnit.SECONDS);
+        if (first == null) {
+            return;
+        }
+        List<Write> batch = new ArrayList<>();
+        batch.add(first);
+        writes.drainTo(batch, BATCH_SIZE - 1);
+        metricsService.gauge("s3.writeQueue.used", writes.size());
+        Map<ChannelContentKey, Write> unique = new LinkedHashMap<>();
+        for (Write write : batch) {
+            metricsService.count("s3.writeQueue.age.removed", write.key.getAgeMS());
+            release(write);
+            Write existing = unique.get(write.key);
+            if (existing == null || (existing.content == null && write.content != null)) {
+                unique.put(write.key, write);
+                write = existing;
+            }
+            completed(write);
+        }
+        try {
+            readFromSpoke(unique.values());
+        } catch (Exception e) {
+            logger.warn("unable to read from spoke", e);
+        }
+        for (Write write : unique.values()) {
+            putPool.execute(() -> put(write));
         }
     }
 
-    private void write() throws InterruptedException {
+    /**
+     * Reads the content of the writes which were queued by key alone, with one request per channel.
+     */
+    private void readFromSpoke(Iterable<Write> batch) {
+        Map<String, List<Write>> byChannel = new HashMap<>();
+        for (Write write : batch) {
+            if (write.content == null) {
+                byChannel.computeIfAbsent(write.key.getChannel(), channel -> new ArrayList<>()).add(write);
+            }
+        }
+        for (Map.Entry<String, List<Write>> entry : byChannel.entrySet()) {
+            List<ContentKey> keys = new ArrayList<>();
+            for (Write write : entry.getValue()) {
+                keys.add(write.key.getContentKey());
+            }
+            Map<ContentKey, Content> found = spokeWriteContentDao.getAll(entry.getKey(), keys);
+            metricsService.count("s3.writeQueue.spokeReads", keys.size());
+            for (Write write : entry.getValue()) {
+                write.content = found.get(write.key.getContentKey());
+            }
+        }
+    }
+
+    private void put(Write write) {
+        ActiveTraces.start("S3WriteQueue.writeContent", write.key);
         try {
-            ChannelContentKey key = keys.poll(5, TimeUnit.SECONDS);
-            if (key != null) {
-                metricsService.gauge("s3.writeQueue.used", keys.size());
-                metricsService.count("s3.writeQueue.age.removed", key.getAgeMS());
+            logger.trace("writing {}", write.key.getContentKey());
+            if (write.content == null) {
+                throw new FailedReadException("unable to read " + write.key.toString());
             }
-            retryer.call(() -> {
-                writeContent(key);
-                return null;
-            });
+            if (!write.packaged) {
+                write.content.packageStream();
+                write.packaged = true;
+            }
+            s3SingleContentDao.insert(write.key.getChannel(), write.content);
+            completed(write);
         } catch (Exception e) {
-            logger.warn("unable to call s3", e);
+            retry(write, e);
+        } finally {
+            ActiveTraces.end();
         }
     }
 
-    private void writeContent(ChannelContentKey key) throws Exception {
-        if (key != null) {
-            ActiveTraces.start("S3WriteQueue.writeContent", key);
-            try {
-                logger.trace("writing {}", key.getContentKey());
-                Content content = spokeWriteContentDao.get(key.getChannel(), key.getContentKey());
-                content.packageStream();
-                if (content.getData() == null) {
-                    throw new FailedReadException("unable to read " + key.toString());
+    private void retry(Write write, Exception e) {
+        write.attempts++;
+        if (write.attempts >= ATTEMPTS) {
+            logger.warn("unable to write to S3 " + write.key, e);
+            metricsService.increment("s3.writeQueue.failed");
+            completed(write);
+            return;
+        }
+        logger.warn("unable to write to S3 " + write.key + " " + e.getMessage());
+        reserve(write);
+        long delayMillis = 1000L << write.attempts;
+        retries.schedule(() -> {
+            if (!writes.offer(write)) {
+                logger.warn("unable to retry {} - out of queue space", write.key);
+                overflow(write);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the keys of the oldest spilled journal segment once the queue is at most half full.
+     */
+    private void readSpilled() {
+        try {
+            while (writes.remainingCapacity() >= QUEUE_SIZE / 2) {
+                S3WriteJournal.Segment segment = journal.nextSpilled();
+                if (segment == null) {
+                    return;
+                }
+                logger.info("queueing {} spilled keys", segment.getKeys().size());
+                for (ChannelContentKey key : segment.getKeys()) {
+                    Write write = new Write(key, null, 0);
+                    write.segment = segment;
+                    if (!writes.offer(write)) {
+                        overflow(write);
+                    }
                 }
-                s3SingleContentDao.insert(key.getChannel(), content);
-            } finally {
-                ActiveTraces.end();
             }
+        } catch (Exception e) {
+            logger.warn("unable to read spilled keys", e);
+        }
+    }
+
+    /**
+     * Spills a write which does not fit in the queue to the journal, or drops it.
+     * @return true if the write was spilled
+     */
+    private boolean overflow(Write write) {
+        release(write);
+        boolean spilled = journal != null && journal.spill(write.key);
+        metricsService.increment(spilled ? "s3.writeQueue.spilled" : "s3.writeQueue.dropped");
+        completed(write);
+        return spilled;
+    }
+
+    private void completed(Write write) {
+        if (write != null && journal != null) {
+            journal.completed(write.segment);
         }
     }
 
     public boolean add(ChannelContentKey key) {
-        boolean value = keys.offer(key);
+        return add(new Write(key, null, 0));
+    }
+
+    /**
+     * @param content the content as written to spoke, which is written to S3 without reading it back.
+     *                Once s3.writeQueueContentBytes are held, only the key is queued.
+     */
+    public boolean add(ChannelContentKey key, Content content) {
+        byte[] data = content.getData();
+        if (data == null || contentBytes.addAndGet(data.length) > CONTENT_BYTES) {
+            if (data != null) {
+                contentBytes.addAndGet(-data.length);
+            }
+            metricsService.increment("s3.writeQueue.keyOnly");
+            return add(key);
+        }
+        Write write = new Write(key, content, data.length);
+        write.packaged = true;
+        return add(write);
+    }
+
+    /**
+     * @return false if the write was dropped, true if it was queued or spilled to the journal
+     */
+    private boolean add(Write write) {
+        if (journal != null) {
+            write.segment = journal.append(write.key);
+        }
+        boolean value = writes.offer(write);
         if (value) {
-            metricsService.gauge("s3.writeQueue.used", keys.size());
-            metricsService.count("s3.writeQueue.age.added", key.getAgeMS());
+            metricsService.gauge("s3.writeQueue.used", writes.size());
+            metricsService.count("s3.writeQueue.age.added", write.key.getAgeMS());
         } else {
-            logger.warn("Add to queue failed - out of queue space. key= {}", key);
-            metricsService.increment("s3.writeQueue.dropped");
+            logger.warn("Add to queue failed - out of queue space. key= {}", write.key);
+            value = overflow(write);
         }
         return value;
     }
 
+    /**
+     * A retried write counts its content against s3.writeQueueContentBytes again while it waits,
+     * or if that is full, drops its content so it is read from spoke when it is next dispatched.
+     */
+    private void reserve(Write write) {
+        byte[] data = write.content == null ? null : write.content.getData();
+        if (data == null) {
+            return;
+        }
+        if (contentBytes.addAndGet(data.length) > CONTENT_BYTES) {
+            contentBytes.addAndGet(-data.length);
+            write.content = null;
+            write.packaged = false;
+            metricsService.increment("s3.writeQueue.keyOnly");
+            return;
+        }
+        write.bytes = data.length;
+    }
+
+    long getContentBytes() {
+        return contentBytes.get();
+    }
+
+    /**
+     * The content bytes of a write are released once it leaves the queue, as the put pool bounds the writes in flight.
+     */
+    private void release(Write write) {
+        if (write.bytes > 0) {
+            contentBytes.addAndGet(-write.bytes);
+            write.bytes = 0;
+        }
+    }
+
     public void close() {
         int count = 0;
-        while (keys.size() > 0) {
+        while (writes.size() > 0 || putPool.getActiveCount() > 0) {
             count++;
-            logger.info("waiting for keys {}", keys.size());
+            logger.info("waiting for keys {}", writes.size());
             if (count >= 60) {
-                logger.warn("waited too long for keys {}", keys.size());
+                logger.warn("waited too long for keys {}", writes.size());
                 return;
             }
             Sleeper.sleepQuietly(1000);
         }
-        executorService.shutdown();
+        dispatcher.shutdown();
+        putPool.shutdown();
+        retries.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
     }
 
-    private Retryer<Void> buildRetryer() {
-        return RetryerBuilder.<Void>newBuilder()
-                .retryIfException(throwable -> {
-                    if (throwable != null) {
-                        logger.warn("unable to write to S3 " + throwable.getMessage());
-                    }
-                    return throwable != null;
-                })
-                .withWaitStrategy(WaitStrategies.exponentialWait(1000, 1, TimeUnit.MINUTES))
-                .withStopStrategy(StopStrategies.stopAfterAttempt(3))
-                .build();
+    private static class Write {
+        private final ChannelContentKey key;
+        private Content content;
+        private long bytes;
+        private boolean packaged;
+        private int attempts;
+        private S3WriteJournal.Segment segment;
+
+        private Write(ChannelContentKey key, Content content, long bytes) {
+            this.key = key;
+            this.content = content;
+            this.bytes = bytes;
+        }
     }
 }
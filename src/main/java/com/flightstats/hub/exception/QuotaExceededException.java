@@ -0,0 +1,10 @@
+package com.flightstats.hub.exception;
+
+public class QuotaExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
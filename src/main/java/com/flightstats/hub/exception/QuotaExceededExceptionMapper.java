@@ -0,0 +1,27 @@
+package com.flightstats.hub.exception;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.util.AbstractExceptionMapper;
+import com.google.inject.Singleton;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+@Provider
+@Singleton
+public class QuotaExceededExceptionMapper extends AbstractExceptionMapper<QuotaExceededException> {
+
+    private static final int RETRY_AFTER_SECONDS = HubProperties.getProperty("spoke.quota.retryAfterSeconds", 60);
+
+    @Override
+    public Response toResponse(QuotaExceededException exception) {
+        return Response.fromResponse(super.toResponse(exception))
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .build();
+    }
+
+    protected Response.Status getResponseCode() {
+        return Response.Status.TOO_MANY_REQUESTS;
+    }
+}
@@ -5,6 +5,10 @@ import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
 import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
 import com.sun.jersey.client.urlconnection.HTTPSProperties;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,4 +81,32 @@ public class RestClient {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Creates a started, non-blocking client which keeps pooled connections alive to each destination.
+     * Responses are handled on the client's own bounded, daemon thread pool.
+     * Requests waiting for a connection beyond maxRequestsQueuedPerDestination are failed immediately.
+     */
+    public static HttpClient createAsyncClient(String name, int connectTimeout, int idleTimeout,
+                                               int maxConnectionsPerDestination, int maxRequestsQueuedPerDestination,
+                                               int maxThreads) {
+        try {
+            HttpClient client = new HttpClient(new SslContextFactory(true));
+            QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, Math.min(8, maxThreads));
+            threadPool.setName(name);
+            threadPool.setDaemon(true);
+            client.setExecutor(threadPool);
+            client.setScheduler(new ScheduledExecutorScheduler(name + "-scheduler", true));
+            client.setConnectTimeout(TimeUnit.SECONDS.toMillis(connectTimeout));
+            client.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeout));
+            client.setMaxConnectionsPerDestination(maxConnectionsPerDestination);
+            client.setMaxRequestsQueuedPerDestination(maxRequestsQueuedPerDestination);
+            client.setFollowRedirects(false);
+            client.start();
+            return client;
+        } catch (Exception e) {
+            logger.warn("can't create async client " + name, e);
+            throw new RuntimeException(e);
+        }
+    }
 }
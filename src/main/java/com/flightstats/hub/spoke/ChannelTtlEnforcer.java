@@ -5,7 +5,7 @@ import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.dao.TtlEnforcer;
 import com.flightstats.hub.model.ChannelConfig;
-import com.flightstats.hub.util.Commander;
+import com.flightstats.hub.util.DirectoryPurger;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.inject.Inject;
@@ -14,6 +14,7 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -23,6 +24,10 @@ public class ChannelTtlEnforcer {
     private final String spokePath = HubProperties.getSpokePath(SpokeStore.WRITE);
     @Inject
     private ChannelService channelService;
+    @Inject
+    private DirectoryPurger purger;
+    @Inject
+    private SpokeContentDao spokeContentDao;
 
     @Inject
     public ChannelTtlEnforcer() {
@@ -34,22 +39,28 @@ public class ChannelTtlEnforcer {
     private Consumer<ChannelConfig> handleCleanup() {
         return channel -> {
             if (channel.getTtlDays() > 0) {
-                String channelPath = spokePath + "/" + channel.getDisplayName();
                 DateTime channelTTL = TimeUtil.stable().minusDays((int) channel.getTtlDays());
                 for (int i = 0; i < 3; i++) {
-                    Commander.run(new String[]{"rm", "-rf", channelPath + "/" + TimeUtil.days(channelTTL.minusDays(i))}, 1);
+                    String dayPath = channel.getDisplayName() + "/" + TimeUtil.days(channelTTL.minusDays(i));
+                    purger.delete(spokePath + "/" + dayPath);
+                    getUsage().remove(dayPath);
                 }
             }
         };
     }
 
+    private SpokeUsage getUsage() {
+        return spokeContentDao.getUsage(SpokeStore.WRITE);
+    }
+
     private class ChannelTtlEnforcerService extends AbstractScheduledService {
         @Override
         protected void runOneIteration() throws Exception {
             try {
                 long start = System.currentTimeMillis();
                 logger.info("running channel cleanup");
-                TtlEnforcer.enforce(spokePath, channelService, handleCleanup());
+                TtlEnforcer.enforce(spokePath, channelService, purger, handleCleanup());
+                getUsage().retainChannels(channel -> new File(spokePath, channel).exists());
                 logger.info("completed channel cleanup {}", (System.currentTimeMillis() - start));
             } catch (Exception e) {
                 logger.info("issue cleaning up channels in spoke", e);
@@ -0,0 +1,61 @@
+package com.flightstats.hub.spoke;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reuses direct buffers, in power of two sizes, so payloads held outside the heap do not allocate a new direct
+ * buffer for each item, which is slow and is only freed by a full collection.
+ * Up to maxBytes of released buffers are held for reuse.  Buffers are acquired and released once per item,
+ * so access is simply synchronized.
+ */
+class DirectBufferPool {
+
+    private static final int MIN_SIZE = 64;
+
+    private final long maxBytes;
+    private final Map<Integer, Deque<ByteBuffer>> buffers = new HashMap<>();
+    private long pooled;
+
+    DirectBufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a buffer positioned at zero with a limit of length, and a capacity of the size class
+     */
+    synchronized ByteBuffer acquire(int length) {
+        int size = getSize(length);
+        Deque<ByteBuffer> queue = buffers.get(size);
+        ByteBuffer buffer = queue == null ? null : queue.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            pooled -= size;
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * The buffer can not be used once released.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (pooled + buffer.capacity() > maxBytes) {
+            return;
+        }
+        pooled += buffer.capacity();
+        buffers.computeIfAbsent(buffer.capacity(), size -> new ArrayDeque<>()).addFirst(buffer);
+    }
+
+    synchronized long getPooledBytes() {
+        return pooled;
+    }
+
+    static int getSize(int length) {
+        return Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    }
+}
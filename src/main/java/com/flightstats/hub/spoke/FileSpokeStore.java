@@ -1,104 +1,232 @@
 package com.flightstats.hub.spoke;
 
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.model.ChannelContentKey;
 import com.flightstats.hub.model.ContentKey;
-import com.flightstats.hub.model.MinutePath;
 import com.flightstats.hub.util.TimeUtil;
+import com.flightstats.hub.util.WriteActivity;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AbstractScheduledService;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.NotFoundException;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
- * Direct interactions with the file system
+ * Direct interactions with the file system, storing each item in its own file.
  */
-public class FileSpokeStore {
+public class FileSpokeStore implements LocalSpokeStore {
 
     private final static Logger logger = LoggerFactory.getLogger(FileSpokeStore.class);
+    static final String USAGE_FILE = ".usage";
+    static final String TEMP_DIR = ".tmp";
+
     private final String spokePath;
     private final int spokeTtlMinutes;
+    private final SpokeUsage usage = new SpokeUsage();
+    private final File usageFile;
+    private final File tempDir;
+    private final SpokeDurability durability;
+    private final WriteActivity writeActivity;
 
     public FileSpokeStore(String spokePath, int spokeTtlMinutes) {
+        this(spokePath, spokeTtlMinutes, SpokeDurability.none());
+    }
+
+    public FileSpokeStore(String spokePath, int spokeTtlMinutes, SpokeDurability durability) {
+        this(spokePath, spokeTtlMinutes, durability, new WriteActivity());
+    }
+
+    public FileSpokeStore(String spokePath, int spokeTtlMinutes, SpokeDurability durability, WriteActivity writeActivity) {
         this.spokePath = StringUtils.appendIfMissing(spokePath, "/");
         this.spokeTtlMinutes = spokeTtlMinutes;
-        logger.info("starting with storage path " + this.spokePath);
+        this.durability = durability;
+        this.writeActivity = writeActivity;
+        logger.info("starting with storage path {} durability {}", this.spokePath, durability.getMode());
+        tempDir = new File(this.spokePath + TEMP_DIR);
+        FileUtils.deleteQuietly(tempDir);
+        if (!tempDir.mkdirs()) {
+            throw new RuntimeException("unable to create temp directory " + tempDir);
+        }
+        usageFile = new File(this.spokePath + USAGE_FILE);
+        boolean usageComplete;
+        if (usage.load(usageFile)) {
+            usageComplete = rescanSince(usageFile.lastModified());
+            if (!usageComplete) {
+                usage.retainChannels(channel -> false);
+            }
+        } else {
+            usageComplete = isEmpty();
+        }
+        usage.setComplete(usageComplete);
         if (!insert("hub-startup/" + new ContentKey().toUrl(), ("" + System.currentTimeMillis()).getBytes())) {
             throw new RuntimeException("unable to create startup file");
         }
-        File file = spokeFilePathPart("hub-startup/" + new ContentKey().toUrl());
-        if (file.canExecute()) {
-            logger.warn("**** Spoke file permissions may allow incomplete reads ****");
-        }
+        HubServices.register(new UsageService(!usageComplete));
     }
 
-    public boolean insert(String path, byte[] payload) {
-        return insert(path, new ByteArrayInputStream(payload));
+    /**
+     * Items are written to a temp file in the store, and then renamed into place,
+     * so readers only ever see complete items.
+     */
+    @Override
+    public boolean insert(String path, InputStream input) {
+        Set<Path> directories = new HashSet<>();
+        return write(path, input, directories) && syncDirectories(directories);
     }
 
-    public boolean insert(String path, InputStream input) {
+    /**
+     * Each item is renamed into place as it is read, and each directory the batch wrote into is synced once at the end.
+     */
+    @Override
+    public boolean insert(String channel, SpokeBulk.Reader bulk) throws IOException {
+        Set<Path> directories = new HashSet<>();
+        while (bulk.next()) {
+            if (!write(channel + "/" + bulk.getKey(), bulk.getData(), directories)) {
+                return false;
+            }
+        }
+        return syncDirectories(directories);
+    }
+
+    private boolean write(String path, InputStream input, Set<Path> directories) {
         File file = spokeFilePathPart(path);
-        logger.trace("insert {} {} {}", file, file.getParentFile().mkdirs(), file.canExecute());
-        try (FileOutputStream output = new FileOutputStream(file)) {
-            long copy = ByteStreams.copy(input, output);
-            boolean setExecutable = file.setExecutable(true);
-            logger.trace("copied {} {} {}", file, copy, setExecutable);
+        logger.trace("insert {} {}", file, file.getParentFile().mkdirs());
+        long existing = file.length();
+        File temp = null;
+        long writeStart = writeActivity.started();
+        try {
+            temp = File.createTempFile("spoke", null, tempDir);
+            long copy;
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                copy = ByteStreams.copy(input, output);
+                if (durability.isItem()) {
+                    output.getFD().sync();
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (!durability.isItem()) {
+                Path filePath = file.toPath();
+                durability.schedule(filePath, () -> SpokeDurability.sync(filePath));
+            }
+            directories.add(file.getParentFile().toPath());
+            logger.trace("copied {} {}", file, copy);
+            updateUsage(path, existing, copy);
             return true;
         } catch (IOException e) {
             logger.info("unable to write to " + path, e);
+            FileUtils.deleteQuietly(temp);
             return false;
+        } finally {
+            writeActivity.completed(writeStart);
         }
     }
 
-    public byte[] read(String path) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        read(path, baos);
-        return baos.toByteArray();
+    private boolean syncDirectories(Set<Path> directories) {
+        for (Path directory : directories) {
+            if (durability.isItem()) {
+                try {
+                    SpokeDurability.sync(directory);
+                } catch (IOException e) {
+                    logger.info("unable to sync " + directory, e);
+                    return false;
+                }
+            } else {
+                durability.schedule(directory, () -> SpokeDurability.sync(directory));
+            }
+        }
+        return true;
     }
 
+    @Override
     public void read(String path, OutputStream output) {
+        try (SpokeRegion region = openRegion(path)) {
+            region.send(output);
+        } catch (IOException e) {
+            logger.info("unable to read from " + path, e);
+        }
+    }
+
+    @Override
+    public SpokeRegion openRegion(String path) {
         File file = spokeFilePathPart(path);
         logger.trace("reading {}", file);
-        if (!file.exists()) {
-            throw new NotFoundException("not found " + path);
-        }
-        if (!file.canExecute()) {
-            logger.warn("incomplete file {}", path);
-            throw new NotFoundException("incomplete file " + path);
-        }
-        try (FileInputStream input = new FileInputStream(file)) {
-            ByteStreams.copy(input, output);
-        } catch (FileNotFoundException e) {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return new SpokeRegion(channel, 0, channel.size());
+        } catch (FileSystemException e) {
             logger.debug("file not found {}", path);
+            throw new NotFoundException("not found " + path);
         } catch (IOException e) {
             logger.info("unable to read from " + path, e);
+            throw new NotFoundException("unable to read " + path);
         }
     }
 
-    public String readKeysInBucket(String path) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        keysInBucket(path, baos);
-        return baos.toString();
-    }
-
-    void readKeysInBucket(String path, OutputStream output) {
-        keysInBucket(path, output);
+    @Override
+    public void readKeysInBucket(String path, SpokeKeyWriter writer) {
+        keysInBucket(path, writer);
     }
 
+    @Override
     public boolean delete(String path) throws Exception {
         FileUtils.deleteDirectory(new File(spokePath + path));
+        usage.remove(path);
         return true;
     }
 
+    @Override
     public boolean deleteFile(String path) throws Exception {
-        return FileUtils.deleteQuietly(spokeFilePathPart(path));
+        File file = spokeFilePathPart(path);
+        long length = file.length();
+        if (FileUtils.deleteQuietly(file)) {
+            updateUsage(path, length, -1);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public SpokeUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @param existing the length of the file before this change, zero if it did not exist
+     * @param written  the length written, or -1 if the file was deleted
+     */
+    private void updateUsage(String path, long existing, long written) {
+        try {
+            ChannelContentKey channelKey = ChannelContentKey.fromChannelPath(path);
+            if (existing > 0) {
+                usage.remove(channelKey.getChannel(), channelKey.getContentKey(), existing);
+            }
+            if (written >= 0) {
+                usage.add(channelKey.getChannel(), channelKey.getContentKey(), written);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.debug("unable to track usage of {}", path);
+        }
     }
 
     // given a url containing a key, return the file format
@@ -136,7 +264,7 @@ public class FileSpokeStore {
         return path;
     }
 
-    private void keysInBucket(String key, OutputStream output) {
+    private void keysInBucket(String key, SpokeKeyWriter writer) {
         String path = spokeFilePathPart(key).getAbsolutePath();
         logger.trace("path {}", path);
         String resolution = SpokePathUtil.smallestTimeResolution(key);
@@ -158,26 +286,32 @@ public class FileSpokeStore {
                 String filePath = aFile.getPath();
                 logger.trace("filePath {}", filePath);
                 String keyFromPath = spokeKeyFromPath(aFile.getAbsolutePath());
-                writeKey(output, keyFromPath);
+                String channel = StringUtils.substringBefore(keyFromPath, "/");
+                writeKey(writer, channel, StringUtils.substringAfter(keyFromPath, "/"));
             }
         } catch (Exception e) {
             logger.info("error with " + path, e);
         }
     }
 
-    private void writeKey(OutputStream output, String keyFromPath) throws IOException {
-        output.write(keyFromPath.getBytes());
-        output.write(",".getBytes());
+    private void writeKey(SpokeKeyWriter writer, String channel, String keyPath) throws IOException {
+        Optional<ContentKey> key = ContentKey.fromUrl(keyPath);
+        if (key.isPresent()) {
+            writer.write(channel, key.get());
+        } else {
+            logger.info("unexpected file {}/{}", channel, keyPath);
+        }
     }
 
     @VisibleForTesting
     Collection<String> keysInBucket(String key) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        keysInBucket(key, baos);
+        keysInBucket(key, SpokeKeys.csv(baos));
         String[] split = baos.toString().split(",");
         return Arrays.asList(split);
     }
 
+    @Override
     public String getLatest(String channel, String limitPath) {
         logger.trace("latest {} {}", channel, limitPath);
         ContentKey limitKey = ContentKey.fromUrl(limitPath).get();
@@ -216,40 +350,49 @@ public class FileSpokeStore {
     }
 
     /**
-     * This may return more than the request count, as this does not do any sorting.
+     * Only the minutes with items are read, once the usage is complete.  Until then, this walks every minute.
      */
-    public void getNext(String channel, String startKey, int count, OutputStream output) throws IOException {
+    @Override
+    public void getNext(String channel, String startKey, int count, SpokeKeyWriter writer) throws IOException {
         DateTime now = TimeUtil.now();
-        String channelPath = spokePath + channel + "/";
         logger.trace("next {} {} {}", channel, startKey, now);
         ContentKey start = ContentKey.fromUrl(startKey).get();
+        DateTime startMinute = TimeUtil.Unit.MINUTES.round(start.getTime());
         int found = 0;
-        MinutePath minutePath = new MinutePath(start.getTime());
-        boolean firstMinute = true;
-        do {
-            //todo gfm - while this fast for short time ranges, it is quite slow over years
-            String minuteUrl = minutePath.toUrl();
-            String minute = channelPath + minuteUrl;
-            logger.trace("minute {}", minute);
-            String[] items = new File(minute).list();
-            if (items != null) {
-                for (String item : items) {
-                    String keyFromPath = spokeKeyFromPath(minuteUrl + "/" + item);
-                    if (firstMinute) {
-                        ContentKey key = ContentKey.fromUrl(keyFromPath).get();
-                        if (key.compareTo(start) > 0) {
-                            found++;
-                            writeKey(output, channel + "/" + keyFromPath);
-                        }
-                    } else {
-                        found++;
-                        writeKey(output, channel + "/" + keyFromPath);
-                    }
+        if (usage.isComplete()) {
+            for (SpokeUsage.Summary minute : usage.getMinutes(channel, startMinute.getMillis(), now.getMillis(), false)) {
+                if (found >= count) {
+                    return;
                 }
+                found += writeMinute(channel, new DateTime(minute.getMillis(), DateTimeZone.UTC), start, writer);
             }
-            minutePath = new MinutePath(minutePath.getTime().plusMinutes(1));
-            firstMinute = false;
-        } while (found < count && minutePath.getTime().isBefore(now));
+            return;
+        }
+        DateTime minute = startMinute;
+        do {
+            found += writeMinute(channel, minute, start, writer);
+            minute = minute.plusMinutes(1);
+        } while (found < count && minute.isBefore(now));
+    }
+
+    /**
+     * @return the number of keys after the start written from the minute
+     */
+    private int writeMinute(String channel, DateTime minute, ContentKey start, SpokeKeyWriter writer) throws IOException {
+        String minuteUrl = TimeUtil.minutes(minute);
+        String[] items = new File(spokePath + channel + "/" + minuteUrl).list();
+        if (items == null) {
+            return 0;
+        }
+        int found = 0;
+        for (String item : items) {
+            ContentKey key = ContentKey.fromUrl(spokeKeyFromPath(minuteUrl + "/" + item)).get();
+            if (key.compareTo(start) > 0) {
+                found++;
+                writer.write(channel, key);
+            }
+        }
+        return found;
     }
 
     void enforceTtl(String channel, DateTime dateTime) {
@@ -281,9 +424,110 @@ public class FileSpokeStore {
                 } else {
                     logger.info("deleting {}", spokePath + "/" + current);
                     FileUtils.deleteQuietly(new File(spokePath + "/" + current));
+                    usage.remove(current);
                 }
             }
         }
     }
 
+    /**
+     * Rebuilds usage by walking the store, for when no saved usage exists.
+     * Walked minutes replace the minutes tracked since startup, which also holds any items written before the walk,
+     * and the minutes since the walk started are then rescanned, so items written during the walk are counted once.
+     */
+    void rebuildUsage() {
+        long start = System.currentTimeMillis();
+        SpokeUsage rebuilt = new SpokeUsage();
+        try (Stream<Path> paths = Files.walk(new File(spokePath).toPath())) {
+            paths.filter(path -> Files.isRegularFile(path) && !spokeKeyFromPath(path.toString()).startsWith("."))
+                    .forEach(path -> {
+                        String keyPath = spokeKeyFromPath(path.toString());
+                        try {
+                            ChannelContentKey channelKey = ChannelContentKey.fromChannelPath(keyPath);
+                            rebuilt.add(channelKey.getChannel(), channelKey.getContentKey(), path.toFile().length());
+                        } catch (IllegalArgumentException e) {
+                            logger.debug("ignoring unexpected file {}", path);
+                        }
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("unable to rebuild usage for " + spokePath, e);
+            return;
+        }
+        usage.replace(rebuilt);
+        rescanSince(start);
+        usage.setComplete(true);
+        logger.info("rebuilt usage for {} items in {} ms", rebuilt.getItems(), System.currentTimeMillis() - start);
+    }
+
+    private boolean isEmpty() {
+        String[] names = new File(spokePath).list();
+        return names == null || Arrays.stream(names).allMatch(name -> name.startsWith("."));
+    }
+
+    /**
+     * Items written after the usage file was last saved, before an unclean shutdown, are not in the saved usage.
+     * The minutes since the save are rescanned from disk, unless the save is older than the ttl.
+     *
+     * @return false if the saved usage is too old, and needs a full rebuild
+     */
+    private boolean rescanSince(long savedMillis) {
+        DateTime now = TimeUtil.now();
+        DateTime minute = TimeUtil.Unit.MINUTES.round(new DateTime(savedMillis, DateTimeZone.UTC).minusMinutes(2));
+        if (minute.isBefore(now.minusMinutes(spokeTtlMinutes))) {
+            return false;
+        }
+        String[] channels = new File(spokePath).list();
+        if (channels == null) {
+            return true;
+        }
+        SpokeUsage rescanned = new SpokeUsage();
+        for (; !minute.isAfter(now); minute = minute.plusMinutes(1)) {
+            String minuteUrl = TimeUtil.minutes(minute);
+            for (String channel : channels) {
+                File[] files = new File(spokePath + channel + "/" + minuteUrl).listFiles();
+                if (channel.startsWith(".") || files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    ContentKey.fromUrl(spokeKeyFromPath(minuteUrl + "/" + file.getName())).toJavaUtil()
+                            .ifPresent(key -> rescanned.add(channel, key, file.length()));
+                }
+            }
+        }
+        usage.replace(rescanned);
+        logger.info("rescanned {} items written since {}", rescanned.getItems(), new DateTime(savedMillis));
+        return true;
+    }
+
+    private class UsageService extends AbstractScheduledService {
+        private boolean rebuild;
+
+        private UsageService(boolean rebuild) {
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                if (rebuild) {
+                    rebuild = false;
+                    rebuildUsage();
+                }
+                usage.save(usageFile);
+            } catch (Exception e) {
+                logger.warn("unable to save usage to " + usageFile, e);
+            }
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            usage.save(usageFile);
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.MINUTES);
+        }
+    }
+
 }
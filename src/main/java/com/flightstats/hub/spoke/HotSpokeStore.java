@@ -0,0 +1,440 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the newest minutes of each channel written to a LocalSpokeStore in memory, so reads and key listings of
+ * recent items do not open files.  Writes go to the store first, and then to memory.
+ * Up to maxKeys keys in the newest minutes are held, with the payloads of items up to maxItemBytes, oldest payloads
+ * dropping first once maxBytes is held.  Key listings are served from memory for minutes which are entirely within
+ * the window and were written after this started.  A failed bulk write may have written any of its items, and keys
+ * beyond maxKeys are not held, so listings of the minutes they touched are served from the store until they leave
+ * the window.  Off heap payloads are held in pooled direct buffers, counted by buffer size, which are reused once
+ * no reader holds them.  Up to a quarter of maxBytes of released buffers are kept for reuse.
+ */
+public class HotSpokeStore implements LocalSpokeStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(HotSpokeStore.class);
+
+    private final LocalSpokeStore store;
+    private final int minutes;
+    private final long maxBytes;
+    private final int maxItemBytes;
+    private final int maxKeys;
+    private final DirectBufferPool pool;
+    private final long startMillis;
+    private final Map<String, NavigableMap<ContentKey, Item>> channels = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> incompleteMinutes = new ConcurrentHashMap<>();
+    private final Queue<ChannelContentKey> payloads = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger keys = new AtomicInteger();
+
+    public static HotSpokeStore create(LocalSpokeStore store) {
+        return new HotSpokeStore(store,
+                HubProperties.getProperty("spoke.hot.minutes", 5),
+                HubProperties.getProperty("spoke.hot.maxMegaBytes", 256) * 1024L * 1024L,
+                HubProperties.getProperty("spoke.hot.maxItemBytes", 64 * 1024),
+                HubProperties.getProperty("spoke.hot.maxKeys", 500_000),
+                HubProperties.getProperty("spoke.hot.offHeap", false));
+    }
+
+    HotSpokeStore(LocalSpokeStore store, int minutes, long maxBytes, int maxItemBytes, int maxKeys, boolean offHeap) {
+        this.store = store;
+        this.minutes = minutes;
+        this.maxBytes = maxBytes;
+        this.maxItemBytes = maxItemBytes;
+        this.maxKeys = maxKeys;
+        this.pool = offHeap ? new DirectBufferPool(maxBytes / 4) : null;
+        this.startMillis = TimeUtil.Unit.MINUTES.round(TimeUtil.now()).plusMinutes(1).getMillis();
+        logger.info("holding {} minutes in memory, up to {} bytes and {} keys, offHeap {}",
+                minutes, maxBytes, maxKeys, offHeap);
+        HubServices.register(new HotSpokeStoreService());
+    }
+
+    @Override
+    public boolean insert(String path, InputStream input) {
+        try {
+            InputStream limited = ByteStreams.limit(input, maxItemBytes + 1);
+            byte[] head = ByteStreams.toByteArray(limited);
+            if (head.length > maxItemBytes) {
+                if (store.insert(path, new SequenceInputStream(new ByteArrayInputStream(head), input))) {
+                    add(path, null);
+                    return true;
+                }
+                return false;
+            }
+            if (store.insert(path, head)) {
+                add(path, head);
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            logger.warn("unable to insert " + path, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean insert(String channel, SpokeBulk.Reader bulk) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        bulk.capture(maxItemBytes, (key, bytes) -> {
+            keys.add(key);
+            data.add(bytes);
+        });
+        boolean inserted = false;
+        try {
+            inserted = store.insert(channel, bulk);
+            return inserted;
+        } finally {
+            if (inserted) {
+                for (int i = 0; i < keys.size(); i++) {
+                    add(channel + "/" + keys.get(i), data.get(i));
+                }
+            } else {
+                markIncomplete(channel, keys);
+            }
+        }
+    }
+
+    /**
+     * The store does not report which items of a failed bulk write reached it, so none of them are held,
+     * and listings of their minutes fall back to the store.
+     */
+    private void markIncomplete(String channel, List<String> keys) {
+        for (String key : keys) {
+            Optional<ContentKey> contentKey = ContentKey.fromUrl(key);
+            if (contentKey.isPresent()) {
+                markIncomplete(channel, contentKey.get());
+            }
+        }
+        logger.info("bulk write to {} failed, listing its minutes from the store", channel);
+    }
+
+    private void markIncomplete(String channel, ContentKey key) {
+        incompleteMinutes.computeIfAbsent(channel, name -> ConcurrentHashMap.newKeySet())
+                .add(TimeUtil.Unit.MINUTES.round(key.getTime()).getMillis());
+    }
+
+    @Override
+    public void read(String path, OutputStream output) {
+        SpokeRegion held = openHeld(path);
+        if (held == null) {
+            store.read(path, output);
+            return;
+        }
+        try (SpokeRegion region = held) {
+            region.send(output);
+        } catch (IOException e) {
+            logger.info("unable to read from " + path, e);
+        }
+    }
+
+    @Override
+    public SpokeRegion openRegion(String path) {
+        SpokeRegion held = openHeld(path);
+        return held == null ? store.openRegion(path) : held;
+    }
+
+    /**
+     * The payload is held until the region is closed, so a pooled buffer is not reused while it is being sent.
+     *
+     * @return null if the payload is not held in memory
+     */
+    private SpokeRegion openHeld(String path) {
+        Item item = get(path);
+        if (item == null || item.payload == null || !item.retain()) {
+            return null;
+        }
+        return new SpokeRegion(item.payload, () -> unreference(item));
+    }
+
+    @Override
+    public void readKeysInBucket(String path, SpokeKeyWriter writer) {
+        String[] split = StringUtils.split(path, "/");
+        NavigableMap<ContentKey, Item> items = split.length > 5 ? channels.get(split[0]) : null;
+        if (items == null) {
+            store.readKeysInBucket(path, writer);
+            return;
+        }
+        DateTime[] bucket = SpokePathUtil.timeBucket(split);
+        Set<Long> incomplete = incompleteMinutes.get(split[0]);
+        if (bucket[0].getMillis() < getCompleteMillis()
+                || (incomplete != null && incomplete.contains(TimeUtil.Unit.MINUTES.round(bucket[0]).getMillis()))) {
+            store.readKeysInBucket(path, writer);
+            return;
+        }
+        try {
+            for (ContentKey key : items.subMap(first(bucket[0]), true, first(bucket[1]), false).keySet()) {
+                writer.write(split[0], key);
+            }
+        } catch (IOException e) {
+            logger.warn("unable to write keys " + path, e);
+        }
+    }
+
+    @Override
+    public boolean delete(String path) throws Exception {
+        String[] split = StringUtils.split(path, "/");
+        if (split.length > 0) {
+            NavigableMap<ContentKey, Item> items = channels.get(split[0]);
+            if (items != null) {
+                NavigableMap<ContentKey, Item> deleted = items;
+                if (split.length > 1) {
+                    DateTime[] bucket = SpokePathUtil.timeBucket(split);
+                    deleted = items.subMap(first(bucket[0]), true, first(bucket[1]), false);
+                }
+                release(deleted);
+            }
+        }
+        return store.delete(path);
+    }
+
+    @Override
+    public boolean deleteFile(String path) throws Exception {
+        Optional<ChannelContentKey> channelKey = parse(path);
+        if (channelKey.isPresent()) {
+            NavigableMap<ContentKey, Item> items = channels.get(channelKey.get().getChannel());
+            Item item = items == null ? null : items.remove(channelKey.get().getContentKey());
+            if (item != null) {
+                keys.decrementAndGet();
+                release(item);
+            }
+        }
+        return store.deleteFile(path);
+    }
+
+    @Override
+    public String getLatest(String channel, String limitPath) {
+        return store.getLatest(channel, limitPath);
+    }
+
+    @Override
+    public void getNext(String channel, String startKey, int count, SpokeKeyWriter writer) throws IOException {
+        store.getNext(channel, startKey, count, writer);
+    }
+
+    @Override
+    public SpokeUsage getUsage() {
+        return store.getUsage();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    int getKeys() {
+        return keys.get();
+    }
+
+    /**
+     * Minutes starting at or after this hold every key in memory.
+     * One minute of margin is left before the oldest minute held, so a sweep does not race a listing.
+     */
+    private long getCompleteMillis() {
+        long windowMillis = TimeUtil.Unit.MINUTES.round(TimeUtil.now()).minusMinutes(minutes - 1).getMillis();
+        return Math.max(startMillis, windowMillis);
+    }
+
+    private Item get(String path) {
+        Optional<ChannelContentKey> channelKey = parse(path);
+        if (!channelKey.isPresent()) {
+            return null;
+        }
+        NavigableMap<ContentKey, Item> items = channels.get(channelKey.get().getChannel());
+        return items == null ? null : items.get(channelKey.get().getContentKey());
+    }
+
+    private void add(String path, byte[] data) {
+        Optional<ChannelContentKey> channelKey = parse(path);
+        if (!channelKey.isPresent()) {
+            return;
+        }
+        ContentKey key = channelKey.get().getContentKey();
+        if (key.getMillis() < TimeUtil.Unit.MINUTES.round(TimeUtil.now()).minusMinutes(minutes).getMillis()) {
+            return;
+        }
+        NavigableMap<ContentKey, Item> items = channels.computeIfAbsent(channelKey.get().getChannel(),
+                name -> new ConcurrentSkipListMap<>());
+        if (!items.containsKey(key) && keys.get() >= maxKeys) {
+            markIncomplete(channelKey.get().getChannel(), key);
+            return;
+        }
+        ByteBuffer payload = null;
+        int charged = 0;
+        if (data != null) {
+            if (pool != null) {
+                payload = pool.acquire(data.length);
+                payload.put(data).flip();
+                charged = payload.capacity();
+            } else {
+                payload = ByteBuffer.wrap(data);
+                charged = data.length;
+            }
+        }
+        Item previous = items.put(key, new Item(payload, charged));
+        if (previous == null) {
+            keys.incrementAndGet();
+        } else {
+            release(previous);
+        }
+        if (payload != null) {
+            bytes.addAndGet(charged);
+            payloads.add(channelKey.get());
+            while (bytes.get() > maxBytes && dropOldestPayload()) {
+                logger.trace("dropped oldest payload");
+            }
+        }
+    }
+
+    /**
+     * Keeps the key, so listings of its minute are still complete.
+     */
+    private boolean dropOldestPayload() {
+        ChannelContentKey oldest = payloads.poll();
+        if (oldest == null) {
+            return false;
+        }
+        NavigableMap<ContentKey, Item> items = channels.get(oldest.getChannel());
+        if (items != null) {
+            Item item = items.get(oldest.getContentKey());
+            if (item != null && item.payload != null && items.replace(oldest.getContentKey(), item, new Item(null, 0))) {
+                release(item);
+            }
+        }
+        return true;
+    }
+
+    private void release(Item item) {
+        bytes.addAndGet(-item.charged);
+        unreference(item);
+    }
+
+    private void unreference(Item item) {
+        if (item.references.decrementAndGet() == 0 && pool != null && item.payload != null) {
+            pool.release(item.payload);
+        }
+    }
+
+    /**
+     * Drops the keys and payloads older than the window.
+     */
+    void sweep() {
+        ContentKey oldest = first(TimeUtil.Unit.MINUTES.round(TimeUtil.now()).minusMinutes(minutes));
+        for (Map.Entry<String, NavigableMap<ContentKey, Item>> entry : channels.entrySet()) {
+            release(entry.getValue().headMap(oldest, false));
+            if (entry.getValue().isEmpty()) {
+                channels.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        payloads.removeIf(channelKey -> channelKey.getContentKey().compareTo(oldest) < 0);
+        for (Map.Entry<String, Set<Long>> entry : incompleteMinutes.entrySet()) {
+            entry.getValue().removeIf(minute -> minute < oldest.getMillis());
+            if (entry.getValue().isEmpty()) {
+                incompleteMinutes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the items, releasing their payloads.
+     */
+    private void release(NavigableMap<ContentKey, Item> items) {
+        for (Map.Entry<ContentKey, Item> entry = items.pollFirstEntry(); entry != null; entry = items.pollFirstEntry()) {
+            keys.decrementAndGet();
+            release(entry.getValue());
+        }
+    }
+
+    private static ContentKey first(DateTime time) {
+        return new ContentKey(time, "");
+    }
+
+    private static Optional<ChannelContentKey> parse(String path) {
+        String[] split = StringUtils.split(path, "/", 2);
+        if (split.length < 2) {
+            return Optional.absent();
+        }
+        Optional<ContentKey> key = ContentKey.fromUrl(split[1]);
+        if (!key.isPresent()) {
+            return Optional.absent();
+        }
+        return Optional.of(new ChannelContentKey(split[0], key.get()));
+    }
+
+    /**
+     * The store holds one reference to an item, and each open region of its payload holds another.
+     */
+    private static class Item {
+        private final ByteBuffer payload;
+        private final int charged;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Item(ByteBuffer payload, int charged) {
+            this.payload = payload;
+            this.charged = charged;
+        }
+
+        /**
+         * @return false if the item has already been released
+         */
+        private boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private class HotSpokeStoreService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                sweep();
+            } catch (Exception e) {
+                logger.warn("unable to sweep", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.MINUTES);
+        }
+    }
+}
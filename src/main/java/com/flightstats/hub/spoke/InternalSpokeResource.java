@@ -1,52 +1,97 @@
 package com.flightstats.hub.spoke;
 
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubProvider;
+import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.SingleTrace;
+import com.google.common.hash.BloomFilter;
 import com.google.common.io.ByteStreams;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 @SuppressWarnings("WeakerAccess")
 @Path("/internal/spoke")
 public class InternalSpokeResource {
 
     private final static Logger logger = LoggerFactory.getLogger(InternalSpokeResource.class);
-    private static final FileSpokeStore writeSpokeStore = HubProvider.getInstance(FileSpokeStore.class, SpokeStore.WRITE.name());
-    private static final FileSpokeStore readSpokeStore = HubProvider.getInstance(FileSpokeStore.class, SpokeStore.READ.name());
+    private static final LocalSpokeStore writeSpokeStore = HubProvider.getInstance(LocalSpokeStore.class, SpokeStore.WRITE.name());
+    private static final LocalSpokeStore readSpokeStore = HubProvider.getInstance(LocalSpokeStore.class, SpokeStore.READ.name());
     private static final RemoteSpokeStore remoteSpokeStore = HubProvider.getInstance(RemoteSpokeStore.class);
+    private static final SpokeBloomFilters writeBloomFilters = createBloomFilters(writeSpokeStore);
+    private static final SpokeBloomFilters readBloomFilters = createBloomFilters(readSpokeStore);
 
     @Context
     private UriInfo uriInfo;
 
+    private static SpokeBloomFilters createBloomFilters(LocalSpokeStore store) {
+        return new SpokeBloomFilters(store, HubProperties.getProperty("spoke.bloom.falsePositives", 0.01),
+                HubProperties.getProperty("spoke.bloom.maxFilters", 10000));
+    }
+
     @GET
     @Path("/{storeName}/payload/{path:.+}")
     public Response getPayload(@PathParam("storeName") String storeName,
                                @PathParam("path") String path) {
         try {
-            FileSpokeStore store = getSpokeStoreByName(storeName);
-            Response.ResponseBuilder builder = Response.ok((StreamingOutput) os -> {
-                try (OutputStream output = new BufferedOutputStream(os)) {
-                    store.read(path, output);
+            LocalSpokeStore store = getSpokeStoreByName(storeName);
+            return Response.ok((StreamingOutput) os -> {
+                try (SpokeRegion region = store.openRegion(path)) {
+                    region.send(os);
                 } catch (NotFoundException e) {
                     logger.debug("not found {}", e.getMessage());
                 }
-            });
-            return builder.build();
+            }).build();
         } catch (Exception e) {
             logger.warn("unable to get " + path, e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    /**
+     * Returns the items of the channel for the binary keys in the request body, in SpokeBulk framing.
+     * Keys which are not in this store are left out of the response.
+     */
+    @POST
+    @Path("/{storeName}/payloads/{channel}")
+    public Response getPayloads(@PathParam("storeName") String storeName,
+                                @PathParam("channel") String channel,
+                                InputStream input) {
+        try {
+            LocalSpokeStore store = getSpokeStoreByName(storeName);
+            List<ContentKey> keys = new ArrayList<>();
+            SpokeKeys.read(input, keys);
+            return Response.ok((StreamingOutput) os -> {
+                BufferedOutputStream output = new BufferedOutputStream(os);
+                for (ContentKey key : keys) {
+                    String keyUrl = key.toUrl();
+                    try (SpokeRegion region = store.openRegion(channel + "/" + keyUrl)) {
+                        SpokeBulk.write(output, keyUrl, region);
+                    } catch (NotFoundException e) {
+                        logger.trace("not found {} {}", channel, keyUrl);
+                    }
+                }
+                output.flush();
+            }).type(SpokeBulk.MEDIA_TYPE).build();
+        } catch (Exception e) {
+            logger.warn("unable to get payloads " + channel, e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     @PUT
     @Path("/{storeName}/payload/{path:.+}")
     public Response putPayload(@PathParam("storeName") String storeName,
@@ -54,7 +99,7 @@ public class InternalSpokeResource {
                                InputStream input) {
         try {
             long start = System.currentTimeMillis();
-            FileSpokeStore store = getSpokeStoreByName(storeName);
+            LocalSpokeStore store = getSpokeStoreByName(storeName);
             if (store.insert(path, input)) {
                 long end = System.currentTimeMillis();
                 if ((end - start) > 4000) {
@@ -75,27 +120,30 @@ public class InternalSpokeResource {
         }
     }
 
+    /**
+     * Bulk writes are streamed in SpokeBulk framing.  The ObjectOutputStream format is still read for older senders.
+     */
     @Path("{storeName}/bulkKey/{channel}")
     @PUT
     public Response putBulk(@PathParam("storeName") String storeName,
                             @PathParam("channel") String channel,
+                            @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
                             InputStream input) {
         try {
             long start = System.currentTimeMillis();
-            FileSpokeStore store = getSpokeStoreByName(storeName);
-            ObjectInputStream stream = new ObjectInputStream(input);
-            int items = stream.readInt();
-            for (int i = 0; i < items; i++) {
-                String keyPath = new String(readByesFully(stream));
-                byte[] data = readByesFully(stream);
-                String itemPath = channel + "/" + keyPath;
-                if (!store.insert(itemPath, new ByteArrayInputStream(data))) {
-                    logger.warn("what happened?!?! {}", channel);
-                    return Response
-                            .status(Response.Status.INTERNAL_SERVER_ERROR)
-                            .entity(new SingleTrace("failed", start).toString())
-                            .build();
-                }
+            LocalSpokeStore store = getSpokeStoreByName(storeName);
+            boolean inserted;
+            if (SpokeBulk.MEDIA_TYPE.equals(contentType)) {
+                inserted = store.insert(channel, new SpokeBulk.Reader(new BufferedInputStream(input)));
+            } else {
+                inserted = insertObjectStream(store, channel, input);
+            }
+            if (!inserted) {
+                logger.warn("unable to write bulk {}", channel);
+                return Response
+                        .status(Response.Status.INTERNAL_SERVER_ERROR)
+                        .entity(new SingleTrace("failed", start).toString())
+                        .build();
             }
             long end = System.currentTimeMillis();
             if ((end - start) > 4000) {
@@ -105,12 +153,28 @@ public class InternalSpokeResource {
                     .created(uriInfo.getRequestUri())
                     .entity(new SingleTrace("success", start).toString())
                     .build();
+        } catch (IOException e) {
+            logger.warn("unable to read bulk " + channel + " " + e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             logger.warn("unable to write " + channel, e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    private boolean insertObjectStream(LocalSpokeStore store, String channel, InputStream input) throws IOException {
+        ObjectInputStream stream = new ObjectInputStream(input);
+        int items = stream.readInt();
+        for (int i = 0; i < items; i++) {
+            String keyPath = new String(readByesFully(stream));
+            byte[] data = readByesFully(stream);
+            if (!store.insert(channel + "/" + keyPath, new ByteArrayInputStream(data))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private byte[] readByesFully(ObjectInputStream stream) throws IOException {
         int size = stream.readInt();
         byte[] data = new byte[size];
@@ -118,22 +182,34 @@ public class InternalSpokeResource {
         return data;
     }
 
-    private Response getResponse(FileSpokeStore store, String path) {
+    private Response getResponse(LocalSpokeStore store, String path, String format) {
         logger.trace("time {}", path);
         try {
-            Response.ResponseBuilder builder = Response.ok((StreamingOutput) os -> {
-                BufferedOutputStream output = new BufferedOutputStream(os);
-                store.readKeysInBucket(path, output);
-                output.flush();
-            });
-            return builder.build();
+            return keysResponse(format, writer -> store.readKeysInBucket(path, writer));
         } catch (Exception e) {
             logger.warn("unable to get " + path, e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
     }
 
-    private FileSpokeStore getSpokeStoreByName(String name) {
+    private Response keysResponse(String format, KeysQuery query) {
+        boolean binary = SpokeKeys.BINARY.equals(format);
+        Response.ResponseBuilder builder = Response.ok((StreamingOutput) os -> {
+            BufferedOutputStream output = new BufferedOutputStream(os);
+            query.run(binary ? SpokeKeys.binary(output) : SpokeKeys.csv(output));
+            output.flush();
+        });
+        if (binary) {
+            builder.type(SpokeKeys.MEDIA_TYPE);
+        }
+        return builder.build();
+    }
+
+    private interface KeysQuery {
+        void run(SpokeKeyWriter writer) throws IOException;
+    }
+
+    private LocalSpokeStore getSpokeStoreByName(String name) {
         switch (SpokeStore.from(name)) {
             case WRITE:
                 return writeSpokeStore;
@@ -150,9 +226,10 @@ public class InternalSpokeResource {
                                   @PathParam("C") String C,
                                   @PathParam("Y") String Y,
                                   @PathParam("M") String M,
-                                  @PathParam("day") String day) {
-        FileSpokeStore store = getSpokeStoreByName(storeName);
-        return getResponse(store, C + "/" + Y + "/" + M + "/" + day);
+                                  @PathParam("day") String day,
+                                  @QueryParam(SpokeKeys.FORMAT) String format) {
+        LocalSpokeStore store = getSpokeStoreByName(storeName);
+        return getResponse(store, C + "/" + Y + "/" + M + "/" + day, format);
     }
 
     @GET
@@ -162,9 +239,10 @@ public class InternalSpokeResource {
                                   @PathParam("Y") String Y,
                                   @PathParam("M") String M,
                                   @PathParam("D") String D,
-                                  @PathParam("hour") String hour) {
-        FileSpokeStore store = getSpokeStoreByName(storeName);
-        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + hour);
+                                  @PathParam("hour") String hour,
+                                  @QueryParam(SpokeKeys.FORMAT) String format) {
+        LocalSpokeStore store = getSpokeStoreByName(storeName);
+        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + hour, format);
     }
 
     @GET
@@ -175,9 +253,10 @@ public class InternalSpokeResource {
                                   @PathParam("M") String M,
                                   @PathParam("D") String D,
                                   @PathParam("h") String h,
-                                  @PathParam("minute") String minute) {
-        FileSpokeStore store = getSpokeStoreByName(storeName);
-        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + h + "/" + minute);
+                                  @PathParam("minute") String minute,
+                                  @QueryParam(SpokeKeys.FORMAT) String format) {
+        LocalSpokeStore store = getSpokeStoreByName(storeName);
+        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + h + "/" + minute, format);
     }
 
     @GET
@@ -189,9 +268,10 @@ public class InternalSpokeResource {
                                   @PathParam("D") String D,
                                   @PathParam("h") String h,
                                   @PathParam("m") String m,
-                                  @PathParam("second") String second) {
-        FileSpokeStore store = getSpokeStoreByName(storeName);
-        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + h + "/" + m + "/" + second);
+                                  @PathParam("second") String second,
+                                  @QueryParam(SpokeKeys.FORMAT) String format) {
+        LocalSpokeStore store = getSpokeStoreByName(storeName);
+        return getResponse(store, C + "/" + Y + "/" + M + "/" + D + "/" + h + "/" + m + "/" + second, format);
     }
 
     @DELETE
@@ -199,7 +279,7 @@ public class InternalSpokeResource {
     public Response delete(@PathParam("storeName") String storeName,
                            @PathParam("path") String path) {
         try {
-            FileSpokeStore store = getSpokeStoreByName(storeName);
+            LocalSpokeStore store = getSpokeStoreByName(storeName);
             store.delete(path);
             return Response.ok().build();
         } catch (Exception e) {
@@ -226,20 +306,92 @@ public class InternalSpokeResource {
     @Path("/next/{channel}/{count}/{startKey:.+}")
     @GET
     public Response getNext(@PathParam("channel") String channel, @PathParam("count") int count,
-                            @PathParam("startKey") String startKey) {
+                            @PathParam("startKey") String startKey, @QueryParam(SpokeKeys.FORMAT) String format) {
         try {
-            Response.ResponseBuilder builder = Response.ok((StreamingOutput) os -> {
-                BufferedOutputStream output = new BufferedOutputStream(os);
-                writeSpokeStore.getNext(channel, startKey, count, output);
-                output.flush();
-            });
-            return builder.build();
+            return keysResponse(format, writer -> writeSpokeStore.getNext(channel, startKey, count, writer));
         } catch (Exception e) {
             logger.warn("unable to get next " + channel + " " + startKey, e);
         }
         return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
     }
 
+    /**
+     * The Bloom filter of the keys this server has in the minute.
+     * Servers which can not yet account for every item on disk respond with 503.
+     */
+    @GET
+    @Path("/{storeName}/bloom/{C}/{Y}/{M}/{D}/{h}/{m}")
+    public Response getBloomFilter(@PathParam("storeName") String storeName,
+                                   @PathParam("C") String C,
+                                   @PathParam("Y") int Y,
+                                   @PathParam("M") int M,
+                                   @PathParam("D") int D,
+                                   @PathParam("h") int h,
+                                   @PathParam("m") int m) {
+        SpokeBloomFilters filters = SpokeStore.from(storeName) == SpokeStore.READ ? readBloomFilters : writeBloomFilters;
+        try {
+            BloomFilter<ContentKey> filter = filters.get(C, new DateTime(Y, M, D, h, m, DateTimeZone.UTC));
+            return Response.ok((StreamingOutput) filter::writeTo)
+                    .type(MediaType.APPLICATION_OCTET_STREAM)
+                    .build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        } catch (Exception e) {
+            logger.warn("unable to get bloom filter " + C, e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * One "channel items digest" line for each channel with items in the minutes from start to end,
+     * for replicas to compare.
+     */
+    @GET
+    @Path("/{storeName}/summary")
+    public Response getSummary(@PathParam("storeName") String storeName,
+                               @QueryParam("start") long start, @QueryParam("end") long end) {
+        SpokeUsage usage = getSpokeStoreByName(storeName).getUsage();
+        if (!usage.isComplete()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        StringBuilder builder = new StringBuilder();
+        usage.summarize(start, end).forEach((channel, summary) -> builder.append(summary.toLine(channel)));
+        return Response.ok(builder.toString()).build();
+    }
+
+    /**
+     * One "minuteMillis items digest" line for each minute of the channel with items, from start to end.
+     */
+    @GET
+    @Path("/{storeName}/summary/{channel}")
+    public Response getSummary(@PathParam("storeName") String storeName, @PathParam("channel") String channel,
+                               @QueryParam("start") long start, @QueryParam("end") long end) {
+        SpokeUsage usage = getSpokeStoreByName(storeName).getUsage();
+        if (!usage.isComplete()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        StringBuilder builder = new StringBuilder();
+        for (SpokeUsage.Summary minute : usage.getMinutes(channel, start, end, false)) {
+            builder.append(minute.toLine(Long.toString(minute.getMillis())));
+        }
+        return Response.ok(builder.toString()).build();
+    }
+
+    @Path("/previous/{channel}/{count}/{startKey:.+}")
+    @GET
+    public Response getPrevious(@PathParam("channel") String channel, @PathParam("count") int count,
+                                @PathParam("startKey") String startKey, @QueryParam(SpokeKeys.FORMAT) String format) {
+        if (!writeSpokeStore.getUsage().isComplete()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        try {
+            return keysResponse(format, writer -> writeSpokeStore.getPrevious(channel, startKey, count, writer));
+        } catch (Exception e) {
+            logger.warn("unable to get previous " + channel + " " + startKey, e);
+        }
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+    }
+
     @Path("/test/{server}")
     @GET
     public Response test(@PathParam("server") String server) {
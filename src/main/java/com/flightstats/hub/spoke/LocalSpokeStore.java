@@ -0,0 +1,122 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The on-disk storage of a single Spoke server, for one SpokeStore.
+ * Paths are in the url format "channel/yyyy/MM/dd/HH/mm/ss/SSS/hash", or a time bucket prefix of that.
+ * Keys written to OutputStreams are comma separated "channel/key" strings.
+ */
+public interface LocalSpokeStore {
+
+    default boolean insert(String path, byte[] payload) {
+        return insert(path, new ByteArrayInputStream(payload));
+    }
+
+    boolean insert(String path, InputStream input);
+
+    /**
+     * Writes each item of a bulk stream into the channel.  Stores may defer syncing to the end of the batch.
+     *
+     * @return false if any item could not be written
+     */
+    default boolean insert(String channel, SpokeBulk.Reader bulk) throws IOException {
+        while (bulk.next()) {
+            if (!insert(channel + "/" + bulk.getKey(), bulk.getData())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    default byte[] read(String path) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        read(path, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * @throws javax.ws.rs.NotFoundException if the path does not exist
+     */
+    void read(String path, OutputStream output);
+
+    /**
+     * Opens the payload for streaming from disk.  The caller closes the region.
+     *
+     * @throws javax.ws.rs.NotFoundException if the path does not exist
+     */
+    SpokeRegion openRegion(String path);
+
+    default String readKeysInBucket(String path) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        readKeysInBucket(path, baos);
+        return baos.toString();
+    }
+
+    default void readKeysInBucket(String path, OutputStream output) {
+        readKeysInBucket(path, SpokeKeys.csv(output));
+    }
+
+    void readKeysInBucket(String path, SpokeKeyWriter writer);
+
+    boolean delete(String path) throws Exception;
+
+    boolean deleteFile(String path) throws Exception;
+
+    /**
+     * @return the latest "channel/key" before limitPath, or null if none exists within the ttl
+     */
+    String getLatest(String channel, String limitPath);
+
+    /**
+     * This may return more than the request count, as this does not do any sorting.
+     */
+    default void getNext(String channel, String startKey, int count, OutputStream output) throws IOException {
+        getNext(channel, startKey, count, SpokeKeys.csv(output));
+    }
+
+    void getNext(String channel, String startKey, int count, SpokeKeyWriter writer) throws IOException;
+
+    /**
+     * Writes the keys before startKey, reading only the populated minutes from the usage, newest first,
+     * until at least count keys have been written.  Like getNext, this may write more than count.
+     *
+     * @throws IllegalStateException if the usage is not complete
+     */
+    default void getPrevious(String channel, String startKey, int count, SpokeKeyWriter writer) throws IOException {
+        SpokeUsage usage = getUsage();
+        if (!usage.isComplete()) {
+            throw new IllegalStateException("usage is not complete");
+        }
+        ContentKey start = ContentKey.fromUrl(startKey).get();
+        long startMinute = TimeUtil.Unit.MINUTES.round(start.getTime()).getMillis();
+        int[] found = {0};
+        for (SpokeUsage.Summary minute : usage.getMinutes(channel, 0, startMinute, true)) {
+            if (found[0] >= count) {
+                return;
+            }
+            if (minute.getFirst() != null && minute.getFirst().compareTo(start) >= 0) {
+                continue;
+            }
+            String minutePath = channel + "/" + TimeUtil.minutes(new DateTime(minute.getMillis(), DateTimeZone.UTC));
+            readKeysInBucket(minutePath, (keyChannel, key) -> {
+                if (key.compareTo(start) < 0) {
+                    found[0]++;
+                    writer.write(keyChannel, key);
+                }
+            });
+        }
+    }
+
+    SpokeUsage getUsage();
+
+}
@@ -5,6 +5,7 @@ import com.flightstats.hub.app.HubHost;
 import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.cluster.Cluster;
 import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.cluster.ServerLoads;
 import com.flightstats.hub.dao.ContentKeyUtil;
 import com.flightstats.hub.dao.ContentMarshaller;
 import com.flightstats.hub.dao.QueryResult;
@@ -16,7 +17,10 @@ import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.rest.RestClient;
 import com.flightstats.hub.util.HubUtils;
 import com.flightstats.hub.util.RuntimeInterruptedException;
+import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
+import com.google.common.hash.BloomFilter;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -24,33 +28,68 @@ import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.core.MediaType;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @SuppressWarnings({"Convert2streamapi", "Convert2Lambda"})
 public class RemoteSpokeStore {
 
     private final static Logger logger = LoggerFactory.getLogger(RemoteSpokeStore.class);
 
-    private final static Client write_client = RestClient.createClient(1, 5, true, false);
+    private final static HttpClient write_client = RestClient.createAsyncClient("SpokeWriteClient", 1,
+            HubProperties.getProperty("spoke.write.idleTimeoutSeconds", 60),
+            HubProperties.getProperty("spoke.write.maxConnections", 64),
+            HubProperties.getProperty("spoke.write.maxQueuedRequests", 1024),
+            HubProperties.getProperty("spoke.write.clientThreads", 32));
     private final static Client query_client = RestClient.createClient(5, 15, true, true);
 
     private final CuratorCluster cluster;
     private final MetricsService metricsService;
     private final ExecutorService executorService;
     private final int stableSeconds = HubProperties.getProperty("app.stable_seconds", 5);
+    private final int writeTimeoutSeconds = HubProperties.getProperty("spoke.write.timeoutSeconds", 5);
+    private final boolean hedgeReads = HubProperties.getProperty("spoke.read.hedge", true);
+    private final int bloomTimeoutMillis = HubProperties.getProperty("spoke.bloom.timeoutMillis", 1000);
+    private final SpokeServerLatencies latencies = new SpokeServerLatencies(
+            HubProperties.getProperty("spoke.read.hedge.samples", 100), 10,
+            HubProperties.getProperty("spoke.read.hedge.percentile", 0.95),
+            HubProperties.getProperty("spoke.read.hedge.minMillis", 5),
+            HubProperties.getProperty("spoke.read.hedge.maxMillis", 500));
 
     @Inject
     public RemoteSpokeStore(@Named("SpokeCuratorCluster") CuratorCluster cluster, MetricsService metricsService) {
@@ -121,45 +160,32 @@ public class RemoteSpokeStore {
     }
 
     public boolean insert(SpokeStore spokeStore, String path, byte[] payload, String spokeApi, String channel) {
-        return insert(spokeStore, path, payload, cluster.getWriteServers(), ActiveTraces.getLocal(), spokeApi, channel);
+        return insert(spokeStore, path, new BytesContentProvider(payload), spokeApi, channel);
+    }
+
+    public boolean insert(SpokeStore spokeStore, String path, ContentProvider content, String spokeApi, String channel) {
+        return insert(spokeStore, path, content, cluster.getWriteServers(), ActiveTraces.getLocal(), spokeApi, channel);
     }
 
     public boolean insert(SpokeStore spokeStore, String path, byte[] payload, Collection<String> servers, Traces traces,
                           String spokeApi, String channel) {
+        return insert(spokeStore, path, new BytesContentProvider(payload), servers, traces, spokeApi, channel);
+    }
+
+    /**
+     * Writes are sent asynchronously over pooled connections, and this returns as soon as a quorum of servers
+     * has acknowledged the write, or app.stable_seconds has passed.  Slower servers complete in the background.
+     * The content must be reproducible, as it is sent to each server.
+     */
+    public boolean insert(SpokeStore spokeStore, String path, ContentProvider content, Collection<String> servers, Traces traces,
+                          String spokeApi, String channel) {
         int quorum = getQuorum(servers.size());
         CountDownLatch quorumLatch = new CountDownLatch(quorum);
-        AtomicBoolean firstComplete = new AtomicBoolean();
-        for (final String server : servers) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    setThread(path);
-                    String uri = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/" + spokeApi + "/" + path;
-                    traces.add(uri);
-                    ClientResponse response = null;
-                    try {
-                        response = write_client.resource(uri).put(ClientResponse.class, payload);
-                        traces.add(server, response.getEntity(String.class));
-                        if (response.getStatus() == 201) {
-                            if (firstComplete.compareAndSet(false, true)) {
-                                metricsService.time(channel, "heisenberg", traces.getStart());
-                            }
-                            quorumLatch.countDown();
-                            logger.trace("server {} path {} response {}", server, path, response);
-                        } else {
-                            logger.info("write failed: server {} path {} response {}", server, path, response);
-                        }
-                    } catch (Exception e) {
-                        traces.add(server, e.getMessage());
-                        logger.warn("write failed: " + server + " " + path, e);
-                    } finally {
-                        HubUtils.close(response);
-                        resetThread();
-                    }
-
-                }
-            });
-        }
+        write(spokeStore, path, content, servers, traces, spokeApi, channel, created -> {
+            if (created) {
+                quorumLatch.countDown();
+            }
+        });
         try {
             quorumLatch.await(stableSeconds, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
@@ -169,6 +195,74 @@ public class RemoteSpokeStore {
         return quorumLatch.getCount() != quorum;
     }
 
+    /**
+     * Like {@link #insert(SpokeStore, String, ContentProvider, Collection, Traces, String, String)}, but waits for
+     * every server to answer, for callers which need every copy to exist before they continue.
+     *
+     * @return true if every server acknowledged the write
+     */
+    public boolean insertAll(SpokeStore spokeStore, String path, ContentProvider content, Collection<String> servers,
+                             Traces traces, String spokeApi, String channel) {
+        CountDownLatch completed = new CountDownLatch(servers.size());
+        AtomicInteger acknowledged = new AtomicInteger();
+        write(spokeStore, path, content, servers, traces, spokeApi, channel, created -> {
+            if (created) {
+                acknowledged.incrementAndGet();
+            }
+            completed.countDown();
+        });
+        try {
+            //each request times out after spoke.write.timeoutSeconds, so this only guards against a lost callback
+            completed.await(writeTimeoutSeconds + stableSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        }
+        return acknowledged.get() == servers.size();
+    }
+
+    /**
+     * @param completed called once for each server, with whether it created the item
+     */
+    private void write(SpokeStore spokeStore, String path, ContentProvider content, Collection<String> servers,
+                       Traces traces, String spokeApi, String channel, Consumer<Boolean> completed) {
+        AtomicBoolean firstComplete = new AtomicBoolean();
+        ServerLoads loads = cluster.getWriteLoads();
+        for (final String server : servers) {
+            String uri = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/" + spokeApi + "/" + path;
+            traces.add(uri);
+            long start = System.currentTimeMillis();
+            loads.started(server);
+            write_client.newRequest(uri)
+                    .method(HttpMethod.PUT)
+                    .content(content)
+                    .timeout(writeTimeoutSeconds, TimeUnit.SECONDS)
+                    .send(new BufferingResponseListener() {
+                        @Override
+                        public void onComplete(Result result) {
+                            //failures count as the full timeout, so failing servers are avoided like slow ones
+                            loads.completed(server, result.isFailed() ? writeTimeoutSeconds * 1000L : System.currentTimeMillis() - start);
+                            if (result.isFailed()) {
+                                traces.add(server, result.getFailure().getMessage());
+                                logger.warn("write failed: " + server + " " + path, result.getFailure());
+                                completed.accept(false);
+                                return;
+                            }
+                            traces.add(server, getContentAsString());
+                            if (result.getResponse().getStatus() == 201) {
+                                if (firstComplete.compareAndSet(false, true)) {
+                                    metricsService.time(channel, "heisenberg", traces.getStart());
+                                }
+                                logger.trace("server {} path {} response {}", server, path, result.getResponse());
+                                completed.accept(true);
+                            } else {
+                                logger.info("write failed: server {} path {} response {}", server, path, result.getResponse());
+                                completed.accept(false);
+                            }
+                        }
+                    });
+        }
+    }
+
     private void setThread(String name) {
         Thread thread = Thread.currentThread();
         thread.setName(thread.getName() + "|" + name);
@@ -183,39 +277,292 @@ public class RemoteSpokeStore {
         return (int) Math.max(1, Math.ceil(size / 2.0));
     }
 
+    /**
+     * Reads start with one random server.  If it has not answered within its tracked latency percentile,
+     * the read is hedged with a request to the next server, and the first content returned wins.
+     * A miss or failure from a server moves on to the next server immediately.
+     */
     public Content get(SpokeStore spokeStore, String path, ContentKey key) {
-        Collection<String> servers = cluster.getRandomServers();
-        for (String server : servers) {
-            ClientResponse response = null;
-            try {
-                setThread(path);
-                String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path;
-                response = query_client.resource(url).get(ClientResponse.class);
-                logger.trace("server {} path {} response {}", server, path, response);
-                if (response.getStatus() == 200) {
-                    byte[] entity = response.getEntity(byte[].class);
-                    if (entity.length > 0) {
-                        return ContentMarshaller.toContent(entity, key);
-                    }
-                }
-            } catch (JsonMappingException e) {
-                logger.info("JsonMappingException for " + path);
-            } catch (ClientHandlerException e) {
-                if (e.getCause() != null && e.getCause() instanceof ConnectException) {
-                    logger.warn("connection exception " + server);
+        Iterator<String> servers = cluster.getRandomServers().iterator();
+        if (!servers.hasNext()) {
+            return null;
+        }
+        CompletionService<Content> completionService = new ExecutorCompletionService<>(executorService);
+        List<Future<Content>> futures = new ArrayList<>();
+        try {
+            String server = servers.next();
+            futures.add(completionService.submit(() -> get(spokeStore, server, path, key)));
+            long hedgeMillis = latencies.getHedgeMillis(server);
+            int pending = 1;
+            while (pending > 0) {
+                Future<Content> future;
+                if (hedgeReads && servers.hasNext()) {
+                    future = completionService.poll(hedgeMillis, TimeUnit.MILLISECONDS);
                 } else {
-                    logger.warn("unable to get content " + server + " " + path, e);
+                    future = completionService.take();
+                }
+                if (future == null) {
+                    String hedgeServer = servers.next();
+                    logger.trace("hedging read of {} to {} after {} ms", path, hedgeServer, hedgeMillis);
+                    metricsService.increment("spoke.read.hedged");
+                    futures.add(completionService.submit(() -> get(spokeStore, hedgeServer, path, key)));
+                    hedgeMillis = latencies.getHedgeMillis(hedgeServer);
+                    pending++;
+                    continue;
+                }
+                pending--;
+                Content content = future.get();
+                if (content != null) {
+                    return content;
+                }
+                if (servers.hasNext()) {
+                    String nextServer = servers.next();
+                    futures.add(completionService.submit(() -> get(spokeStore, nextServer, path, key)));
+                    hedgeMillis = latencies.getHedgeMillis(nextServer);
+                    pending++;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException e) {
+            logger.warn("unable to get content " + path, e);
+        } finally {
+            for (Future<Content> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return null;
+    }
+
+    private Content get(SpokeStore spokeStore, String server, String path, ContentKey key) {
+        ClientResponse response = null;
+        long start = System.currentTimeMillis();
+        try {
+            setThread(path);
+            String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path;
+            response = query_client.resource(url).get(ClientResponse.class);
+            logger.trace("server {} path {} response {}", server, path, response);
+            if (response.getStatus() == 200) {
+                byte[] entity = response.getEntity(byte[].class);
+                if (entity.length > 0) {
+                    return ContentMarshaller.toContent(entity, key);
                 }
-            } catch (Exception e) {
-                logger.warn("unable to get content " + path, e);
-            } finally {
-                HubUtils.close(response);
-                resetThread();
             }
+        } catch (JsonMappingException e) {
+            logger.info("JsonMappingException for " + path);
+        } catch (ClientHandlerException e) {
+            if (e.getCause() != null && e.getCause() instanceof ConnectException) {
+                logger.warn("connection exception " + server);
+            } else if (!Thread.currentThread().isInterrupted()) {
+                logger.warn("unable to get content " + server + " " + path, e);
+            }
+        } catch (Exception e) {
+            logger.warn("unable to get content " + path, e);
+        } finally {
+            latencies.record(server, System.currentTimeMillis() - start);
+            HubUtils.close(response);
+            resetThread();
         }
         return null;
     }
 
+    /**
+     * Fetches many items from one channel, with a single streamed request to each server.
+     * Keys which a server does not have are requested from the next server.
+     *
+     * @return the items found, which may not include every key
+     */
+    public Map<ContentKey, Content> getAll(SpokeStore spokeStore, String channel, Collection<ContentKey> keys) {
+        Map<ContentKey, Content> found = new HashMap<>();
+        SortedSet<ContentKey> remaining = new TreeSet<>(keys);
+        for (String server : cluster.getRandomServers()) {
+            if (remaining.isEmpty()) {
+                break;
+            }
+            getAll(spokeStore, server, channel, remaining, found);
+        }
+        return found;
+    }
+
+    private void getAll(SpokeStore spokeStore, String server, String channel,
+                        SortedSet<ContentKey> remaining, Map<ContentKey, Content> found) {
+        ClientResponse response = null;
+        try {
+            setThread(channel);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream stream = new DataOutputStream(body);
+            for (ContentKey key : remaining) {
+                SpokeKeys.write(stream, key);
+            }
+            String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payloads/" + channel;
+            response = query_client.resource(url)
+                    .type(SpokeKeys.MEDIA_TYPE)
+                    .post(ClientResponse.class, body.toByteArray());
+            logger.trace("server {} channel {} response {}", server, channel, response);
+            if (response.getStatus() != 200) {
+                logger.info("unable to get payloads from {} {} {}", server, channel, response.getStatus());
+                return;
+            }
+            SpokeBulk.Reader reader = new SpokeBulk.Reader(new BufferedInputStream(response.getEntityInputStream()));
+            while (reader.next()) {
+                Optional<ContentKey> key = ContentKey.fromUrl(reader.getKey());
+                if (key.isPresent() && remaining.remove(key.get())) {
+                    found.put(key.get(), ContentMarshaller.toContent(ByteStreams.toByteArray(reader.getData()), key.get()));
+                }
+            }
+        } catch (ClientHandlerException e) {
+            if (e.getCause() != null && e.getCause() instanceof ConnectException) {
+                logger.warn("connection exception " + server);
+            } else {
+                logger.warn("unable to get payloads " + server + " " + channel, e);
+            }
+        } catch (Exception e) {
+            logger.warn("unable to get payloads " + server + " " + channel, e);
+        } finally {
+            HubUtils.close(response);
+            resetThread();
+        }
+    }
+
+    /**
+     * Fetches the Bloom filter of the keys each server has in the minute, from all servers in parallel.
+     *
+     * @return absent unless every server returned its filter
+     */
+    Optional<List<BloomFilter<ContentKey>>> getBloomFilters(SpokeStore spokeStore, String channel, DateTime minute)
+            throws InterruptedException {
+        Collection<String> servers = cluster.getAllServers();
+        if (servers.isEmpty()) {
+            return Optional.absent();
+        }
+        String path = "/internal/spoke/" + spokeStore + "/bloom/" + channel + "/" + TimeUtil.minutes(minute);
+        List<BloomFilter<ContentKey>> filters = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch countDownLatch = new CountDownLatch(servers.size());
+        for (String server : servers) {
+            executorService.submit(() -> {
+                ClientResponse response = null;
+                try {
+                    setThread(path);
+                    response = query_client.resource(HubHost.getScheme() + server + path).get(ClientResponse.class);
+                    if (response.getStatus() == 200) {
+                        filters.add(SpokeBloomFilters.read(response.getEntityInputStream()));
+                    } else {
+                        logger.debug("no bloom filter from {} {} {}", server, path, response.getStatus());
+                    }
+                } catch (Exception e) {
+                    logger.info("unable to get bloom filter " + server + " " + path, e);
+                } finally {
+                    HubUtils.close(response);
+                    resetThread();
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        countDownLatch.await(bloomTimeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (filters) {
+            if (filters.size() < servers.size()) {
+                return Optional.absent();
+            }
+            return Optional.of(new ArrayList<>(filters));
+        }
+    }
+
+    /**
+     * @return the summary of each channel on the server for the minutes from start to end, keyed by channel
+     * @throws IOException if the server can not provide them
+     */
+    Map<String, SpokeUsage.Summary> getSummaries(SpokeStore spokeStore, String server, long start, long end) throws IOException {
+        return SpokeUsage.Summary.parse(getText(server, "/internal/spoke/" + spokeStore + "/summary", start, end), start);
+    }
+
+    /**
+     * @return the summary of each minute of the channel on the server, keyed by minute millis
+     * @throws IOException if the server can not provide them
+     */
+    Map<Long, SpokeUsage.Summary> getMinuteSummaries(SpokeStore spokeStore, String server, String channel,
+                                                     long start, long end) throws IOException {
+        String text = getText(server, "/internal/spoke/" + spokeStore + "/summary/" + channel, start, end);
+        Map<Long, SpokeUsage.Summary> minutes = new HashMap<>();
+        SpokeUsage.Summary.parse(text, start).forEach((minute, summary) -> minutes.put(Long.parseLong(minute), summary));
+        return minutes;
+    }
+
+    private String getText(String server, String path, long start, long end) throws IOException {
+        ClientResponse response = null;
+        try {
+            response = query_client.resource(HubHost.getScheme() + server + path)
+                    .queryParam("start", Long.toString(start))
+                    .queryParam("end", Long.toString(end))
+                    .get(ClientResponse.class);
+            if (response.getStatus() != 200) {
+                throw new IOException("unable to get " + path + " from " + server + " " + response.getStatus());
+            }
+            return response.getEntity(String.class);
+        } catch (ClientHandlerException e) {
+            throw new IOException("unable to get " + path + " from " + server, e);
+        } finally {
+            HubUtils.close(response);
+        }
+    }
+
+    /**
+     * @return the keys of the channel in the time bucket on one server
+     * @throws IOException if the server can not provide them
+     */
+    SortedSet<ContentKey> readTimeBucket(SpokeStore spokeStore, String server, String channel, String timePath) throws IOException {
+        String path = "/internal/spoke/" + spokeStore + "/time/" + channel + "/" + timePath;
+        ClientResponse response = null;
+        try {
+            response = query_client.resource(HubHost.getScheme() + server + path)
+                    .queryParam(SpokeKeys.FORMAT, SpokeKeys.BINARY)
+                    .get(ClientResponse.class);
+            if (response.getStatus() != 200) {
+                throw new IOException("unable to get " + path + " from " + server + " " + response.getStatus());
+            }
+            SortedSet<ContentKey> keys = new TreeSet<>();
+            if (isBinary(response)) {
+                SpokeKeys.read(response.getEntityInputStream(), keys);
+            } else {
+                ContentKeyUtil.convertKeyStrings(response.getEntity(String.class), keys);
+            }
+            return keys;
+        } catch (ClientHandlerException e) {
+            throw new IOException("unable to get " + path + " from " + server, e);
+        } finally {
+            HubUtils.close(response);
+        }
+    }
+
+    /**
+     * Copies items of the channel from a server straight into a local store, without unmarshalling them.
+     *
+     * @return false if the copy failed
+     */
+    boolean copy(SpokeStore spokeStore, String server, String channel, Collection<ContentKey> keys,
+                 LocalSpokeStore target) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(body);
+        for (ContentKey key : keys) {
+            SpokeKeys.write(stream, key);
+        }
+        String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payloads/" + channel;
+        ClientResponse response = null;
+        try {
+            response = query_client.resource(url)
+                    .type(SpokeKeys.MEDIA_TYPE)
+                    .post(ClientResponse.class, body.toByteArray());
+            if (response.getStatus() != 200) {
+                logger.info("unable to copy from {} {} {}", server, channel, response.getStatus());
+                return false;
+            }
+            return target.insert(channel, new SpokeBulk.Reader(new BufferedInputStream(response.getEntityInputStream())));
+        } catch (ClientHandlerException e) {
+            throw new IOException("unable to copy " + channel + " from " + server, e);
+        } finally {
+            HubUtils.close(response);
+        }
+    }
+
     QueryResult readTimeBucket(SpokeStore spokeStore, String channel, String timePath) throws InterruptedException {
         return getKeys("/internal/spoke/" + spokeStore + "/time/" + channel + "/" + timePath);
     }
@@ -224,6 +571,13 @@ public class RemoteSpokeStore {
         return getKeys("/internal/spoke/next/" + channel + "/" + count + "/" + startKey).getContentKeys();
     }
 
+    /**
+     * Servers which can not answer from their usage fail the call, so callers can fall back to time queries.
+     */
+    QueryResult getPrevious(String channel, int count, String startKey) throws InterruptedException {
+        return getKeys("/internal/spoke/previous/" + channel + "/" + count + "/" + startKey);
+    }
+
     private QueryResult getKeys(final String path) throws InterruptedException {
         Traces traces = ActiveTraces.getLocal();
         Collection<String> servers = cluster.getAllServers();
@@ -237,12 +591,17 @@ public class RemoteSpokeStore {
                     try {
                         setThread(path);
                         traces.add("spoke calling", server, path);
-                        response = query_client.resource(HubHost.getScheme() + server + path).get(ClientResponse.class);
+                        response = query_client.resource(HubHost.getScheme() + server + path)
+                                .queryParam(SpokeKeys.FORMAT, SpokeKeys.BINARY)
+                                .get(ClientResponse.class);
                         traces.add("spoke server response", server, response);
                         if (response.getStatus() == 200) {
                             SortedSet<ContentKey> keySet = new TreeSet<>();
-                            String keysString = response.getEntity(String.class);
-                            ContentKeyUtil.convertKeyStrings(keysString, keySet);
+                            if (isBinary(response)) {
+                                SpokeKeys.read(response.getEntityInputStream(), keySet);
+                            } else {
+                                ContentKeyUtil.convertKeyStrings(response.getEntity(String.class), keySet);
+                            }
                             traces.add(server, keySet);
                             queryResult.addKeys(keySet);
                         }
@@ -268,6 +627,14 @@ public class RemoteSpokeStore {
         return queryResult;
     }
 
+    /**
+     * Servers without the binary format ignore the format parameter and respond with comma separated keys.
+     */
+    private boolean isBinary(ClientResponse response) {
+        MediaType type = response.getType();
+        return type != null && SpokeKeys.MEDIA_TYPE.equals(type.getType() + "/" + type.getSubtype());
+    }
+
     public Optional<ContentKey> getLatest(String channel, String path, Traces traces) throws InterruptedException {
         Collection<String> servers = cluster.getAllServers();
         CountDownLatch countDownLatch = new CountDownLatch(servers.size());
@@ -0,0 +1,581 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.util.TimeUtil;
+import com.flightstats.hub.util.WriteActivity;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.NotFoundException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A log structured alternative to FileSpokeStore.
+ * Items are appended to one segment file per channel and minute, at spokePath/channel/yyyy/MM/dd/HH/mm/segment,
+ * and an in memory index maps each key to its offset within the segment.
+ * The minute folders match FileSpokeStore's, so folder based ttl enforcement works for both layouts.
+ * <p>
+ * Each record is [short keyLength][key url][int payloadLength][payload].
+ * A payloadLength of -1 is a tombstone for a deleted key.
+ */
+public class SegmentSpokeStore implements LocalSpokeStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(SegmentSpokeStore.class);
+
+    static final String SEGMENT = "segment";
+    private static final int TOMBSTONE = -1;
+
+    private final String spokePath;
+    private final int spokeTtlMinutes;
+    private final Map<String, NavigableMap<Long, Segment>> channels = new ConcurrentHashMap<>();
+    private final SpokeUsage usage = new SpokeUsage();
+    private final SpokeDurability durability;
+    private final WriteActivity writeActivity;
+
+    public SegmentSpokeStore(String spokePath, int spokeTtlMinutes) {
+        this(spokePath, spokeTtlMinutes, SpokeDurability.none());
+    }
+
+    public SegmentSpokeStore(String spokePath, int spokeTtlMinutes, SpokeDurability durability) {
+        this(spokePath, spokeTtlMinutes, durability, new WriteActivity());
+    }
+
+    public SegmentSpokeStore(String spokePath, int spokeTtlMinutes, SpokeDurability durability, WriteActivity writeActivity) {
+        this.spokePath = StringUtils.appendIfMissing(spokePath, "/");
+        this.spokeTtlMinutes = spokeTtlMinutes;
+        this.durability = durability;
+        this.writeActivity = writeActivity;
+        logger.info("starting with storage path {} durability {}", this.spokePath, durability.getMode());
+        loadSegments();
+        String startupPath = "hub-startup/" + new ContentKey().toUrl();
+        if (!insert(startupPath, ("" + System.currentTimeMillis()).getBytes())) {
+            throw new RuntimeException("unable to create startup file");
+        }
+        HubServices.register(new SegmentSweeperService());
+    }
+
+    @Override
+    public boolean insert(String path, InputStream input) {
+        Map<Segment, Boolean> written = new HashMap<>();
+        return append(path, input, written) && sync(path, written);
+    }
+
+    /**
+     * All items are appended before any segment is forced, so each segment is synced once per batch.
+     */
+    @Override
+    public boolean insert(String channel, SpokeBulk.Reader bulk) throws IOException {
+        Map<Segment, Boolean> written = new HashMap<>();
+        while (bulk.next()) {
+            if (!append(channel + "/" + bulk.getKey(), bulk.getData(), written)) {
+                return false;
+            }
+        }
+        return sync(channel, written);
+    }
+
+    /**
+     * @param written the segments appended to, and whether each was created by the append
+     */
+    private boolean append(String path, InputStream input, Map<Segment, Boolean> written) {
+        long writeStart = writeActivity.started();
+        try {
+            ChannelContentKey channelKey = ChannelContentKey.fromChannelPath(path);
+            byte[] payload = ByteStreams.toByteArray(input);
+            Segment segment = getSegment(channelKey, true);
+            boolean created = !segment.file.exists();
+            Entry previous = segment.append(channelKey.getContentKey(), payload);
+            written.merge(segment, created, Boolean::logicalOr);
+            if (previous != null) {
+                usage.remove(channelKey.getChannel(), channelKey.getContentKey(), previous.length);
+            }
+            usage.add(channelKey.getChannel(), channelKey.getContentKey(), payload.length);
+            logger.trace("appended {} {}", path, payload.length);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.info("unable to write to " + path, e);
+            return false;
+        } finally {
+            writeActivity.completed(writeStart);
+        }
+    }
+
+    private boolean sync(String path, Map<Segment, Boolean> written) {
+        try {
+            for (Map.Entry<Segment, Boolean> entry : written.entrySet()) {
+                sync(entry.getKey(), entry.getValue());
+            }
+            return true;
+        } catch (IOException e) {
+            logger.info("unable to sync " + path, e);
+            return false;
+        }
+    }
+
+    @Override
+    public SpokeRegion openRegion(String path) {
+        logger.trace("opening {}", path);
+        ChannelContentKey channelKey;
+        try {
+            channelKey = ChannelContentKey.fromChannelPath(path);
+        } catch (IllegalArgumentException e) {
+            throw new NotFoundException("not found " + path);
+        }
+        Segment segment = getSegment(channelKey, false);
+        Entry entry = segment == null ? null : segment.entries.get(channelKey.getContentKey());
+        if (entry == null) {
+            throw new NotFoundException("not found " + path);
+        }
+        try {
+            return new SpokeRegion(FileChannel.open(segment.file.toPath(), StandardOpenOption.READ), entry.offset, entry.length);
+        } catch (NoSuchFileException e) {
+            removeSegment(channelKey.getChannel(), segment);
+            throw new NotFoundException("not found " + path);
+        } catch (IOException e) {
+            logger.info("unable to read from " + path, e);
+            throw new NotFoundException("unable to read " + path);
+        }
+    }
+
+    @Override
+    public void read(String path, OutputStream output) {
+        logger.trace("reading {}", path);
+        ChannelContentKey channelKey;
+        try {
+            channelKey = ChannelContentKey.fromChannelPath(path);
+        } catch (IllegalArgumentException e) {
+            throw new NotFoundException("not found " + path);
+        }
+        Segment segment = getSegment(channelKey, false);
+        Entry entry = segment == null ? null : segment.entries.get(channelKey.getContentKey());
+        if (entry == null) {
+            throw new NotFoundException("not found " + path);
+        }
+        try {
+            segment.read(entry, output);
+        } catch (NoSuchFileException e) {
+            removeSegment(channelKey.getChannel(), segment);
+            throw new NotFoundException("not found " + path);
+        } catch (IOException e) {
+            logger.info("unable to read from " + path, e);
+        }
+    }
+
+    @Override
+    public void readKeysInBucket(String path, SpokeKeyWriter writer) {
+        String[] split = StringUtils.split(path, "/");
+        NavigableMap<Long, Segment> segments = channels.get(split[0]);
+        if (segments == null || split.length < 2) {
+            return;
+        }
+        try {
+            DateTime[] bucket = SpokePathUtil.timeBucket(split);
+            ContentKey startKey = new ContentKey(bucket[0], "");
+            ContentKey endKey = new ContentKey(bucket[1], "");
+            long startMinute = TimeUtil.Unit.MINUTES.round(bucket[0]).getMillis();
+            for (Segment segment : liveSegments(split[0], segments.subMap(startMinute, true, bucket[1].getMillis(), false))) {
+                for (ContentKey key : segment.entries.subMap(startKey, true, endKey, false).keySet()) {
+                    writer.write(split[0], key);
+                }
+            }
+        } catch (Exception e) {
+            logger.info("error with " + path, e);
+        }
+    }
+
+    @Override
+    public boolean delete(String path) throws Exception {
+        File directory = new File(spokePath + StringUtils.removeStart(path, "/"));
+        String channel = StringUtils.substringBefore(StringUtils.removeStart(path, "/"), "/");
+        NavigableMap<Long, Segment> segments = channels.get(channel);
+        if (segments != null) {
+            String prefix = directory.getPath() + "/";
+            for (Segment segment : segments.values()) {
+                if (segment.file.getPath().startsWith(prefix)) {
+                    removeSegment(channel, segment);
+                }
+            }
+        }
+        FileUtils.deleteDirectory(directory);
+        usage.remove(path);
+        return true;
+    }
+
+    @Override
+    public boolean deleteFile(String path) throws Exception {
+        ChannelContentKey channelKey = ChannelContentKey.fromChannelPath(path);
+        Segment segment = getSegment(channelKey, false);
+        if (segment == null || !segment.entries.containsKey(channelKey.getContentKey())) {
+            return false;
+        }
+        Entry previous = segment.append(channelKey.getContentKey(), null);
+        sync(segment, false);
+        if (previous != null) {
+            usage.remove(channelKey.getChannel(), channelKey.getContentKey(), previous.length);
+        }
+        return true;
+    }
+
+    @Override
+    public SpokeUsage getUsage() {
+        return usage;
+    }
+
+    @Override
+    public String getLatest(String channel, String limitPath) {
+        logger.trace("latest {} {}", channel, limitPath);
+        ContentKey limitKey = ContentKey.fromUrl(limitPath).get();
+        NavigableMap<Long, Segment> segments = channels.get(channel);
+        if (segments == null) {
+            return null;
+        }
+        long limitMinute = TimeUtil.Unit.MINUTES.round(limitKey.getTime()).getMillis();
+        long limitHour = TimeUtil.Unit.HOURS.round(limitKey.getTime()).getMillis();
+        long ttlHour = TimeUtil.Unit.HOURS.round(TimeUtil.now().minusMinutes(spokeTtlMinutes)).getMillis();
+        NavigableMap<Long, Segment> searchable = segments.subMap(Math.min(ttlHour, limitHour), true, limitMinute, true);
+        for (Segment segment : liveSegments(channel, searchable.descendingMap())) {
+            ContentKey key = segment.entries.lowerKey(limitKey);
+            if (key != null) {
+                return channel + "/" + key.toUrl();
+            }
+        }
+        logger.debug("no latest found for {} {} ", channel, limitPath);
+        return null;
+    }
+
+    @Override
+    public void getNext(String channel, String startKey, int count, SpokeKeyWriter writer) throws IOException {
+        ContentKey start = ContentKey.fromUrl(startKey).get();
+        logger.trace("next {} {}", channel, startKey);
+        NavigableMap<Long, Segment> segments = channels.get(channel);
+        if (segments == null) {
+            return;
+        }
+        long startMinute = TimeUtil.Unit.MINUTES.round(start.getTime()).getMillis();
+        long now = TimeUtil.now().getMillis();
+        if (startMinute >= now) {
+            return;
+        }
+        int found = 0;
+        for (Segment segment : liveSegments(channel, segments.subMap(startMinute, true, now, false))) {
+            if (found >= count) {
+                return;
+            }
+            for (ContentKey key : segment.entries.tailMap(start, false).keySet()) {
+                found++;
+                writer.write(channel, key);
+            }
+        }
+    }
+
+    private void sync(Segment segment, boolean created) throws IOException {
+        Path directory = segment.file.getParentFile().toPath();
+        if (durability.isItem()) {
+            segment.force();
+            if (created) {
+                SpokeDurability.sync(directory);
+            }
+        } else {
+            durability.schedule(segment, segment::force);
+            if (created) {
+                durability.schedule(directory, () -> SpokeDurability.sync(directory));
+            }
+        }
+    }
+
+    private Segment getSegment(ChannelContentKey channelKey, boolean create) {
+        String channel = channelKey.getChannel();
+        DateTime minute = TimeUtil.Unit.MINUTES.round(channelKey.getContentKey().getTime());
+        if (!create) {
+            NavigableMap<Long, Segment> segments = channels.get(channel);
+            return segments == null ? null : segments.get(minute.getMillis());
+        }
+        NavigableMap<Long, Segment> segments = channels.computeIfAbsent(channel, name -> new ConcurrentSkipListMap<>());
+        return segments.computeIfAbsent(minute.getMillis(),
+                millis -> new Segment(new File(spokePath + channel + "/" + TimeUtil.minutes(minute) + "/" + SEGMENT)));
+    }
+
+    /**
+     * Segments whose files have been removed, usually by ttl enforcement, are dropped from the index.
+     */
+    private List<Segment> liveSegments(String channel, NavigableMap<Long, Segment> segments) {
+        List<Segment> live = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment.file.exists()) {
+                live.add(segment);
+            } else {
+                removeSegment(channel, segment);
+            }
+        }
+        return live;
+    }
+
+    private void removeSegment(String channel, Segment segment) {
+        NavigableMap<Long, Segment> segments = channels.get(channel);
+        if (segments != null) {
+            segments.values().remove(segment);
+        }
+        segment.close();
+        usage.remove(StringUtils.substringBeforeLast(segment.file.getPath().substring(spokePath.length()), "/"));
+    }
+
+    private void loadSegments() {
+        File root = new File(spokePath);
+        if (!root.exists()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.filter(path -> path.getFileName().toString().equals(SEGMENT))
+                    .forEach(this::loadSegment);
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("unable to load segments from " + spokePath, e);
+        }
+        logger.info("loaded {} channels from {} in {} ms", channels.size(), spokePath, System.currentTimeMillis() - start);
+    }
+
+    private void loadSegment(Path path) {
+        String minutePath = StringUtils.substringBeforeLast(path.toString().substring(spokePath.length()), "/");
+        String channel = StringUtils.substringBefore(minutePath, "/");
+        Optional<MinutePath> minute = MinutePath.fromUrl(StringUtils.substringAfter(minutePath, "/"));
+        if (!minute.isPresent()) {
+            logger.info("ignoring unexpected segment {}", path);
+            return;
+        }
+        try {
+            Segment segment = new Segment(path.toFile());
+            segment.load();
+            segment.entries.forEach((key, entry) -> usage.add(channel, key, entry.length));
+            channels.computeIfAbsent(channel, name -> new ConcurrentSkipListMap<>())
+                    .put(minute.get().getTime().getMillis(), segment);
+        } catch (IOException e) {
+            logger.warn("unable to load segment " + path, e);
+        }
+    }
+
+    private void sweep() {
+        long idleLimit = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2);
+        for (Map.Entry<String, NavigableMap<Long, Segment>> entry : channels.entrySet()) {
+            for (Segment segment : liveSegments(entry.getKey(), entry.getValue())) {
+                if (segment.lastWrite < idleLimit) {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final ConcurrentSkipListMap<ContentKey, Entry> entries = new ConcurrentSkipListMap<>();
+        private volatile FileChannel writer;
+        private volatile long lastWrite = System.currentTimeMillis();
+        private long size;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return the entry previously indexed for the key, if any
+         */
+        synchronized Entry append(ContentKey key, byte[] payload) throws IOException {
+            FileChannel channel = getWriter();
+            byte[] keyBytes = key.toBytes();
+            ByteBuffer header = ByteBuffer.allocate(2 + keyBytes.length + 4);
+            header.putShort((short) keyBytes.length)
+                    .put(keyBytes)
+                    .putInt(payload == null ? TOMBSTONE : payload.length)
+                    .flip();
+            long start = size;
+            try {
+                long position = write(channel, header, start);
+                Entry previous;
+                if (payload != null) {
+                    write(channel, ByteBuffer.wrap(payload), position);
+                    previous = entries.put(key, new Entry(position, payload.length));
+                    size = position + payload.length;
+                } else {
+                    previous = entries.remove(key);
+                    size = position;
+                }
+                lastWrite = System.currentTimeMillis();
+                return previous;
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    channel.truncate(start);
+                }
+                throw e;
+            }
+        }
+
+        private long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return position;
+        }
+
+        private FileChannel getWriter() throws IOException {
+            if (writer == null || !writer.isOpen()) {
+                file.getParentFile().mkdirs();
+                writer = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.READ);
+                size = Math.max(size, writer.size());
+            }
+            return writer;
+        }
+
+        void force() throws IOException {
+            FileChannel open = writer;
+            if (open != null && open.isOpen()) {
+                try {
+                    open.force(false);
+                    return;
+                } catch (ClosedChannelException e) {
+                    logger.trace("segment closed during force {}", file);
+                }
+            }
+            if (file.exists()) {
+                SpokeDurability.sync(file.toPath());
+            }
+        }
+
+        void read(Entry entry, OutputStream output) throws IOException {
+            FileChannel open = writer;
+            if (open != null && open.isOpen()) {
+                try {
+                    transfer(open, entry, output);
+                    return;
+                } catch (ClosedChannelException e) {
+                    logger.trace("segment closed during read {}", file);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                transfer(channel, entry, output);
+            }
+        }
+
+        private void transfer(FileChannel channel, Entry entry, OutputStream output) throws IOException {
+            new SpokeRegion(channel, entry.offset, entry.length).send(output);
+        }
+
+        /**
+         * Rebuilds the index from disk, truncating any incomplete record at the end of the file.
+         */
+        synchronized void load() throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long fileSize = channel.size();
+                long position = 0;
+                ByteBuffer keyLength = ByteBuffer.allocate(2);
+                ByteBuffer payloadLength = ByteBuffer.allocate(4);
+                while (position + 2 <= fileSize) {
+                    keyLength.clear();
+                    readFully(channel, keyLength, position);
+                    ByteBuffer keyBytes = ByteBuffer.allocate(keyLength.getShort(0));
+                    long payloadStart = position + 2 + keyBytes.capacity() + 4;
+                    if (keyBytes.capacity() <= 0 || payloadStart > fileSize) {
+                        break;
+                    }
+                    readFully(channel, keyBytes, position + 2);
+                    payloadLength.clear();
+                    readFully(channel, payloadLength, payloadStart - 4);
+                    int length = payloadLength.getInt(0);
+                    Optional<ContentKey> key = ContentKey.fromUrl(new String(keyBytes.array(), StandardCharsets.UTF_8));
+                    if (!key.isPresent() || length < TOMBSTONE || payloadStart + Math.max(length, 0) > fileSize) {
+                        break;
+                    }
+                    if (length == TOMBSTONE) {
+                        entries.remove(key.get());
+                    } else {
+                        entries.put(key.get(), new Entry(payloadStart, length));
+                    }
+                    position = payloadStart + Math.max(length, 0);
+                }
+                if (position < fileSize) {
+                    logger.warn("truncating incomplete segment {} from {} to {}", file, fileSize, position);
+                    channel.truncate(position);
+                }
+                size = position;
+            }
+        }
+
+        private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("unexpected end of " + file);
+                }
+                position += read;
+            }
+        }
+
+        synchronized void close() {
+            FileChannel open = writer;
+            writer = null;
+            if (open != null) {
+                try {
+                    open.close();
+                } catch (IOException e) {
+                    logger.info("unable to close " + file, e);
+                }
+            }
+        }
+    }
+
+    private class SegmentSweeperService extends AbstractScheduledService {
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                sweep();
+            } catch (Exception e) {
+                logger.info("issue sweeping segments " + spokePath, e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filters of the keys in each minute of a channel in a LocalSpokeStore, so callers can skip asking for items
+ * which are not here.  A filter is built when first requested, and rebuilt when the minute's item count changes.
+ */
+public class SpokeBloomFilters {
+
+    static final Funnel<ContentKey> FUNNEL = (key, into) -> into
+            .putLong(key.getMillis())
+            .putString(key.getHash(), StandardCharsets.UTF_8);
+
+    private final LocalSpokeStore store;
+    private final double falsePositives;
+    private final Cache<String, Built> filters;
+
+    SpokeBloomFilters(LocalSpokeStore store, double falsePositives, int maxFilters) {
+        this.store = store;
+        this.falsePositives = falsePositives;
+        this.filters = CacheBuilder.newBuilder().maximumSize(maxFilters).build();
+    }
+
+    /**
+     * @throws IllegalStateException if the store's usage is not complete, so a filter could miss items
+     */
+    BloomFilter<ContentKey> get(String channel, DateTime minute) {
+        SpokeUsage usage = store.getUsage();
+        if (!usage.isComplete()) {
+            throw new IllegalStateException("usage is not complete");
+        }
+        long millis = TimeUtil.Unit.MINUTES.round(minute).getMillis();
+        long items = 0;
+        for (SpokeUsage.Summary summary : usage.getMinutes(channel, millis, millis, false)) {
+            items = summary.getItems();
+        }
+        String path = channel + "/" + TimeUtil.minutes(minute);
+        Built built = filters.getIfPresent(path);
+        if (built == null || built.items != items) {
+            BloomFilter<ContentKey> filter = BloomFilter.create(FUNNEL, Math.max(items, 16), falsePositives);
+            store.readKeysInBucket(path, (keyChannel, key) -> filter.put(key));
+            built = new Built(items, filter);
+            filters.put(path, built);
+        }
+        return built.filter;
+    }
+
+    static BloomFilter<ContentKey> read(InputStream input) throws IOException {
+        return BloomFilter.readFrom(input, FUNNEL);
+    }
+
+    private static class Built {
+        private final long items;
+        private final BloomFilter<ContentKey> filter;
+
+        private Built(long items, BloomFilter<ContentKey> filter) {
+            this.items = items;
+            this.filter = filter;
+        }
+    }
+}
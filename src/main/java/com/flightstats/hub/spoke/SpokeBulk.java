@@ -0,0 +1,203 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.Content;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.client.api.ContentProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Length prefixed framing for bulk spoke writes and multi-gets, sent and read as a stream so the batch is never
+ * held in memory as a whole.
+ * Each item is [unsigned short keyLength][key url][int dataLength][data], until the end of the stream.
+ */
+public class SpokeBulk implements ContentProvider.Typed {
+
+    public static final String MEDIA_TYPE = "application/x-hub-spoke-bulk";
+
+    private final List<ByteBuffer> headers = new ArrayList<>();
+    private final List<byte[]> items = new ArrayList<>();
+    private long length;
+
+    /**
+     * @param contents items with keys and packaged data
+     */
+    SpokeBulk(List<Content> contents) {
+        for (Content content : contents) {
+            byte[] data = content.getData();
+            ByteBuffer header = header(content.getContentKey().get().toUrl(), data.length);
+            headers.add(header);
+            items.add(data);
+            length += header.remaining() + data.length;
+        }
+    }
+
+    private static ByteBuffer header(String keyUrl, long dataLength) {
+        byte[] key = keyUrl.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("key too long " + key.length);
+        }
+        if (dataLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("item too large " + dataLength);
+        }
+        ByteBuffer header = ByteBuffer.allocate(2 + key.length + 4);
+        header.putShort((short) key.length).put(key).putInt((int) dataLength).flip();
+        return header;
+    }
+
+    /**
+     * Writes one item to a stream, with the data sent from the region.
+     */
+    static void write(OutputStream output, String keyUrl, SpokeRegion region) throws IOException {
+        ByteBuffer header = header(keyUrl, region.getLength());
+        output.write(header.array(), header.arrayOffset(), header.remaining());
+        region.send(output);
+    }
+
+    @Override
+    public String getContentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Each iteration wraps the existing item arrays, so sending to several servers does not copy the batch.
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new Iterator<ByteBuffer>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < headers.size() * 2;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                int item = index / 2;
+                ByteBuffer buffer = index % 2 == 0 ? headers.get(item).duplicate() : ByteBuffer.wrap(items.get(item));
+                index++;
+                return buffer;
+            }
+        };
+    }
+
+    /**
+     * Reads items from a stream.  Each item's data must be consumed or skipped before moving to the next.
+     */
+    static class Reader {
+        private final DataInputStream input;
+        private String key;
+        private InputStream data;
+        private int captureBytes;
+        private BiConsumer<String, byte[]> captured;
+
+        Reader(InputStream input) {
+            this.input = new DataInputStream(input);
+        }
+
+        /**
+         * Each item is passed to the consumer with its key as it is reached.  Items of at most maxBytes are read into
+         * memory and passed with their data, larger items with null.
+         */
+        Reader capture(int maxBytes, BiConsumer<String, byte[]> consumer) {
+            this.captureBytes = maxBytes;
+            this.captured = consumer;
+            return this;
+        }
+
+        /**
+         * @return false at the end of the stream
+         * @throws EOFException if the stream ends within an item
+         * @throws IOException if an item's length is invalid
+         */
+        boolean next() throws IOException {
+            if (data != null) {
+                ByteStreams.exhaust(data);
+            }
+            int keyLength = input.read();
+            if (keyLength < 0) {
+                return false;
+            }
+            keyLength = (keyLength << 8) | input.readUnsignedByte();
+            byte[] keyBytes = new byte[keyLength];
+            input.readFully(keyBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            int dataLength = input.readInt();
+            if (dataLength < 0) {
+                throw new IOException("invalid length " + dataLength + " for bulk item " + key);
+            }
+            if (captured != null && dataLength <= captureBytes) {
+                byte[] bytes = new byte[dataLength];
+                input.readFully(bytes);
+                captured.accept(key, bytes);
+                data = new ByteArrayInputStream(bytes);
+            } else {
+                if (captured != null) {
+                    captured.accept(key, null);
+                }
+                data = new CompleteInputStream(ByteStreams.limit(input, dataLength), dataLength);
+            }
+            return true;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        InputStream getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Throws EOFException if the underlying stream ends before the expected length.
+     */
+    private static class CompleteInputStream extends InputStream {
+        private final InputStream input;
+        private long remaining;
+
+        private CompleteInputStream(InputStream input, long length) {
+            this.input = input;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = input.read();
+            return check(read < 0 ? -1 : 1) < 0 ? -1 : read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return check(input.read(buffer, offset, length));
+        }
+
+        private int check(int read) throws EOFException {
+            if (read < 0) {
+                if (remaining > 0) {
+                    throw new EOFException("bulk item ended early, missing " + remaining + " bytes");
+                }
+                return -1;
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
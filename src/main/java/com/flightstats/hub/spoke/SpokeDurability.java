@@ -0,0 +1,113 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubServices;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a LocalSpokeStore's writes are flushed to disk.
+ * NONE leaves flushing to the operating system, PERIODIC fsyncs everything written since the last
+ * group commit every periodMillis, and ITEM fsyncs each write before it is acknowledged.
+ */
+public class SpokeDurability {
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokeDurability.class);
+
+    public enum Mode {
+        NONE,
+        PERIODIC,
+        ITEM
+    }
+
+    interface Syncable {
+        void sync() throws IOException;
+    }
+
+    private final Mode mode;
+    private final Map<Object, Syncable> pending = new ConcurrentHashMap<>();
+
+    public SpokeDurability(Mode mode, long periodMillis) {
+        this.mode = mode;
+        if (mode == Mode.PERIODIC) {
+            HubServices.register(new GroupCommitService(periodMillis));
+        }
+    }
+
+    public static SpokeDurability none() {
+        return new SpokeDurability(Mode.NONE, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    boolean isItem() {
+        return mode == Mode.ITEM;
+    }
+
+    /**
+     * In PERIODIC mode, syncs the item at the next group commit.  Items with the same key are synced once.
+     */
+    void schedule(Object key, Syncable syncable) {
+        if (mode == Mode.PERIODIC) {
+            pending.put(key, syncable);
+        }
+    }
+
+    /**
+     * Flushes a file or directory to disk, after it was written or had entries renamed into it.
+     */
+    static void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    void commit() {
+        for (Map.Entry<Object, Syncable> entry : pending.entrySet()) {
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                try {
+                    entry.getValue().sync();
+                } catch (IOException e) {
+                    logger.debug("unable to sync {} {}", entry.getKey(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class GroupCommitService extends AbstractScheduledService {
+        private final long periodMillis;
+
+        private GroupCommitService(long periodMillis) {
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                commit();
+            } catch (Exception e) {
+                logger.warn("unable to commit", e);
+            }
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            commit();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.Traces;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.NotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies the unexpired items of a decommissioning server's WRITE store to the servers which remain in the cluster,
+ * so the server can leave the cluster without waiting for its items to age out of the spoke TTL.
+ * Each minute's keys are compared with the other servers, using their minute summaries and, where those differ,
+ * their keys, and each item is only sent to enough servers missing it to reach spoke.write.factor copies.
+ * Items are sent with the bulk write api in batches of spoke.decommission.handoff.batchBytes, and a batch only counts
+ * once every server it was sent to has acknowledged it, as this server's copies are gone once it stops.
+ * Batches are limited to spoke.decommission.handoff.bytesPerSecond.
+ */
+@Singleton
+public class SpokeHandoff {
+    private final static Logger logger = LoggerFactory.getLogger(SpokeHandoff.class);
+
+    private final LocalSpokeStore localStore;
+    private final RemoteSpokeStore remoteStore;
+    private final CuratorCluster cluster;
+    private final MetricsService metricsService;
+    private final boolean enabled = HubProperties.getProperty("spoke.decommission.handoff", false);
+    private final int delaySeconds = HubProperties.getProperty("spoke.decommission.handoff.delaySeconds", 30);
+    private final int batchBytes = HubProperties.getProperty("spoke.decommission.handoff.batchBytes", 1024 * 1024);
+    private final int writeFactor = HubProperties.getProperty("spoke.write.factor", 3);
+    private final RateLimiter rateLimiter = RateLimiter.create(
+            HubProperties.getProperty("spoke.decommission.handoff.bytesPerSecond", 10 * 1024 * 1024));
+
+    @Inject
+    public SpokeHandoff(@Named("WRITE") LocalSpokeStore localStore, RemoteSpokeStore remoteStore,
+                        @Named("SpokeCuratorCluster") CuratorCluster cluster, MetricsService metricsService) {
+        this.localStore = localStore;
+        this.remoteStore = remoteStore;
+        this.cluster = cluster;
+        this.metricsService = metricsService;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Seconds to wait after leaving write rotation, so writes already sent to this server land before the handoff.
+     * Also the wait before trying again while {@link #isReady()} is false.
+     */
+    public int getDelaySeconds() {
+        return delaySeconds;
+    }
+
+    /**
+     * The handoff needs this server's usage, which is loaded in the background after a restart.
+     */
+    public boolean isReady() {
+        return localStore.getUsage().isComplete();
+    }
+
+    /**
+     * @return true if every unexpired item was accepted by the remaining servers
+     */
+    public boolean handoff() {
+        SpokeUsage usage = localStore.getUsage();
+        if (!usage.isComplete()) {
+            logger.warn("unable to handoff until usage is complete");
+            return false;
+        }
+        List<String> servers = new ArrayList<>(cluster.getActiveServers());
+        servers.remove(Cluster.getHost(true));
+        servers.remove(Cluster.getHost(false));
+        if (servers.isEmpty()) {
+            logger.warn("no servers to handoff to");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        long oldest = TimeUtil.now().minusMinutes(HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE)).getMillis();
+        long items = 0;
+        for (String channel : usage.getChannels()) {
+            Map<String, Map<Long, SpokeUsage.Summary>> remoteMinutes = getMinuteSummaries(channel, servers, oldest, start);
+            for (SpokeUsage.Summary minute : usage.getMinutes(channel, oldest, Long.MAX_VALUE, false)) {
+                long sent = handoff(channel, minute, servers, remoteMinutes);
+                if (sent < 0) {
+                    return false;
+                }
+                items += sent;
+            }
+        }
+        logger.info("handed off {} items in {} millis", items, System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * Servers which can not be asked are treated as holding none of the channel.
+     */
+    private Map<String, Map<Long, SpokeUsage.Summary>> getMinuteSummaries(String channel, List<String> servers,
+                                                                          long start, long end) {
+        Map<String, Map<Long, SpokeUsage.Summary>> remoteMinutes = new HashMap<>();
+        for (String server : servers) {
+            try {
+                remoteMinutes.put(server, remoteStore.getMinuteSummaries(SpokeStore.WRITE, server, channel, start, end));
+            } catch (IOException e) {
+                logger.info("unable to get summaries of {} from {} {}", channel, server, e.getMessage());
+                remoteMinutes.put(server, Collections.emptyMap());
+            }
+        }
+        return remoteMinutes;
+    }
+
+    /**
+     * @return the number of items sent, or -1 if a batch was not accepted
+     */
+    private long handoff(String channel, SpokeUsage.Summary minute, List<String> servers,
+                         Map<String, Map<Long, SpokeUsage.Summary>> remoteMinutes) {
+        String timePath = TimeUtil.minutes(new DateTime(minute.getMillis(), DateTimeZone.UTC));
+        List<ContentKey> keys = new ArrayList<>();
+        localStore.readKeysInBucket(channel + "/" + timePath, (keyChannel, key) -> keys.add(key));
+        Map<String, Set<ContentKey>> held = new HashMap<>();
+        for (String server : servers) {
+            SpokeUsage.Summary remote = remoteMinutes.get(server).get(minute.getMillis());
+            if (remote == null) {
+                continue;
+            }
+            if (minute.matches(remote)) {
+                held.put(server, new HashSet<>(keys));
+            } else {
+                try {
+                    held.put(server, remoteStore.readTimeBucket(SpokeStore.WRITE, server, channel, timePath));
+                } catch (IOException e) {
+                    logger.info("unable to read {} {} from {} {}", channel, timePath, server, e.getMessage());
+                }
+            }
+        }
+        Map<List<String>, List<ContentKey>> targets = getTargets(keys, servers, held);
+        long sent = 0;
+        for (Map.Entry<List<String>, List<ContentKey>> entry : targets.entrySet()) {
+            if (!send(channel, entry.getValue(), entry.getKey())) {
+                return -1;
+            }
+            sent += entry.getValue().size();
+        }
+        return sent;
+    }
+
+    /**
+     * Picks, for each key, the servers missing it until spoke.write.factor servers hold it,
+     * preferring the servers currently chosen for writes.
+     *
+     * @return the keys to send, grouped by the servers to send them to
+     */
+    private Map<List<String>, List<ContentKey>> getTargets(List<ContentKey> keys, List<String> servers,
+                                                          Map<String, Set<ContentKey>> held) {
+        List<String> preferred = new ArrayList<>(cluster.getWriteServers());
+        preferred.retainAll(servers);
+        for (String server : servers) {
+            if (!preferred.contains(server)) {
+                preferred.add(server);
+            }
+        }
+        int copies = Math.min(writeFactor, servers.size());
+        Map<List<String>, List<ContentKey>> targets = new LinkedHashMap<>();
+        for (ContentKey key : keys) {
+            int holders = 0;
+            for (Set<ContentKey> serverKeys : held.values()) {
+                if (serverKeys.contains(key)) {
+                    holders++;
+                }
+            }
+            List<String> missing = new ArrayList<>();
+            for (String server : preferred) {
+                if (holders + missing.size() >= copies) {
+                    break;
+                }
+                if (!held.getOrDefault(server, Collections.emptySet()).contains(key)) {
+                    missing.add(server);
+                }
+            }
+            if (!missing.isEmpty()) {
+                targets.computeIfAbsent(missing, targetServers -> new ArrayList<>()).add(key);
+            }
+        }
+        return targets;
+    }
+
+    private boolean send(String channel, List<ContentKey> keys, List<String> servers) {
+        List<Content> batch = new ArrayList<>();
+        int bytes = 0;
+        for (ContentKey key : keys) {
+            byte[] data;
+            try {
+                data = localStore.read(channel + "/" + key.toUrl());
+            } catch (NotFoundException e) {
+                //expired since the keys were read
+                continue;
+            }
+            batch.add(Content.builder().withContentKey(key).withData(data).build());
+            bytes += data.length;
+            if (bytes >= batchBytes) {
+                if (!send(channel, batch, bytes, servers)) {
+                    return false;
+                }
+                batch.clear();
+                bytes = 0;
+            }
+        }
+        return batch.isEmpty() || send(channel, batch, bytes, servers);
+    }
+
+    private boolean send(String channel, List<Content> batch, int bytes, List<String> servers) {
+        rateLimiter.acquire(Math.max(1, bytes));
+        Traces traces = new Traces("handoff", channel);
+        if (!remoteStore.insertAll(SpokeStore.WRITE, channel, new SpokeBulk(batch), servers, traces, "bulkKey", channel)) {
+            traces.log(logger);
+            return false;
+        }
+        metricsService.count("spoke.handoff.items", batch.size());
+        metricsService.count("spoke.handoff.bytes", bytes);
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+
+import java.io.IOException;
+
+/**
+ * Receives the keys found by a LocalSpokeStore query, see SpokeKeys for the wire formats.
+ */
+@FunctionalInterface
+public interface SpokeKeyWriter {
+
+    void write(String channel, ContentKey key) throws IOException;
+
+}
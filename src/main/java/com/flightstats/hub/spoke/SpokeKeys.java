@@ -0,0 +1,71 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * The formats Spoke servers use to return keys for time, next and latest queries.
+ * <p>
+ * The original format is comma separated "channel/yyyy/MM/dd/HH/mm/ss/SSS/hash" strings.
+ * The binary format omits the channel, and writes each key as [unsigned short hashLength][long millis][hash],
+ * so keys can be streamed and merged by callers without building and parsing date strings.
+ * Callers ask for the binary format with the FORMAT query parameter, and servers which support it respond with
+ * the MEDIA_TYPE content type.
+ */
+public class SpokeKeys {
+
+    public static final String MEDIA_TYPE = "application/x-hub-spoke-keys";
+    static final String FORMAT = "format";
+    static final String BINARY = "binary";
+
+    public static SpokeKeyWriter csv(OutputStream output) {
+        return (channel, key) -> output.write((channel + "/" + key.toUrl() + ",").getBytes());
+    }
+
+    public static SpokeKeyWriter binary(OutputStream output) {
+        DataOutputStream stream = new DataOutputStream(output);
+        return (channel, key) -> write(stream, key);
+    }
+
+    static void write(DataOutputStream stream, ContentKey key) throws IOException {
+        byte[] hash = key.getHash().getBytes(StandardCharsets.UTF_8);
+        stream.writeShort(hash.length);
+        stream.writeLong(key.getMillis());
+        stream.write(hash);
+    }
+
+    /**
+     * Reads binary keys until the end of the stream.
+     *
+     * @return the number of keys read
+     */
+    public static int read(InputStream input, Collection<ContentKey> keys) throws IOException {
+        DataInputStream stream = new DataInputStream(input);
+        int count = 0;
+        while (true) {
+            int high = stream.read();
+            if (high < 0) {
+                return count;
+            }
+            int low = stream.read();
+            if (low < 0) {
+                throw new EOFException("incomplete key after " + count + " keys");
+            }
+            long millis = stream.readLong();
+            byte[] hash = new byte[(high << 8) + low];
+            stream.readFully(hash);
+            keys.add(new ContentKey(new DateTime(millis, DateTimeZone.UTC), new String(hash, StandardCharsets.UTF_8)));
+            count++;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.flightstats.hub.spoke;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
 import java.io.File;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -82,4 +85,30 @@ class SpokePathUtil {
         return new File(hourPath);
     }
 
+    /**
+     * @return the inclusive start and exclusive end of a "channel/yyyy[/MM[/dd[/HH[/mm[/ss]]]]]" path
+     */
+    static DateTime[] timeBucket(String[] split) {
+        int[] fields = {0, 1, 1, 0, 0, 0};
+        int parts = Math.min(split.length - 1, fields.length);
+        for (int i = 0; i < parts; i++) {
+            fields[i] = Integer.parseInt(split[i + 1]);
+        }
+        DateTime start = new DateTime(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5], DateTimeZone.UTC);
+        switch (parts) {
+            case 1:
+                return new DateTime[]{start, start.plusYears(1)};
+            case 2:
+                return new DateTime[]{start, start.plusMonths(1)};
+            case 3:
+                return new DateTime[]{start, start.plusDays(1)};
+            case 4:
+                return new DateTime[]{start, start.plusHours(1)};
+            case 5:
+                return new DateTime[]{start, start.plusMinutes(1)};
+            default:
+                return new DateTime[]{start, start.plusSeconds(1)};
+        }
+    }
+
 }
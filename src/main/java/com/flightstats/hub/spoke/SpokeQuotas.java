@@ -0,0 +1,75 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.exception.QuotaExceededException;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Limits the bytes each channel may hold in this server's spoke WRITE store, so one channel can not fill the volume.
+ * Writes to a channel over its quota are rejected until the spoke ttl removes enough of its items.
+ * A channel's quota is spoke.quota.bytes.{channel} if set, otherwise spoke.quota.bytes,
+ * otherwise spoke.quota.percent of the volume.  Writes are spread across the spoke servers,
+ * so this server's share of a channel stands in for the channel's share of the cluster.
+ * Quotas are only enforced when spoke.quota is set.
+ */
+@Singleton
+public class SpokeQuotas {
+    private final static Logger logger = LoggerFactory.getLogger(SpokeQuotas.class);
+
+    private final LocalSpokeStore store;
+    private final MetricsService metricsService;
+    private final boolean enabled;
+    private final long defaultBytes;
+
+    @Inject
+    public SpokeQuotas(@Named("WRITE") LocalSpokeStore store, MetricsService metricsService) {
+        this(store, metricsService, HubProperties.getProperty("spoke.quota", false),
+                new File(HubProperties.getSpokePath(SpokeStore.WRITE)).getTotalSpace());
+    }
+
+    SpokeQuotas(LocalSpokeStore store, MetricsService metricsService, boolean enabled, long volumeBytes) {
+        this.store = store;
+        this.metricsService = metricsService;
+        this.enabled = enabled;
+        long bytes = HubProperties.getProperty("spoke.quota.bytes", 0L);
+        if (bytes <= 0) {
+            if (enabled && volumeBytes <= 0) {
+                logger.warn("unable to read the size of the spoke volume {}, only channels with spoke.quota.bytes.{channel} have quotas",
+                        HubProperties.getSpokePath(SpokeStore.WRITE));
+            }
+            bytes = (long) (volumeBytes * HubProperties.getProperty("spoke.quota.percent", 25.0) / 100);
+        }
+        this.defaultBytes = bytes;
+        logger.info("channel quotas enabled {}, default {} bytes", enabled, defaultBytes);
+    }
+
+    /**
+     * @throws QuotaExceededException if the channel holds more than its quota
+     */
+    public void check(String channel) {
+        if (!enabled) {
+            return;
+        }
+        long quota = getQuota(channel);
+        if (quota <= 0) {
+            return;
+        }
+        long bytes = store.getUsage().getBytes(channel);
+        if (bytes > quota) {
+            metricsService.count("spoke.quota.rejected", 1, "channel:" + channel);
+            logger.info("rejecting write to {}, {} bytes exceeds quota {}", channel, bytes, quota);
+            throw new QuotaExceededException(channel + " has exceeded its spoke quota of " + quota + " bytes");
+        }
+    }
+
+    long getQuota(String channel) {
+        return HubProperties.getProperty("spoke.quota.bytes." + channel, defaultBytes);
+    }
+}
@@ -1,27 +1,49 @@
 package com.flightstats.hub.spoke;
 
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.cluster.Cluster;
 import com.flightstats.hub.dao.ContentDao;
 import com.flightstats.hub.dao.QueryResult;
 import com.flightstats.hub.exception.FailedQueryException;
 import com.flightstats.hub.metrics.ActiveTraces;
+import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
+import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.lang3.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.util.Collections;
+import java.util.List;
 import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class SpokeReadContentDao implements ContentDao {
 
     private final static Logger logger = LoggerFactory.getLogger(SpokeReadContentDao.class);
 
+    private static final boolean bloomFilters = HubProperties.getProperty("spoke.bloom", true);
+
     @Inject
     private RemoteSpokeStore spokeStore;
+    @Inject
+    private MetricsService metricsService;
+
+    /**
+     * The Bloom filters from every spoke server for recently requested minutes, absent when a server could not provide one.
+     */
+    private final Cache<String, Optional<List<BloomFilter<ContentKey>>>> minuteFilters = CacheBuilder.newBuilder()
+            .expireAfterWrite(HubProperties.getProperty("spoke.bloom.cacheSeconds", 60), TimeUnit.SECONDS)
+            .maximumSize(HubProperties.getProperty("spoke.bloom.cacheSize", 10000))
+            .build();
 
     @Override
     public ContentKey insert(String channelName, Content content) throws Exception {
@@ -30,12 +52,45 @@ public class SpokeReadContentDao implements ContentDao {
 
     @Override
     public SortedSet<ContentKey> insert(BulkContent bulkContent) throws Exception {
-        return SpokeContentDao.insert(bulkContent, (baos) -> {
+        return SpokeContentDao.insert(bulkContent, bulk -> {
             String channel = bulkContent.getChannel();
-            return spokeStore.insert(SpokeStore.READ, channel, baos.toByteArray(), Cluster.getLocalServer(), ActiveTraces.getLocal(), "bulkKey", channel);
+            boolean inserted = spokeStore.insert(SpokeStore.READ, channel, bulk, Cluster.getLocalServer(), ActiveTraces.getLocal(), "bulkKey", channel);
+            for (Content content : bulkContent.getItems()) {
+                minuteFilters.invalidate(getMinutePath(channel, content.getContentKey().get()));
+            }
+            return inserted;
         });
     }
 
+    private String getMinutePath(String channelName, ContentKey key) {
+        return channelName + "/" + TimeUtil.minutes(key.getTime());
+    }
+
+    /**
+     * @return false only if every spoke server's filter for the key's minute excludes the key
+     */
+    private boolean mightContain(String channelName, ContentKey key) {
+        if (!bloomFilters) {
+            return true;
+        }
+        try {
+            Optional<List<BloomFilter<ContentKey>>> filters = minuteFilters.get(getMinutePath(channelName, key),
+                    () -> spokeStore.getBloomFilters(SpokeStore.READ, channelName, key.getTime()));
+            if (!filters.isPresent()) {
+                return true;
+            }
+            for (BloomFilter<ContentKey> filter : filters.get()) {
+                if (filter.mightContain(key)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.info("unable to get bloom filters " + channelName + " " + key, e);
+            return true;
+        }
+    }
+
     private String getPath(String channelName, ContentKey key) {
         return channelName + "/" + key.toUrl();
     }
@@ -46,6 +101,10 @@ public class SpokeReadContentDao implements ContentDao {
         Traces traces = ActiveTraces.getLocal();
         traces.add("SpokeReadContentDao.read");
         try {
+            if (!mightContain(channelName, key)) {
+                metricsService.increment("spoke.bloom.skipped");
+                return null;
+            }
             return spokeStore.get(SpokeStore.READ, path, key);
         } catch (Exception e) {
             logger.warn("unable to get data: " + path, e);
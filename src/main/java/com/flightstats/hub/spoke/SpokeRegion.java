@@ -0,0 +1,87 @@
+package com.flightstats.hub.spoke;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An open payload within a file, so it can be streamed to a caller from the file
+ * without reading the whole item into memory.  Payloads held in memory are sent from their buffer.
+ */
+public class SpokeRegion implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long position;
+    private final long length;
+    private Runnable closed;
+
+    SpokeRegion(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.buffer = null;
+        this.position = position;
+        this.length = length;
+        this.closed = null;
+    }
+
+    SpokeRegion(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param closed run the first time the region is closed, so a pooled buffer can be reused
+     */
+    SpokeRegion(ByteBuffer buffer, Runnable closed) {
+        this.channel = null;
+        this.buffer = buffer.duplicate();
+        this.position = 0;
+        this.length = buffer.remaining();
+        this.closed = closed;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the payload to the output with FileChannel.transferTo, which works the same inside or outside a request,
+     * and with or without an encoding on the response.
+     */
+    public void send(OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        if (buffer != null) {
+            ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                target.write(source);
+            }
+            return;
+        }
+        long current = position;
+        long remaining = length;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(current, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("incomplete payload at " + current);
+            }
+            current += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        if (closed != null) {
+            Runnable run = closed;
+            closed = null;
+            run.run();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anti-entropy between the spoke servers' WRITE stores.
+ * Writes succeed at a quorum, so a server can miss items.  Each server periodically compares digests of its recent
+ * minutes with each peer, narrowing from whole channels to single minutes, and pulls only the items it is missing.
+ * Peers do the same, so the cluster converges without comparing full key lists or reading from S3.
+ * Repair only runs while the cluster has no more than spoke.write.factor servers, when every server is meant to hold
+ * every item; with more servers, pulling everything a peer holds would undo write placement.
+ */
+@Singleton
+public class SpokeRepair {
+    private final static Logger logger = LoggerFactory.getLogger(SpokeRepair.class);
+
+    private final LocalSpokeStore localStore;
+    private final RemoteSpokeStore remoteStore;
+    private final CuratorCluster cluster;
+    private final ChannelService channelService;
+    private final MetricsService metricsService;
+    private final int windowMinutes;
+    private final int delayMinutes;
+    private final int maxItems;
+    private final int writeFactor;
+
+    @Inject
+    public SpokeRepair(@Named("WRITE") LocalSpokeStore localStore, RemoteSpokeStore remoteStore,
+                       @Named("SpokeCuratorCluster") CuratorCluster cluster, ChannelService channelService,
+                       MetricsService metricsService) {
+        this.localStore = localStore;
+        this.remoteStore = remoteStore;
+        this.cluster = cluster;
+        this.channelService = channelService;
+        this.metricsService = metricsService;
+        int ttlMinutes = HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE);
+        this.delayMinutes = HubProperties.getProperty("spoke.repair.delayMinutes", 2);
+        this.windowMinutes = Math.min(HubProperties.getProperty("spoke.repair.windowMinutes", 60),
+                ttlMinutes - delayMinutes - 1);
+        this.maxItems = HubProperties.getProperty("spoke.repair.maxItems", 10000);
+        this.writeFactor = HubProperties.getProperty("spoke.write.factor", 3);
+        if (HubProperties.getProperty("spoke.repair", false) && windowMinutes > 0) {
+            HubServices.register(new SpokeRepairService(), HubServices.TYPE.AFTER_HEALTHY_START);
+        }
+    }
+
+    /**
+     * Compares the window of minutes ending delayMinutes ago with each peer.
+     *
+     * @return the number of items copied to this server
+     */
+    int repair() {
+        if (!localStore.getUsage().isComplete()) {
+            logger.info("skipping repair until usage is complete");
+            return 0;
+        }
+        int servers = cluster.getAllServers().size();
+        if (servers > writeFactor) {
+            logger.debug("skipping repair, {} servers exceeds the write factor {}", servers, writeFactor);
+            return 0;
+        }
+        DateTime end = TimeUtil.Unit.MINUTES.round(TimeUtil.now().minusMinutes(delayMinutes)).minusMillis(1);
+        DateTime start = TimeUtil.Unit.MINUTES.round(end.minusMinutes(windowMinutes));
+        Set<String> peers = new HashSet<>(cluster.getActiveServers());
+        peers.remove(Cluster.getHost(true));
+        peers.remove(Cluster.getHost(false));
+        int copied = 0;
+        for (String peer : peers) {
+            if (copied >= maxItems) {
+                break;
+            }
+            try {
+                copied += repair(peer, start.getMillis(), end.getMillis(), maxItems - copied);
+            } catch (IOException e) {
+                logger.info("unable to repair from " + peer + " " + e.getMessage());
+            }
+        }
+        if (copied > 0) {
+            logger.info("repaired {} items from {} to {}", copied, start, end);
+        }
+        return copied;
+    }
+
+    private int repair(String peer, long start, long end, int limit) throws IOException {
+        SpokeUsage usage = localStore.getUsage();
+        Map<String, SpokeUsage.Summary> local = usage.summarize(start, end);
+        int copied = 0;
+        for (Map.Entry<String, SpokeUsage.Summary> entry : remoteStore.getSummaries(SpokeStore.WRITE, peer, start, end).entrySet()) {
+            String channel = entry.getKey();
+            if (copied >= limit || entry.getValue().matches(local.get(channel)) || !channelService.channelExists(channel)) {
+                continue;
+            }
+            Map<Long, SpokeUsage.Summary> peerMinutes = remoteStore.getMinuteSummaries(SpokeStore.WRITE, peer, channel, start, end);
+            for (Map.Entry<Long, SpokeUsage.Summary> minute : peerMinutes.entrySet()) {
+                if (copied >= limit) {
+                    break;
+                }
+                SpokeUsage.Summary localMinute = null;
+                for (SpokeUsage.Summary summary : usage.getMinutes(channel, minute.getKey(), minute.getKey(), false)) {
+                    localMinute = summary;
+                }
+                if (!minute.getValue().matches(localMinute)) {
+                    copied += repairMinute(peer, channel, new DateTime(minute.getKey(), DateTimeZone.UTC), limit - copied);
+                }
+            }
+        }
+        return copied;
+    }
+
+    private int repairMinute(String peer, String channel, DateTime minute, int limit) throws IOException {
+        String timePath = TimeUtil.minutes(minute);
+        SortedSet<ContentKey> missing = remoteStore.readTimeBucket(SpokeStore.WRITE, peer, channel, timePath);
+        localStore.readKeysInBucket(channel + "/" + timePath, (keyChannel, key) -> missing.remove(key));
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        List<ContentKey> keys = new ArrayList<>(missing);
+        if (keys.size() > limit) {
+            keys = keys.subList(0, limit);
+        }
+        logger.debug("copying {} items of {} {} from {}", keys.size(), channel, timePath, peer);
+        if (!remoteStore.copy(SpokeStore.WRITE, peer, channel, keys, localStore)) {
+            return 0;
+        }
+        metricsService.count("spoke.repair.items", keys.size(), "channel:" + channel);
+        return keys.size();
+    }
+
+    private class SpokeRepairService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                long start = System.currentTimeMillis();
+                repair();
+                metricsService.time("spoke.repair", start);
+            } catch (Exception e) {
+                logger.warn("unable to repair", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            int periodMinutes = HubProperties.getProperty("spoke.repair.periodMinutes", 5);
+            return Scheduler.newFixedDelaySchedule(periodMinutes, periodMinutes, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.flightstats.hub.spoke;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks recent response times for each spoke server, to decide how long to wait for a server
+ * before hedging a read with a request to another server.
+ */
+class SpokeServerLatencies {
+
+    private final Map<String, Samples> servers = new ConcurrentHashMap<>();
+    private final int sampleSize;
+    private final int minimumSamples;
+    private final double percentile;
+    private final long minMillis;
+    private final long maxMillis;
+
+    SpokeServerLatencies(int sampleSize, int minimumSamples, double percentile, long minMillis, long maxMillis) {
+        this.sampleSize = sampleSize;
+        this.minimumSamples = minimumSamples;
+        this.percentile = percentile;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    void record(String server, long millis) {
+        servers.computeIfAbsent(server, s -> new Samples(sampleSize)).put(millis);
+    }
+
+    /**
+     * @return the tracked percentile latency for the server, bounded by minMillis and maxMillis.
+     * Servers without enough samples return maxMillis.
+     */
+    long getHedgeMillis(String server) {
+        Samples samples = servers.get(server);
+        if (samples == null) {
+            return maxMillis;
+        }
+        long[] sorted = samples.sorted();
+        if (sorted.length < minimumSamples) {
+            return maxMillis;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        long millis = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        return Math.max(minMillis, Math.min(maxMillis, millis));
+    }
+
+    private static class Samples {
+        private final long[] millis;
+        private int position = 0;
+        private int count = 0;
+
+        Samples(int size) {
+            millis = new long[size];
+        }
+
+        synchronized void put(long value) {
+            millis[position] = value;
+            position = (position + 1) % millis.length;
+            count = Math.min(count + 1, millis.length);
+        }
+
+        long[] sorted() {
+            long[] copy;
+            synchronized (this) {
+                copy = Arrays.copyOf(millis, count);
+            }
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
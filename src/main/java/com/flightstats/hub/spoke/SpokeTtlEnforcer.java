@@ -7,7 +7,7 @@ import com.flightstats.hub.dao.TtlEnforcer;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.model.ChannelConfig;
 import com.flightstats.hub.model.ChannelContentKey;
-import com.flightstats.hub.util.FileUtils;
+import com.flightstats.hub.util.DirectoryPurger;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.AbstractScheduledService;
@@ -17,6 +17,7 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -30,6 +31,7 @@ public class SpokeTtlEnforcer {
     private final SpokeStore spokeStore;
     private final String storagePath;
     private final int ttlMinutes;
+    private final int lagWarnMinutes = HubProperties.getProperty("purge.lagWarnMinutes", 10);
 
     @Inject
     private ChannelService channelService;
@@ -40,6 +42,9 @@ public class SpokeTtlEnforcer {
     @Inject
     private SpokeContentDao spokeContentDao;
 
+    @Inject
+    private DirectoryPurger purger;
+
     public SpokeTtlEnforcer(SpokeStore spokeStore) {
         this.spokeStore = spokeStore;
         this.storagePath = HubProperties.getSpokePath(spokeStore);
@@ -52,33 +57,48 @@ public class SpokeTtlEnforcer {
     private Consumer<ChannelConfig> handleCleanup(AtomicLong evictionCounter) {
         return channel -> {
             int itemsEvicted = 0;
-            String channelPath = storagePath + "/" + channel.getDisplayName();
+            String channelName = channel.getDisplayName();
             if (channel.isLive()) {
                 DateTime ttlDateTime = TimeUtil.stable().minusMinutes(ttlMinutes + 1);
                 for (int i = 0; i < 2; i++) {
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.minutes(ttlDateTime.minusMinutes(i)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.hours(ttlDateTime.minusHours(i + 1)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.days(ttlDateTime.minusDays(i + 1)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.months(ttlDateTime.minusMonths(i + 1)));
+                    itemsEvicted += removeFromChannelByTime(channelName, TimeUtil.minutes(ttlDateTime.minusMinutes(i)));
+                    itemsEvicted += removeFromChannelByTime(channelName, TimeUtil.hours(ttlDateTime.minusHours(i + 1)));
+                    itemsEvicted += removeFromChannelByTime(channelName, TimeUtil.days(ttlDateTime.minusDays(i + 1)));
+                    itemsEvicted += removeFromChannelByTime(channelName, TimeUtil.months(ttlDateTime.minusMonths(i + 1)));
                 }
             } else {
-                int waitTimeSeconds = 3;
-                itemsEvicted += FileUtils.deleteFilesByAge(channelPath, ttlMinutes, waitTimeSeconds);
+                long writtenBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ttlMinutes);
+                itemsEvicted += purger.deleteByAge(storagePath + "/" + channelName, ttlMinutes);
+                getUsage().removeWrittenBefore(channelName, writtenBefore);
             }
             evictionCounter.getAndAdd(itemsEvicted);
         };
     }
 
-    private long removeFromChannelByTime(String channelPath, String timePath) {
-        String path = channelPath + "/" + timePath;
-        int waitTimeSeconds = 3;
-        return FileUtils.deleteFiles(path, waitTimeSeconds);
+    private long removeFromChannelByTime(String channel, String timePath) {
+        long deleted = purger.delete(storagePath + "/" + channel + "/" + timePath);
+        getUsage().remove(channel + "/" + timePath);
+        return deleted;
     }
 
-    private void updateOldestItemMetric() {
-        Optional<ChannelContentKey> potentialItem = spokeContentDao.getOldestItem(spokeStore);
+    private SpokeUsage getUsage() {
+        return spokeContentDao.getUsage(spokeStore);
+    }
+
+    private void updateUsageMetrics() {
+        SpokeUsage usage = getUsage();
+        usage.retainChannels(channel -> new File(storagePath, channel).exists());
+        Optional<ChannelContentKey> potentialItem = usage.getOldest();
         long oldestItemAgeMS = potentialItem.isPresent() ? potentialItem.get().getAgeMS() : 0;
         metricsService.gauge(buildMetricName("age", "oldest"), oldestItemAgeMS);
+        long lagMinutes = TimeUnit.MILLISECONDS.toMinutes(oldestItemAgeMS) - ttlMinutes;
+        metricsService.gauge(buildMetricName("ttl", "lag"), Math.max(0, lagMinutes));
+        if (lagMinutes > lagWarnMinutes) {
+            logger.warn("spoke {} purging is {} minutes behind the ttl, oldest item {}",
+                    spokeStore, lagMinutes, potentialItem.get());
+        }
+        metricsService.gauge(buildMetricName("items"), usage.getItems());
+        metricsService.gauge(buildMetricName("bytes"), usage.getBytes());
     }
 
     private String buildMetricName(String... elements) {
@@ -94,8 +114,8 @@ public class SpokeTtlEnforcer {
                 long start = System.currentTimeMillis();
                 AtomicLong evictionCounter = new AtomicLong(0);
                 logger.info("running ttl cleanup");
-                TtlEnforcer.enforce(storagePath, channelService, handleCleanup(evictionCounter));
-                updateOldestItemMetric();
+                TtlEnforcer.enforce(storagePath, channelService, purger, handleCleanup(evictionCounter));
+                updateUsageMetrics();
                 metricsService.gauge(buildMetricName("evicted"), evictionCounter.get());
                 long runtime = (System.currentTimeMillis() - start);
                 logger.info("completed ttl cleanup {}", runtime);
@@ -0,0 +1,413 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.common.collect.FluentIterable;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Item counts, byte totals and the oldest key for each channel in a LocalSpokeStore,
+ * maintained as items are written and deleted, in buckets of one minute of content keys.
+ * Deleting a time path, as ttl enforcement does, drops whole buckets, so nothing needs to walk the file system.
+ * The populated minutes also let directional queries skip empty hours and days, while the usage is complete.
+ */
+public class SpokeUsage {
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokeUsage.class);
+
+    private static final int VERSION = 3;
+
+    private final Map<String, NavigableMap<Long, Minute>> channels = new ConcurrentHashMap<>();
+    private volatile boolean changed;
+    private volatile boolean complete = true;
+
+    void add(String channel, ContentKey key, long bytes) {
+        long minute = TimeUtil.Unit.MINUTES.round(key.getTime()).getMillis();
+        channels.computeIfAbsent(channel, name -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(minute, millis -> new Minute())
+                .add(key, bytes);
+        changed = true;
+    }
+
+    void remove(String channel, ContentKey key, long bytes) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        if (minutes == null) {
+            return;
+        }
+        long millis = TimeUtil.Unit.MINUTES.round(key.getTime()).getMillis();
+        Minute minute = minutes.get(millis);
+        if (minute != null) {
+            minute.remove(key, bytes);
+            changed = true;
+        }
+    }
+
+    /**
+     * @param path "channel" or "channel/yyyy[/MM[/dd[/HH[/mm]]]]", as deleted from the store
+     */
+    void remove(String path) {
+        String[] split = StringUtils.split(path, "/");
+        if (split.length == 0) {
+            return;
+        }
+        if (split.length == 1) {
+            channels.remove(split[0]);
+        } else {
+            NavigableMap<Long, Minute> minutes = channels.get(split[0]);
+            if (minutes == null) {
+                return;
+            }
+            DateTime[] bucket = SpokePathUtil.timeBucket(split);
+            minutes.subMap(bucket[0].getMillis(), true, bucket[1].getMillis(), false).clear();
+        }
+        changed = true;
+    }
+
+    /**
+     * Drops the minutes of a channel which were last written before the millis, for stores deleting items by file age.
+     */
+    void removeWrittenBefore(String channel, long millis) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        if (minutes != null && minutes.values().removeIf(minute -> minute.lastWrite < millis)) {
+            changed = true;
+        }
+    }
+
+    void retainChannels(Predicate<String> predicate) {
+        if (channels.keySet().removeIf(predicate.negate())) {
+            changed = true;
+        }
+    }
+
+    Set<String> getChannels() {
+        return channels.keySet();
+    }
+
+    public long getItems() {
+        return channels.keySet().stream().mapToLong(this::getItems).sum();
+    }
+
+    public long getItems(String channel) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        return minutes == null ? 0 : minutes.values().stream().mapToLong(minute -> minute.items).sum();
+    }
+
+    public long getBytes() {
+        return channels.keySet().stream().mapToLong(this::getBytes).sum();
+    }
+
+    public long getBytes(String channel) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        return minutes == null ? 0 : minutes.values().stream().mapToLong(minute -> minute.bytes).sum();
+    }
+
+    public Optional<ChannelContentKey> getOldest() {
+        ChannelContentKey oldest = null;
+        for (String channel : channels.keySet()) {
+            Optional<ChannelContentKey> channelOldest = getOldest(channel);
+            if (channelOldest.isPresent() && (oldest == null || channelOldest.get().compareTo(oldest) < 0)) {
+                oldest = channelOldest.get();
+            }
+        }
+        return Optional.fromNullable(oldest);
+    }
+
+    /**
+     * The populated minutes of a channel from startMillis to endMillis, both inclusive, read lazily.
+     */
+    Iterable<Summary> getMinutes(String channel, long startMillis, long endMillis, boolean descending) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        if (minutes == null || startMillis > endMillis) {
+            return Collections.emptyList();
+        }
+        NavigableMap<Long, Minute> range = minutes.subMap(startMillis, true, endMillis, true);
+        if (descending) {
+            range = range.descendingMap();
+        }
+        return FluentIterable.from(range.entrySet())
+                .filter(entry -> entry.getValue().items > 0)
+                .transform(entry -> entry.getValue().summarize(entry.getKey()));
+    }
+
+    /**
+     * The populated minutes of each channel from startMillis to endMillis, both inclusive, combined into one summary.
+     * Two stores with the same summary for a channel almost certainly hold the same keys.
+     */
+    Map<String, Summary> summarize(long startMillis, long endMillis) {
+        Map<String, Summary> summaries = new HashMap<>();
+        for (String channel : channels.keySet()) {
+            Summary combined = null;
+            for (Summary minute : getMinutes(channel, startMillis, endMillis, false)) {
+                combined = combined == null ? minute : combined.combine(minute);
+            }
+            if (combined != null) {
+                summaries.put(channel, combined);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * An order independent hash of a key, combined into minute digests with xor.
+     */
+    static long hash(ContentKey key) {
+        return Hashing.murmur3_128().hashString(key.toUrl(), StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * False while the usage is being rebuilt, when it may be missing minutes which are on disk.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public Optional<ChannelContentKey> getOldest(String channel) {
+        NavigableMap<Long, Minute> minutes = channels.get(channel);
+        if (minutes != null) {
+            for (Minute minute : minutes.values()) {
+                ContentKey oldest = minute.oldest;
+                if (oldest != null) {
+                    return Optional.of(new ChannelContentKey(channel, oldest));
+                }
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Replaces minutes here with the minutes from the other usage, for minutes which were rescanned from disk.
+     */
+    void replace(SpokeUsage other) {
+        for (Map.Entry<String, NavigableMap<Long, Minute>> entry : other.channels.entrySet()) {
+            channels.computeIfAbsent(entry.getKey(), name -> new ConcurrentSkipListMap<>()).putAll(entry.getValue());
+        }
+        changed = true;
+    }
+
+    /**
+     * Writes a snapshot to the file if anything has changed since the last save.
+     * The snapshot is written to a temporary file and renamed, so a crash leaves the previous snapshot intact.
+     */
+    void save(File file) throws IOException {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(VERSION);
+            for (Map.Entry<String, NavigableMap<Long, Minute>> channel : channels.entrySet()) {
+                for (Map.Entry<Long, Minute> entry : channel.getValue().entrySet()) {
+                    Minute minute = entry.getValue();
+                    synchronized (minute) {
+                        if (minute.oldest == null) {
+                            continue;
+                        }
+                        output.writeUTF(channel.getKey());
+                        output.writeLong(entry.getKey());
+                        output.writeLong(minute.items);
+                        output.writeLong(minute.bytes);
+                        output.writeLong(minute.lastWrite);
+                        output.writeUTF(minute.oldest.toUrl());
+                        output.writeUTF(minute.newest.toUrl());
+                        output.writeLong(minute.digest);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            changed = true;
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return false if the file does not exist or can not be read
+     */
+    boolean load(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != VERSION) {
+                logger.info("ignoring usage file with unknown version {}", file);
+                return false;
+            }
+            while (true) {
+                String channel;
+                try {
+                    channel = input.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                long millis = input.readLong();
+                Minute minute = new Minute();
+                minute.items = input.readLong();
+                minute.bytes = input.readLong();
+                minute.lastWrite = input.readLong();
+                minute.oldest = ContentKey.fromUrl(input.readUTF()).orNull();
+                minute.newest = ContentKey.fromUrl(input.readUTF()).orNull();
+                minute.digest = input.readLong();
+                channels.computeIfAbsent(channel, name -> new ConcurrentSkipListMap<>()).put(millis, minute);
+            }
+            logger.info("loaded usage for {} channels from {}", channels.size(), file);
+            return true;
+        } catch (IOException e) {
+            logger.warn("unable to load usage from " + file, e);
+            channels.clear();
+            return false;
+        }
+    }
+
+    /**
+     * A populated minute of a channel, or a range of minutes.
+     * First and last are bounds, as they are not narrowed when single items are deleted.
+     * The digest is the xor of the hashes of every key.
+     */
+    static class Summary {
+        private final long millis;
+        private final long items;
+        private final ContentKey first;
+        private final ContentKey last;
+        private final long digest;
+
+        Summary(long millis, long items, ContentKey first, ContentKey last, long digest) {
+            this.millis = millis;
+            this.items = items;
+            this.first = first;
+            this.last = last;
+            this.digest = digest;
+        }
+
+        private Summary combine(Summary other) {
+            return new Summary(Math.min(millis, other.millis), items + other.items,
+                    min(first, other.first), max(last, other.last), digest ^ other.digest);
+        }
+
+        private static ContentKey min(ContentKey one, ContentKey two) {
+            return one == null || (two != null && two.compareTo(one) < 0) ? two : one;
+        }
+
+        private static ContentKey max(ContentKey one, ContentKey two) {
+            return one == null || (two != null && two.compareTo(one) > 0) ? two : one;
+        }
+
+        /**
+         * Summaries from different stores match if they have the same items and digest.
+         */
+        boolean matches(Summary other) {
+            return other != null && items == other.items && digest == other.digest;
+        }
+
+        long getDigest() {
+            return digest;
+        }
+
+        /**
+         * A "name items digest" line of the text format servers exchange summaries in.
+         */
+        String toLine(String name) {
+            return name + " " + items + " " + Long.toHexString(digest) + "\n";
+        }
+
+        /**
+         * @param lines lines from {@link #toLine(String)}
+         * @return the summaries by name, with the millis given
+         */
+        static Map<String, Summary> parse(String lines, long millis) {
+            Map<String, Summary> summaries = new HashMap<>();
+            for (String line : StringUtils.split(lines, "\n")) {
+                String[] parts = StringUtils.split(line, " ");
+                if (parts.length == 3) {
+                    summaries.put(parts[0], new Summary(millis, Long.parseLong(parts[1]), null, null,
+                            Long.parseUnsignedLong(parts[2], 16)));
+                }
+            }
+            return summaries;
+        }
+
+        long getMillis() {
+            return millis;
+        }
+
+        long getItems() {
+            return items;
+        }
+
+        ContentKey getFirst() {
+            return first;
+        }
+
+        ContentKey getLast() {
+            return last;
+        }
+    }
+
+    private static class Minute {
+        private volatile long items;
+        private volatile long bytes;
+        private volatile long lastWrite;
+        private volatile ContentKey oldest;
+        private volatile ContentKey newest;
+        private volatile long digest;
+
+        synchronized void add(ContentKey key, long size) {
+            items++;
+            digest ^= hash(key);
+            bytes += size;
+            lastWrite = System.currentTimeMillis();
+            if (oldest == null || key.compareTo(oldest) < 0) {
+                oldest = key;
+            }
+            if (newest == null || key.compareTo(newest) > 0) {
+                newest = key;
+            }
+        }
+
+        synchronized void remove(ContentKey key, long size) {
+            digest ^= hash(key);
+            items = Math.max(0, items - 1);
+            bytes = Math.max(0, bytes - size);
+            if (items == 0) {
+                oldest = null;
+                newest = null;
+                digest = 0;
+            }
+        }
+
+        synchronized Summary summarize(long millis) {
+            return new Summary(millis, items, oldest, newest, digest);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.flightstats.hub.exception.FailedWriteException;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
+import com.flightstats.hub.util.RuntimeInterruptedException;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
@@ -16,7 +17,9 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -34,6 +37,13 @@ public class SpokeWriteContentDao implements ContentDao {
     @Inject
     private RemoteSpokeStore spokeStore;
 
+    public SpokeWriteContentDao() {
+    }
+
+    SpokeWriteContentDao(RemoteSpokeStore spokeStore) {
+        this.spokeStore = spokeStore;
+    }
+
     @Override
     public ContentKey insert(String channelName, Content content) throws Exception {
         ContentKey key = content.getContentKey().get();
@@ -46,9 +56,9 @@ public class SpokeWriteContentDao implements ContentDao {
 
     @Override
     public SortedSet<ContentKey> insert(BulkContent bulkContent) throws Exception {
-        return SpokeContentDao.insert(bulkContent, (baos) -> {
+        return SpokeContentDao.insert(bulkContent, bulk -> {
             String channel = bulkContent.getChannel();
-            return spokeStore.insert(SpokeStore.WRITE, channel, baos.toByteArray(), "bulkKey", channel);
+            return spokeStore.insert(SpokeStore.WRITE, channel, bulk, "bulkKey", channel);
         });
     }
 
@@ -71,6 +81,17 @@ public class SpokeWriteContentDao implements ContentDao {
         }
     }
 
+    @Override
+    public Map<ContentKey, Content> getAll(String channelName, Collection<ContentKey> keys) {
+        Traces traces = ActiveTraces.getLocal();
+        traces.add("SpokeWriteContentDao.getAll", keys.size());
+        try {
+            return spokeStore.getAll(SpokeStore.WRITE, channelName, keys);
+        } finally {
+            traces.add("SpokeWriteContentDao.getAll completed");
+        }
+    }
+
     @Override
     public Optional<ContentKey> getLatest(String channel, ContentKey limitKey, Traces traces) {
         String path = getPath(channel, limitKey);
@@ -156,26 +177,61 @@ public class SpokeWriteContentDao implements ContentDao {
                 logger.warn("what happened? " + query, e);
             }
         } else {
-            ContentKey startKey = query.getStartKey();
-            DateTime startTime = startKey.getTime();
-            contentKeys = new TreeSet<>();
-            while (contentKeys.size() < query.getCount()
-                    && startTime.isAfter(spokeTtlTime.minusHours(1))
-                    && startTime.isBefore(query.getChannelStable().plusHours(1))) {
-                TimeQuery timeQuery = query.convert(TimeUtil.Unit.HOURS)
-                        .startTime(startTime)
-                        .build();
-                SortedSet<ContentKey> queryByTime = queryByTime(timeQuery);
-                queryByTime.addAll(contentKeys);
-                Set<ContentKey> filtered = ContentKeyUtil.filter(queryByTime, query);
-                contentKeys.addAll(filtered);
-                startTime = startTime.minusHours(1);
-            }
+            contentKeys = queryPrevious(query, spokeTtlTime);
         }
         ActiveTraces.getLocal().add("SpokeWriteContentDao.query completed", contentKeys);
         return contentKeys;
     }
 
+    /**
+     * Spoke servers answer from the populated minutes in their usage.  If none can, this walks back hour by hour.
+     * The servers return the keys before the start key without knowing the query's limits, so the start key is first
+     * moved back to the latest key the query allows, or keys which are then filtered out would shorten the result.
+     */
+    private SortedSet<ContentKey> queryPrevious(DirectionQuery query, DateTime spokeTtlTime) {
+        query = limitStartKey(query);
+        try {
+            QueryResult queryResult = spokeStore.getPrevious(query.getChannelName(), query.getCount(), query.getStartKey().toUrl());
+            if (queryResult.hadSuccess()) {
+                return ContentKeyUtil.filter(queryResult.getContentKeys(), query);
+            }
+            ActiveTraces.getLocal().add("spoke previous failed", queryResult);
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        }
+        DateTime startTime = query.getStartKey().getTime();
+        SortedSet<ContentKey> contentKeys = new TreeSet<>();
+        while (contentKeys.size() < query.getCount()
+                && startTime.isAfter(spokeTtlTime.minusHours(1))
+                && startTime.isBefore(query.getChannelStable().plusHours(1))) {
+            TimeQuery timeQuery = query.convert(TimeUtil.Unit.HOURS)
+                    .startTime(startTime)
+                    .build();
+            SortedSet<ContentKey> queryByTime = queryByTime(timeQuery);
+            queryByTime.addAll(contentKeys);
+            Set<ContentKey> filtered = ContentKeyUtil.filter(queryByTime, query);
+            contentKeys.addAll(filtered);
+            startTime = startTime.minusHours(1);
+        }
+        return contentKeys;
+    }
+
+    static DirectionQuery limitStartKey(DirectionQuery query) {
+        ContentKey limit = query.getStartKey();
+        if (query.isStable()) {
+            limit = min(limit, ContentKey.lastKey(query.getChannelStable()));
+        }
+        ChannelConfig channelConfig = query.getChannelConfig();
+        if (channelConfig.isHistorical() && query.getEpoch().equals(Epoch.MUTABLE)) {
+            limit = min(limit, ContentKey.lastKey(channelConfig.getMutableTime()));
+        }
+        return limit == query.getStartKey() ? query : query.withStartKey(limit);
+    }
+
+    private static ContentKey min(ContentKey one, ContentKey two) {
+        return two.compareTo(one) < 0 ? two : one;
+    }
+
     @Override
     public void delete(String channelName) {
         try {
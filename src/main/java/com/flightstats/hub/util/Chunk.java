@@ -1,5 +1,10 @@
 package com.flightstats.hub.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class Chunk {
 
     private int count;
@@ -8,9 +13,13 @@ public class Chunk {
     private int index = 0;
 
     Chunk(int count, int chunkSize) {
+        this(count, new byte[chunkSize]);
+    }
+
+    Chunk(int count, byte[] bytes) {
         this.count = count;
-        this.chunkSize = chunkSize;
-        bytes = new byte[chunkSize];
+        this.chunkSize = bytes.length;
+        this.bytes = bytes;
     }
 
     /**
@@ -26,6 +35,16 @@ public class Chunk {
         return true;
     }
 
+    /**
+     * @return the number of bytes added, which is less than len once the chunk is full.
+     */
+    int add(byte[] b, int off, int len) {
+        int added = Math.min(len, chunkSize - index);
+        System.arraycopy(b, off, bytes, index, added);
+        index += added;
+        return added;
+    }
+
     boolean isFull() {
         return index >= chunkSize;
     }
@@ -34,6 +53,10 @@ public class Chunk {
         return index > 0;
     }
 
+    byte[] getBuffer() {
+        return bytes;
+    }
+
     public byte[] getBytes() {
         if (isFull()) {
             return bytes;
@@ -43,7 +66,28 @@ public class Chunk {
         return partial;
     }
 
+    /**
+     * Reads the chunk's bytes without copying them.
+     */
+    public InputStream getStream() {
+        return new ByteArrayInputStream(bytes, 0, index);
+    }
+
+    public int getLength() {
+        return index;
+    }
+
+    public byte[] getMd5() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(bytes, 0, index);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public int getCount() {
         return count;
     }
-}
\ No newline at end of file
+}
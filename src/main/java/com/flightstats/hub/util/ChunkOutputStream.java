@@ -12,41 +12,94 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 
+/**
+ * Splits a stream into chunks, which are sent with chunkFunction on a shared executor.
+ * At most threads chunks of a stream are in flight at once, which holds back the writer,
+ * and each chunk's buffer is returned to the pool once it has been sent.
+ */
 public class ChunkOutputStream extends OutputStream {
     private static final Logger logger = LoggerFactory.getLogger(ChunkOutputStream.class);
 
-    private ListeningExecutorService service;
-    private List<ListenableFuture<String>> futures = new ArrayList<>();
+    private final ListeningExecutorService service;
+    private final ChunkPool pool;
+    private final Semaphore inFlight;
+    private final List<ListenableFuture<String>> futures = new ArrayList<>();
+    private final Function<Chunk, String> chunkFunction;
     private int count = 1;
-    private Chunk chunk = new Chunk(count, ChunkStrategy.getSize(count));
-    private Function<Chunk, String> chunkFunction;
+    private Chunk chunk;
+    private boolean closed;
 
-    public ChunkOutputStream(int threads, Function<Chunk, String> chunkFunction) {
+    public ChunkOutputStream(ExecutorService executor, ChunkPool pool, int threads, Function<Chunk, String> chunkFunction) {
         this.chunkFunction = chunkFunction;
-        service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
+        this.service = MoreExecutors.listeningDecorator(executor);
+        this.pool = pool;
+        this.inFlight = new Semaphore(threads);
+        this.chunk = pool.acquire(count);
         logger.info("creating ChunkOutputStream with {} threads", threads);
     }
 
     public void write(int b) throws IOException {
         if (!chunk.add(b)) {
-            sendChunk(chunk);
-            count++;
-            chunk = new Chunk(count, ChunkStrategy.getSize(count));
+            nextChunk();
             chunk.add(b);
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunk.isFull()) {
+                nextChunk();
+            }
+            int added = chunk.add(b, off, len);
+            off += added;
+            len -= added;
+        }
+    }
+
+    private void nextChunk() {
+        sendChunk(chunk);
+        count++;
+        chunk = pool.acquire(count);
+    }
+
     private void sendChunk(Chunk chunk) {
-        futures.add(service.submit(() -> chunkFunction.apply(chunk)));
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            pool.release(chunk);
+            throw new RuntimeInterruptedException(e);
+        }
+        try {
+            futures.add(service.submit(() -> {
+                try {
+                    return chunkFunction.apply(chunk);
+                } finally {
+                    pool.release(chunk);
+                    inFlight.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            pool.release(chunk);
+            inFlight.release();
+            throw e;
+        }
     }
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
         if (chunk.hasData()) {
             sendChunk(chunk);
+        } else {
+            pool.release(chunk);
         }
         ListenableFuture<String> allFutures = Futures.whenAllSucceed(futures).call(() -> "ok", MoreExecutors.directExecutor());
         try {
@@ -55,8 +108,6 @@ public class ChunkOutputStream extends OutputStream {
             throw new RuntimeInterruptedException(e);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
-        } finally {
-            service.shutdown();
         }
     }
 }
@@ -0,0 +1,94 @@
+package com.flightstats.hub.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reuses the buffers of chunks, which are megabytes each, so large uploads do not allocate a new buffer for each part.
+ * Up to maxBytes of released buffers are held for reuse, by size, and buffers which have not been reused
+ * for idleMillis are dropped, so the heap is only held while large uploads are active.
+ * Chunks are acquired and released once per part, so access is simply synchronized.
+ */
+public class ChunkPool {
+
+    private final long maxBytes;
+    private final long idleMillis;
+    private final Map<Integer, Deque<Pooled>> buffers = new HashMap<>();
+    private long pooled;
+
+    /**
+     * @param idleMillis 0 to never drop idle buffers
+     */
+    public ChunkPool(long maxBytes, long idleMillis) {
+        this.maxBytes = maxBytes;
+        this.idleMillis = idleMillis;
+        if (idleMillis > 0) {
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("ChunkPool-%d").build())
+                    .scheduleWithFixedDelay(() -> dropIdle(System.currentTimeMillis()),
+                            idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized Chunk acquire(int count) {
+        int size = ChunkStrategy.getSize(count);
+        Deque<Pooled> queue = buffers.get(size);
+        Pooled reused = queue == null ? null : queue.pollFirst();
+        if (reused == null) {
+            return new Chunk(count, new byte[size]);
+        }
+        pooled -= size;
+        return new Chunk(count, reused.buffer);
+    }
+
+    /**
+     * The chunk can not be used once released.
+     */
+    synchronized void release(Chunk chunk) {
+        byte[] buffer = chunk.getBuffer();
+        if (pooled + buffer.length > maxBytes) {
+            return;
+        }
+        pooled += buffer.length;
+        buffers.computeIfAbsent(buffer.length, size -> new ArrayDeque<>())
+                .addFirst(new Pooled(buffer, System.currentTimeMillis()));
+    }
+
+    /**
+     * Drops the buffers released more than idleMillis before now.
+     */
+    synchronized void dropIdle(long now) {
+        for (Deque<Pooled> queue : buffers.values()) {
+            Iterator<Pooled> oldest = queue.descendingIterator();
+            while (oldest.hasNext()) {
+                Pooled next = oldest.next();
+                if (now - next.released < idleMillis) {
+                    break;
+                }
+                oldest.remove();
+                pooled -= next.buffer.length;
+            }
+        }
+    }
+
+    synchronized long getPooledBytes() {
+        return pooled;
+    }
+
+    private static class Pooled {
+        private final byte[] buffer;
+        private final long released;
+
+        private Pooled(byte[] buffer, long released) {
+            this.buffer = buffer;
+            this.released = released;
+        }
+    }
+}
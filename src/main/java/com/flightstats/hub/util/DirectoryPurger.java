@@ -0,0 +1,184 @@
+package com.flightstats.hub.util;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes directory trees in process, instead of shelling out to rm and find.
+ * Each file or directory removed takes a permit from a shared budget of purge.filesPerSecond,
+ * and while {@link WriteActivity} reports foreground writes as busy each removal costs purge.writeYieldPermits,
+ * so purging slows down rather than competing with inserts for the disk.
+ */
+@Singleton
+public class DirectoryPurger {
+    private final static Logger logger = LoggerFactory.getLogger(DirectoryPurger.class);
+
+    private static final long PROGRESS_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final MetricsService metricsService;
+    private final WriteActivity writeActivity;
+    private final RateLimiter rateLimiter;
+    private final int writeYieldPermits;
+
+    @Inject
+    public DirectoryPurger(MetricsService metricsService, WriteActivity writeActivity) {
+        this(metricsService, writeActivity, HubProperties.getProperty("purge.filesPerSecond", 10000),
+                HubProperties.getProperty("purge.writeYieldPermits", 2));
+    }
+
+    public DirectoryPurger(MetricsService metricsService, WriteActivity writeActivity, int filesPerSecond, int writeYieldPermits) {
+        this.metricsService = metricsService;
+        this.writeActivity = writeActivity;
+        this.rateLimiter = RateLimiter.create(filesPerSecond);
+        this.writeYieldPermits = Math.max(1, writeYieldPermits);
+        logger.info("purging at {} files per second, {} permits while writing", filesPerSecond, this.writeYieldPermits);
+    }
+
+    /**
+     * Deletes the path and everything beneath it.
+     *
+     * @return number of files deleted
+     */
+    public long delete(String path) {
+        return purge(path, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Deletes files beneath the path last modified more than ageMinutes ago,
+     * along with directories which are left empty and were also older before the purge.
+     *
+     * @return number of files deleted
+     */
+    public long deleteByAge(String path, int ageMinutes) {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ageMinutes);
+        return purge(path, cutoff, false);
+    }
+
+    private long purge(String path, long cutoff, boolean includeRoot) {
+        Path root = Paths.get(path);
+        if (!Files.exists(root)) {
+            return 0;
+        }
+        Progress progress = new Progress(path);
+        Map<Path, Long> directoryTimes = new HashMap<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    directoryTimes.put(dir, attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.lastModifiedTime().toMillis() < cutoff) {
+                        acquire(progress);
+                        if (Files.deleteIfExists(file)) {
+                            progress.files++;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        logger.info("unable to visit " + file, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Long modified = directoryTimes.remove(dir);
+                    if (!includeRoot && dir.equals(root)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        if (modified != null && modified < cutoff) {
+                            acquire(progress);
+                            if (Files.deleteIfExists(dir)) {
+                                progress.directories++;
+                            }
+                        }
+                    } catch (DirectoryNotEmptyException | NoSuchFileException ignore) {
+                        logger.trace("unable to remove {}", dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("unable to purge " + path, e);
+        }
+        progress.complete();
+        return progress.files;
+    }
+
+    private void acquire(Progress progress) {
+        int permits = writeActivity.isBusy() ? writeYieldPermits : 1;
+        double waited = rateLimiter.acquire(permits);
+        if (permits > 1) {
+            progress.yields++;
+        }
+        progress.throttledMillis += (long) (waited * 1000);
+        progress.report();
+    }
+
+    private class Progress {
+        private final String path;
+        private final long start = System.currentTimeMillis();
+        private long lastReport = start;
+        private long files;
+        private long directories;
+        private long yields;
+        private long throttledMillis;
+
+        private Progress(String path) {
+            this.path = path;
+        }
+
+        private void report() {
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= PROGRESS_MILLIS) {
+                lastReport = now;
+                logger.info("purging {}: {} files {} directories at {} per second", path, files, directories, rate(now));
+                metricsService.gauge("purge.rate", rate(now));
+            }
+        }
+
+        private long rate(long now) {
+            return (files + directories) * 1000 / Math.max(1, now - start);
+        }
+
+        private void complete() {
+            long now = System.currentTimeMillis();
+            logger.debug("purged {}: {} files {} directories in {} ms, throttled {} ms, yielded {}",
+                    path, files, directories, now - start, throttledMillis, yields);
+            if (files + directories > 0) {
+                metricsService.count("purge.files", files);
+                metricsService.count("purge.directories", directories);
+                metricsService.count("purge.throttled", throttledMillis);
+                metricsService.count("purge.yields", yields);
+                metricsService.time("purge", start);
+            }
+        }
+    }
+}
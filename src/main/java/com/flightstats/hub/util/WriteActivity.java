@@ -0,0 +1,62 @@
+package com.flightstats.hub.util;
+
+import com.flightstats.hub.app.HubProperties;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks foreground writes to local storage, so background work such as purging can yield to them.
+ * Writes are busy while more than purge.yieldWrites are in flight, or while the recent average write
+ * has taken longer than purge.yieldMillis.  The average is ignored once no write has completed for a second.
+ */
+public class WriteActivity {
+
+    private static final double WEIGHT = 0.1;
+    private static final long RECENT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final int maxInFlight;
+    private final double maxMillis;
+    private volatile double averageMillis;
+    private volatile long lastCompleted;
+
+    public WriteActivity() {
+        this(HubProperties.getProperty("purge.yieldWrites", 4), HubProperties.getProperty("purge.yieldMillis", 20));
+    }
+
+    public WriteActivity(int maxInFlight, int maxMillis) {
+        this.maxInFlight = maxInFlight;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Writers call this before writing, and pass the result to {@link #completed(long)} afterwards.
+     */
+    public long started() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * The average is updated without locking, so concurrent writes may lose an occasional sample.
+     */
+    public void completed(long start) {
+        long now = System.nanoTime();
+        inFlight.decrementAndGet();
+        double millis = (now - start) / 1_000_000.0;
+        averageMillis += WEIGHT * (millis - averageMillis);
+        lastCompleted = now;
+    }
+
+    public boolean isBusy() {
+        if (inFlight.get() > maxInFlight) {
+            return true;
+        }
+        return averageMillis > maxMillis && System.nanoTime() - lastCompleted < RECENT_NANOS;
+    }
+
+    double getAverageMillis() {
+        return averageMillis;
+    }
+}
@@ -0,0 +1,67 @@
+package com.flightstats.hub.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ServerLoadsTest {
+
+    private final List<String> servers = Arrays.asList("a", "b", "c", "d", "e");
+
+    @Test
+    public void testChoosesDistinct() {
+        ServerLoads loads = new ServerLoads(0.2, 10_000);
+        for (int i = 0; i < 100; i++) {
+            List<String> chosen = loads.choose(servers, 3);
+            assertEquals(3, chosen.size());
+            assertEquals(3, new HashSet<>(chosen).size());
+        }
+        assertEquals(2, loads.choose(Arrays.asList("a", "b"), 3).size());
+    }
+
+    @Test
+    public void testAvoidsSlowServer() {
+        ServerLoads loads = new ServerLoads(0.2, 10_000);
+        for (String server : servers) {
+            loads.started(server);
+            loads.completed(server, server.equals("a") ? 2000 : 5);
+        }
+        Map<String, Integer> counts = count(loads);
+        assertTrue("slow server chosen " + counts.get("a"), counts.getOrDefault("a", 0) < counts.get("b") / 2);
+    }
+
+    @Test
+    public void testAvoidsQueuedServer() {
+        ServerLoads loads = new ServerLoads(0.2, 10_000);
+        for (int i = 0; i < 50; i++) {
+            loads.started("b");
+        }
+        Map<String, Integer> counts = count(loads);
+        assertTrue("queued server chosen " + counts.get("b"), counts.getOrDefault("b", 0) < counts.get("a") / 2);
+    }
+
+    @Test
+    public void testForgetsOldLatency() throws Exception {
+        ServerLoads loads = new ServerLoads(0.2, 0);
+        loads.started("a");
+        loads.completed("a", 2000);
+        Thread.sleep(2);
+        assertEquals(1, loads.score("a", System.currentTimeMillis()), 0.0);
+    }
+
+    private Map<String, Integer> count(ServerLoads loads) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            for (String server : loads.choose(servers, 3)) {
+                counts.merge(server, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+}
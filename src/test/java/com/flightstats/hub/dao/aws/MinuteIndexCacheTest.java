@@ -0,0 +1,94 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MinuteIndexCacheTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final MinutePath minutePath = new MinutePath();
+
+    @Test
+    public void testMemory() {
+        MinuteIndexCache cache = new MinuteIndexCache(1024 * 1024, null, 0, HOUR);
+        assertNull(cache.get("memory", minutePath));
+        MinuteIndex index = index();
+        cache.put("memory", minutePath, index);
+        assertEquals(index, cache.get("memory", minutePath));
+        assertNull(cache.get("other", minutePath));
+        cache.invalidate("memory");
+        assertNull(cache.get("memory", minutePath));
+    }
+
+    @Test
+    public void testDisk() {
+        File directory = Files.createTempDir();
+        MinuteIndexCache cache = new MinuteIndexCache(1024 * 1024, directory, 1024 * 1024, HOUR);
+        MinuteIndex index = index();
+        cache.put("disk", minutePath, index);
+
+        MinuteIndexCache restarted = new MinuteIndexCache(1024 * 1024, directory, 1024 * 1024, HOUR);
+        MinuteIndex read = restarted.get("disk", minutePath);
+        assertNotNull(read);
+        assertEquals(index.getKeys(), read.getKeys());
+        restarted.invalidate("disk");
+        assertNull(restarted.get("disk", minutePath));
+    }
+
+    @Test
+    public void testDiskLimit() {
+        File directory = Files.createTempDir();
+        int length = index().toBytes().length;
+        MinuteIndexCache cache = new MinuteIndexCache(0, directory, length * 2, HOUR);
+        for (int i = 0; i < 3; i++) {
+            cache.put("limit", new MinutePath(minutePath.getTime().plusMinutes(i)), index());
+        }
+        assertNull(cache.get("limit", minutePath));
+        assertNotNull(cache.get("limit", new MinutePath(minutePath.getTime().plusMinutes(2))));
+    }
+
+    @Test
+    public void testMemoryExpires() throws InterruptedException {
+        MinuteIndexCache cache = new MinuteIndexCache(1024 * 1024, null, 0, 50);
+        cache.put("expires", minutePath, index());
+        assertNotNull(cache.get("expires", minutePath));
+        Thread.sleep(100);
+        assertNull(cache.get("expires", minutePath));
+    }
+
+    @Test
+    public void testDiskExpires() {
+        File directory = Files.createTempDir();
+        MinuteIndexCache cache = new MinuteIndexCache(0, directory, 1024 * 1024, HOUR);
+        cache.put("expires", minutePath, index());
+        File file = new File(directory, "expires/" + minutePath.toUrl() + ".json");
+        assertNotNull(cache.get("expires", minutePath));
+        assertTrue(file.setLastModified(System.currentTimeMillis() - HOUR));
+        assertNull(cache.get("expires", minutePath));
+        assertFalse(file.exists());
+
+        cache.put("expires", minutePath, index());
+        assertTrue(file.setLastModified(System.currentTimeMillis() - HOUR));
+        MinuteIndexCache restarted = new MinuteIndexCache(1024 * 1024, directory, 1024 * 1024, HOUR);
+        assertFalse(file.exists());
+        assertNull(restarted.get("expires", minutePath));
+    }
+
+    private MinuteIndex index() {
+        ContentKey key = new ContentKey(minutePath.getTime(), "A");
+        return MinuteIndex.create(minutePath, Collections.singletonList(key), new byte[0]);
+    }
+}
@@ -0,0 +1,85 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.channel.ZipBulkBuilder;
+import com.flightstats.hub.dao.ContentDaoUtil;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MinuteIndexTest {
+
+    private final MinutePath minutePath = new MinutePath();
+
+    @Test
+    public void testRangedRead() throws IOException {
+        List<ContentKey> keys = keys(5);
+        byte[] zip = zip(keys);
+        MinuteIndex index = MinuteIndex.parse(MinuteIndex.create(minutePath, keys, zip).toBytes());
+        assertEquals(keys, index.getKeys());
+        for (ContentKey key : keys) {
+            long[] range = index.getRange(key);
+            assertNotNull(range);
+            byte[] slice = new byte[(int) range[1]];
+            System.arraycopy(zip, (int) range[0], slice, 0, slice.length);
+            try (ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(slice))) {
+                ZipEntry entry = zipStream.getNextEntry();
+                assertEquals(key.toUrl(), entry.getName());
+                assertArrayEquals(ContentDaoUtil.createContent(key).getData(), ByteStreams.toByteArray(zipStream));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexWithoutRanges() throws IOException {
+        List<ContentKey> keys = keys(2);
+        String json = "{\"id\":\"" + minutePath.toUrl() + "\",\"items\":[\""
+                + keys.get(0).toUrl() + "\",\"" + keys.get(1).toUrl() + "\"]}";
+        MinuteIndex index = MinuteIndex.parse(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals(keys, index.getKeys());
+        assertNull(index.getRange(keys.get(0)));
+    }
+
+    @Test
+    public void testUnreadableZip() throws IOException {
+        List<ContentKey> keys = keys(2);
+        MinuteIndex index = MinuteIndex.parse(MinuteIndex.create(minutePath, keys, "not a zip".getBytes()).toBytes());
+        assertEquals(keys, index.getKeys());
+        assertNull(index.getRange(keys.get(1)));
+    }
+
+    private List<ContentKey> keys(int count) {
+        List<ContentKey> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new ContentKey(minutePath.getTime().plusSeconds(i), "" + i));
+        }
+        return keys;
+    }
+
+    private static byte[] zip(List<ContentKey> keys) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(baos)) {
+            for (ContentKey key : keys) {
+                Content content = ContentDaoUtil.createContent(key);
+                ZipBulkBuilder.createZipEntry(output, content);
+            }
+        }
+        return baos.toByteArray();
+    }
+}
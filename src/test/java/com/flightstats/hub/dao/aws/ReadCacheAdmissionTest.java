@@ -0,0 +1,39 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadCacheAdmissionTest {
+
+    @Test
+    public void testSecondHit() {
+        ReadCacheAdmission admission = new ReadCacheAdmission(1024, 2);
+        ContentKey key = new ContentKey(TimeUtil.now(), "hot");
+        assertFalse(admission.recordAndAdmit("channel", key));
+        assertTrue(admission.recordAndAdmit("channel", key));
+        assertFalse(admission.recordAndAdmit("other", key));
+    }
+
+    @Test
+    public void testScanIsNotAdmitted() {
+        ReadCacheAdmission admission = new ReadCacheAdmission(64 * 1024, 2);
+        DateTime start = TimeUtil.now().minusDays(30);
+        int admitted = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (admission.recordAndAdmit("scan", new ContentKey(start.plusMillis(i * 100), "a"))) {
+                admitted++;
+            }
+        }
+        assertTrue("admitted " + admitted, admitted < 50);
+    }
+
+    @Test
+    public void testAdmitAll() {
+        ReadCacheAdmission admission = new ReadCacheAdmission(16, 1);
+        assertTrue(admission.recordAndAdmit("channel", new ContentKey()));
+    }
+}
@@ -0,0 +1,93 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class S3WriteJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @Test
+    public void testCompletedSegmentsAreDeleted() {
+        S3WriteJournal journal = new S3WriteJournal(directory, 2);
+        List<S3WriteJournal.Segment> segments = new ArrayList<>();
+        for (ChannelContentKey key : keys("queued", 3)) {
+            segments.add(journal.append(key));
+        }
+        assertEquals(2, files().size());
+        journal.completed(segments.get(0));
+        assertEquals(2, files().size());
+        journal.completed(segments.get(1));
+        assertEquals(1, files().size());
+        journal.completed(segments.get(2));
+        assertEquals("the current segment is kept", 1, files().size());
+    }
+
+    @Test
+    public void testSpill() {
+        S3WriteJournal journal = new S3WriteJournal(directory, 10);
+        List<ChannelContentKey> keys = keys("spilled", 3);
+        for (ChannelContentKey key : keys) {
+            journal.spill(key);
+        }
+        S3WriteJournal.Segment segment = journal.nextSpilled();
+        assertNotNull(segment);
+        assertEquals(keys, segment.getKeys());
+        assertNull(journal.nextSpilled());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(1, files().size());
+            journal.completed(segment);
+        }
+        assertEquals(0, files().size());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        S3WriteJournal journal = new S3WriteJournal(directory, 10);
+        List<ChannelContentKey> keys = keys("restart", 2);
+        for (ChannelContentKey key : keys) {
+            journal.append(key);
+        }
+        journal.close();
+        try (FileOutputStream output = new FileOutputStream(files().get(0), true)) {
+            output.write("restart/2018/01/".getBytes(StandardCharsets.UTF_8));
+        }
+
+        S3WriteJournal restarted = new S3WriteJournal(directory, 10);
+        S3WriteJournal.Segment segment = restarted.nextSpilled();
+        assertEquals(keys, segment.getKeys());
+        restarted.completed(restarted.append(keys.get(0)));
+        assertEquals(2, files().size());
+    }
+
+    private List<File> files() {
+        return Arrays.asList(directory.listFiles());
+    }
+
+    private static List<ChannelContentKey> keys(String channel, int count) {
+        List<ChannelContentKey> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new ChannelContentKey(channel, new ContentKey()));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,87 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.dao.ContentDao;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class S3WriteQueueTest {
+
+    private ContentDao spokeDao;
+    private ContentDao s3Dao;
+    private S3WriteQueue queue;
+
+    @Before
+    public void setUp() {
+        spokeDao = mock(ContentDao.class);
+        s3Dao = mock(ContentDao.class);
+        queue = new S3WriteQueue(spokeDao, s3Dao, mock(MetricsService.class));
+    }
+
+    @Test
+    public void testCarriedContent() throws Exception {
+        Content content = content();
+        ChannelContentKey key = new ChannelContentKey("carried", content.getContentKey().get());
+        assertTrue(queue.add(key, content));
+        verify(s3Dao, timeout(10000)).insert("carried", content);
+        verify(spokeDao, never()).get(anyString(), any(ContentKey.class));
+        verify(spokeDao, never()).getAll(anyString(), anyCollectionOf(ContentKey.class));
+    }
+
+    @Test
+    public void testKeyOnly() throws Exception {
+        Content content = content();
+        ContentKey contentKey = content.getContentKey().get();
+        when(spokeDao.getAll(eq("keyOnly"), anyCollectionOf(ContentKey.class))).thenReturn(Collections.singletonMap(contentKey, content));
+        assertTrue(queue.add(new ChannelContentKey("keyOnly", contentKey)));
+        verify(s3Dao, timeout(10000)).insert("keyOnly", content);
+        verify(spokeDao, never()).get(anyString(), any(ContentKey.class));
+    }
+
+    @Test
+    public void testRetryHoldsContentBytes() throws Exception {
+        Content content = content();
+        long size = content.getData().length;
+        ChannelContentKey key = new ChannelContentKey("retried", content.getContentKey().get());
+        when(s3Dao.insert("retried", content)).thenThrow(new RuntimeException("S3 is unavailable"));
+        assertTrue(queue.add(key, content));
+        verify(s3Dao, timeout(10000)).insert("retried", content);
+        waitForContentBytes(size);
+        verify(s3Dao, timeout(20000).times(3)).insert("retried", content);
+        waitForContentBytes(0);
+    }
+
+    private void waitForContentBytes(long expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (queue.getContentBytes() != expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, queue.getContentBytes());
+    }
+
+    private static Content content() throws Exception {
+        Content content = Content.builder()
+                .withContentKey(new ContentKey())
+                .withData("data".getBytes())
+                .build();
+        content.packageStream();
+        return content;
+    }
+}
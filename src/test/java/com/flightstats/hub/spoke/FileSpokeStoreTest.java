@@ -12,6 +12,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.NotFoundException;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -44,6 +45,37 @@ public class FileSpokeStoreTest {
         assertArrayEquals(BYTES, read);
     }
 
+    @Test
+    public void testAtomicWrite() throws Exception {
+        FileSpokeStore durableStore = new FileSpokeStore(tempDir, ttlMinutes,
+                new SpokeDurability(SpokeDurability.Mode.ITEM, 0));
+        String path = "channelAtomic/" + new ContentKey().toUrl();
+        assertTrue(durableStore.insert(path, BYTES));
+        assertTrue(durableStore.insert(path, new byte[]{7, 8}));
+        assertArrayEquals(new byte[]{7, 8}, durableStore.read(path));
+        String[] temps = new File(tempDir, FileSpokeStore.TEMP_DIR).list();
+        assertNotNull(temps);
+        assertEquals(0, temps.length);
+        assertEquals(1, durableStore.keysInBucket("channelAtomic/" + TimeUtil.minutes(TimeUtil.now())).size());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testReadMissing() throws Exception {
+        spokeStore.read("channelMissing/" + new ContentKey().toUrl());
+    }
+
+    @Test
+    public void testOpenRegion() throws Exception {
+        String path = "channelRegion/" + new ContentKey().toUrl();
+        assertTrue(spokeStore.insert(path, BYTES));
+        try (SpokeRegion region = spokeStore.openRegion(path)) {
+            assertEquals(BYTES.length, region.getLength());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            region.send(output);
+            assertArrayEquals(BYTES, output.toByteArray());
+        }
+    }
+
     @Test
     public void testPathTranslation() throws Exception {
         String incoming = "/test_0_4274725520517677/2014/11/18/00/57/24/015/NV2cl5";
@@ -227,6 +259,58 @@ public class FileSpokeStoreTest {
         assertTrue(found.contains(name + "/" + contentKeyC.toUrl()));
     }
 
+    @Test
+    public void testPreviousSparse() throws IOException {
+        String name = "testPreviousSparse";
+        DateTime now = TimeUtil.now();
+        ContentKey old = new ContentKey(now.minusMinutes(50), "A");
+        ContentKey middle = new ContentKey(now.minusMinutes(20), "B");
+        ContentKey recent = new ContentKey(now.minusMinutes(19), "C");
+        for (ContentKey key : Arrays.asList(old, middle, recent)) {
+            spokeStore.insert(name + "/" + key.toUrl(), BYTES);
+        }
+        assertTrue(spokeStore.getUsage().isComplete());
+
+        List<ContentKey> found = new ArrayList<>();
+        spokeStore.getPrevious(name, new ContentKey(now, "0").toUrl(), 1, (channel, key) -> found.add(key));
+        assertEquals(Arrays.asList(recent), found);
+
+        found.clear();
+        spokeStore.getPrevious(name, recent.toUrl(), 5, (channel, key) -> found.add(key));
+        assertEquals(Arrays.asList(middle, old), found);
+
+        List<String> next = getNextTesting(name, old.toUrl(), 2);
+        assertEquals(2, next.size());
+        assertTrue(next.contains(name + "/" + middle.toUrl()));
+    }
+
+    @Test
+    public void testRescanAfterSave() throws Exception {
+        String name = "testRescanAfterSave";
+        spokeStore.insert(name + "/" + new ContentKey().toUrl(), BYTES);
+        spokeStore.getUsage().save(new File(tempDir, FileSpokeStore.USAGE_FILE));
+        spokeStore.insert(name + "/" + new ContentKey().toUrl(), BYTES);
+
+        FileSpokeStore restarted = new FileSpokeStore(tempDir, ttlMinutes);
+        assertTrue(restarted.getUsage().isComplete());
+        assertEquals(2, restarted.getUsage().getItems(name));
+    }
+
+    @Test
+    public void testRebuildCountsStartupWrites() throws Exception {
+        String name = "testRebuildCountsStartupWrites";
+        spokeStore.insert(name + "/" + new ContentKey().toUrl(), BYTES);
+        spokeStore.insert(name + "/" + new ContentKey().toUrl(), BYTES);
+        assertFalse(new File(tempDir, FileSpokeStore.USAGE_FILE).exists());
+
+        FileSpokeStore restarted = new FileSpokeStore(tempDir, ttlMinutes);
+        assertFalse(restarted.getUsage().isComplete());
+        restarted.insert(name + "/" + new ContentKey().toUrl(), BYTES);
+        restarted.rebuildUsage();
+        assertTrue(restarted.getUsage().isComplete());
+        assertEquals(3, restarted.getUsage().getItems(name));
+    }
+
     List<String> getNextTesting(String channel, String startKey, int count) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         spokeStore.getNext(channel, startKey, count, baos);
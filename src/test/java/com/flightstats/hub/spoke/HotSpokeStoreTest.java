@@ -0,0 +1,171 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HotSpokeStoreTest {
+
+    private FileSpokeStore disk;
+    private DateTime minute;
+
+    @Before
+    public void setUp() {
+        disk = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        minute = TimeUtil.Unit.MINUTES.round(TimeUtil.now()).plusMinutes(2);
+    }
+
+    @Test
+    public void testReadFromMemory() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 1024, 16, 100, false);
+        String small = "hot/" + new ContentKey(minute, "A").toUrl();
+        String large = "hot/" + new ContentKey(minute.plusSeconds(1), "B").toUrl();
+        assertTrue(hot.insert(small, "small".getBytes()));
+        assertTrue(hot.insert(large, "larger than sixteen bytes".getBytes()));
+        assertEquals(5, hot.getBytes());
+
+        disk.deleteFile(small);
+        assertArrayEquals("small".getBytes(), hot.read(small));
+        try (SpokeRegion region = hot.openRegion(small)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            region.send(output);
+            assertArrayEquals("small".getBytes(), output.toByteArray());
+        }
+        assertArrayEquals("larger than sixteen bytes".getBytes(), hot.read(large));
+    }
+
+    @Test
+    public void testKeysFromMemory() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 1024, 16, 100, true);
+        ContentKey first = new ContentKey(minute.plusSeconds(1), "A");
+        ContentKey second = new ContentKey(minute.plusSeconds(2), "B");
+        assertTrue(hot.insert("keys/" + first.toUrl(), "first".getBytes()));
+        assertTrue(hot.insert("keys/" + second.toUrl(), "second is larger than sixteen".getBytes()));
+        disk.deleteFile("keys/" + first.toUrl());
+        String minutePath = "keys/" + TimeUtil.minutes(minute);
+        assertEquals("keys/" + first.toUrl() + ",keys/" + second.toUrl() + ",", hot.readKeysInBucket(minutePath));
+        assertEquals("keys/" + second.toUrl() + ",", disk.readKeysInBucket(minutePath));
+
+        hot.delete(minutePath);
+        assertEquals("", hot.readKeysInBucket(minutePath));
+        assertEquals(0, hot.getBytes());
+    }
+
+    @Test
+    public void testOldestPayloadsDropped() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 10, 16, 100, false);
+        String first = "drop/" + new ContentKey(minute, "A").toUrl();
+        String second = "drop/" + new ContentKey(minute, "B").toUrl();
+        assertTrue(hot.insert(first, "12345678".getBytes()));
+        assertTrue(hot.insert(second, "abcdefgh".getBytes()));
+        assertEquals(8, hot.getBytes());
+        assertArrayEquals("12345678".getBytes(), hot.read(first));
+        assertEquals(first + "," + second + ",", hot.readKeysInBucket("drop/" + TimeUtil.minutes(minute)));
+    }
+
+    @Test
+    public void testBulkInsert() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 1024, 16, 100, false);
+        List<Content> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            items.add(Content.builder()
+                    .withContentKey(new ContentKey(minute.plusSeconds(i), "bulk" + i))
+                    .withData(("item " + i).getBytes())
+                    .build());
+        }
+        assertTrue(hot.insert("bulk", new SpokeBulk.Reader(new ByteArrayInputStream(toBytes(new SpokeBulk(items))))));
+        for (Content item : items) {
+            String path = "bulk/" + item.getContentKey().get().toUrl();
+            disk.deleteFile(path);
+            assertArrayEquals(item.getData(), hot.read(path));
+        }
+        assertEquals(0, disk.getUsage().getItems("bulk"));
+    }
+
+    @Test
+    public void testFailedBulkInsert() throws Exception {
+        FileSpokeStore failing = new FileSpokeStore(Files.createTempDir().getPath(), 60) {
+            @Override
+            public boolean insert(String channel, SpokeBulk.Reader bulk) throws IOException {
+                super.insert(channel, bulk);
+                return false;
+            }
+        };
+        HotSpokeStore hot = new HotSpokeStore(failing, 5, 1024, 16, 100, false);
+        ContentKey earlier = new ContentKey(minute, "earlier");
+        assertTrue(hot.insert("failed/" + earlier.toUrl(), "earlier".getBytes()));
+        List<Content> items = new ArrayList<>();
+        for (int i = 1; i < 3; i++) {
+            items.add(Content.builder()
+                    .withContentKey(new ContentKey(minute.plusSeconds(i), "bulk" + i))
+                    .withData(("item " + i).getBytes())
+                    .build());
+        }
+        assertFalse(hot.insert("failed", new SpokeBulk.Reader(new ByteArrayInputStream(toBytes(new SpokeBulk(items))))));
+        assertEquals(7, hot.getBytes());
+        String minutePath = "failed/" + TimeUtil.minutes(minute);
+        assertEquals(failing.readKeysInBucket(minutePath), hot.readKeysInBucket(minutePath));
+        assertEquals(3, hot.readKeysInBucket(minutePath).split(",").length);
+        for (Content item : items) {
+            assertArrayEquals(item.getData(), hot.read("failed/" + item.getContentKey().get().toUrl()));
+        }
+    }
+
+    @Test
+    public void testKeyLimit() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 1024, 16, 1, false);
+        String first = "limit/" + new ContentKey(minute, "A").toUrl();
+        String second = "limit/" + new ContentKey(minute.plusSeconds(1), "B").toUrl();
+        assertTrue(hot.insert(first, "first".getBytes()));
+        assertTrue(hot.insert(second, "second".getBytes()));
+        assertEquals(1, hot.getKeys());
+        assertEquals(5, hot.getBytes());
+        String minutePath = "limit/" + TimeUtil.minutes(minute);
+        assertEquals(disk.readKeysInBucket(minutePath), hot.readKeysInBucket(minutePath));
+        assertEquals(2, hot.readKeysInBucket(minutePath).split(",").length);
+
+        hot.deleteFile(first);
+        assertEquals(0, hot.getKeys());
+        assertEquals(0, hot.getBytes());
+    }
+
+    @Test
+    public void testPooledPayloadHeldWhileOpen() throws Exception {
+        HotSpokeStore hot = new HotSpokeStore(disk, 5, 1024, 16, 100, true);
+        String first = "pooled/" + new ContentKey(minute, "A").toUrl();
+        String second = "pooled/" + new ContentKey(minute, "B").toUrl();
+        assertTrue(hot.insert(first, "first".getBytes()));
+        assertEquals(DirectBufferPool.getSize(5), hot.getBytes());
+        try (SpokeRegion region = hot.openRegion(first)) {
+            hot.deleteFile(first);
+            assertTrue(hot.insert(second, "other".getBytes()));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            region.send(output);
+            assertArrayEquals("first".getBytes(), output.toByteArray());
+        }
+        assertArrayEquals("other".getBytes(), hot.read(second));
+    }
+
+    private byte[] toBytes(SpokeBulk bulk) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : bulk) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.write(bytes, 0, bytes.length);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,204 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.dao.ContentKeyUtil;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentSpokeStoreTest {
+    private static final byte[] BYTES = new byte[]{0, 2, 3, 4, 5, 6};
+    private static final int ttlMinutes = HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE);
+    private String tempDir;
+    private SegmentSpokeStore spokeStore;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDir().getPath();
+        spokeStore = new SegmentSpokeStore(tempDir, ttlMinutes);
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        ContentKey key = new ContentKey();
+        String path = "channelWR/" + key.toUrl();
+        assertTrue(spokeStore.insert(path, BYTES));
+        assertArrayEquals(BYTES, spokeStore.read(path));
+        String minute = TimeUtil.minutes(key.getTime());
+        assertTrue(new File(tempDir + "/channelWR/" + minute + "/" + SegmentSpokeStore.SEGMENT).exists());
+    }
+
+    @Test
+    public void testOpenRegion() throws Exception {
+        String channel = "channelRegion";
+        ContentKey first = new ContentKey(2015, 2, 1, 12, 45, 1, 2, "A");
+        ContentKey second = new ContentKey(2015, 2, 1, 12, 45, 2, 3, "B");
+        spokeStore.insert(channel + "/" + first.toUrl(), BYTES);
+        spokeStore.insert(channel + "/" + second.toUrl(), new byte[]{9, 8, 7});
+        try (SpokeRegion region = spokeStore.openRegion(channel + "/" + second.toUrl())) {
+            assertEquals(3, region.getLength());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            region.send(output);
+            assertArrayEquals(new byte[]{9, 8, 7}, output.toByteArray());
+        }
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testReadMissing() throws Exception {
+        spokeStore.read("channelMissing/" + new ContentKey().toUrl());
+    }
+
+    @Test
+    public void testAdjacentPaths() throws Exception {
+        String channel = "testAdjacentPaths";
+        spokeStore.insert(channel + "/2014/11/18/00/57/24/015/1", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/24/015/2", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/24/015/3", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/23/015/1", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/25/015/1", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/24/014/1", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/57/24/016/1", BYTES);
+        spokeStore.insert(channel + "/2014/11/18/00/58/00/000/1", BYTES);
+
+        assertEquals(7, keys("/" + channel + "/2014/11/18/00/57").size());
+        assertEquals(5, keys("/" + channel + "/2014/11/18/00/57/24").size());
+        assertEquals(8, keys(channel + "/2014/11/18/00").size());
+        assertEquals(8, keys(channel + "/2014/11/18").size());
+        assertEquals(0, keys(channel + "/2014/11/19").size());
+    }
+
+    @Test
+    public void testLatest() {
+        String channel = "testLatest";
+        DateTime time = new DateTime(2014, 12, 31, 23, 30, 1, 2, DateTimeZone.UTC);
+        for (int i = 0; i < 30; i++) {
+            time = time.plusMinutes(2);
+            spokeStore.insert(channel + "/" + new ContentKey(time, "A").toUrl(), BYTES);
+            time = time.plusSeconds(1);
+            spokeStore.insert(channel + "/" + new ContentKey(time, "B").toUrl(), BYTES);
+            time = time.plusMillis(1);
+            spokeStore.insert(channel + "/" + new ContentKey(time, "C").toUrl(), BYTES);
+        }
+        ContentKey limitKey = new ContentKey(time.minusMinutes(1), "A");
+        assertEquals(channel + "/2015/01/01/00/28/30/031/C", spokeStore.getLatest(channel, limitKey.toUrl()));
+
+        limitKey = new ContentKey(time, "B");
+        assertEquals(channel + "/2015/01/01/00/30/31/031/B", spokeStore.getLatest(channel, limitKey.toUrl()));
+
+        limitKey = new ContentKey(time.plusMinutes(1), "D");
+        assertEquals(channel + "/2015/01/01/00/30/31/032/C", spokeStore.getLatest(channel, limitKey.toUrl()));
+    }
+
+    @Test
+    public void testLatestAcrossHours() {
+        DateTime now = TimeUtil.now();
+        DateTime beforeTheHour = now.minusHours(1).withMinuteOfHour(59).withSecondOfMinute(59).withMillisOfSecond(999);
+        String beforeKey = new ContentKey(beforeTheHour, "0").toUrl();
+        assertTrue(spokeStore.insert("testLatestAcrossHours/" + beforeKey, BYTES));
+        DateTime limitTime = now.withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
+        String read = spokeStore.getLatest("testLatestAcrossHours", ContentKey.lastKey(limitTime).toUrl());
+        assertEquals("testLatestAcrossHours/" + beforeKey, read);
+        assertNull(spokeStore.getLatest("testLatestAcrossHours", beforeKey));
+    }
+
+    @Test
+    public void testNext() throws IOException {
+        String name = "testNext";
+        DateTime startTime = TimeUtil.now().minusMinutes(59);
+        DateTime time = startTime;
+        for (int i = 0; i < 30; i++) {
+            time = time.plusMinutes(2);
+            spokeStore.insert(name + "/" + new ContentKey(time, "A").toUrl(), BYTES);
+            time = time.plusSeconds(1);
+            spokeStore.insert(name + "/" + new ContentKey(time, "B").toUrl(), BYTES);
+            time = time.plusMillis(1);
+            spokeStore.insert(name + "/" + new ContentKey(time, "C").toUrl(), BYTES);
+        }
+        ContentKey limitKey = new ContentKey(startTime, "A");
+        assertEquals(87, next(name, limitKey, 90).size());
+
+        limitKey = new ContentKey(startTime.plusMinutes(30), "A");
+        assertEquals(45, next(name, limitKey, 45).size());
+    }
+
+    @Test
+    public void testDeleteFile() throws Exception {
+        ContentKey key = new ContentKey();
+        String path = "testDeleteFile/" + key.toUrl();
+        assertTrue(spokeStore.insert(path, BYTES));
+        assertTrue(spokeStore.deleteFile(path));
+        assertFalse(spokeStore.deleteFile(path));
+        SegmentSpokeStore reloaded = new SegmentSpokeStore(tempDir, ttlMinutes);
+        assertEquals("", reloaded.readKeysInBucket("testDeleteFile/" + TimeUtil.minutes(key.getTime())));
+    }
+
+    @Test
+    public void testDeleteChannel() throws Exception {
+        String path = "testDeleteChannel/" + new ContentKey().toUrl();
+        assertTrue(spokeStore.insert(path, BYTES));
+        assertTrue(spokeStore.delete("testDeleteChannel"));
+        assertFalse(new File(tempDir + "/testDeleteChannel").exists());
+        assertNull(spokeStore.getLatest("testDeleteChannel", ContentKey.lastKey(TimeUtil.now().plusMinutes(1)).toUrl()));
+    }
+
+    @Test
+    public void testReloadTruncatesIncompleteRecord() throws Exception {
+        String channel = "testReload";
+        ContentKey first = new ContentKey(2015, 2, 1, 12, 45, 1, 2, "A");
+        ContentKey second = new ContentKey(2015, 2, 1, 12, 45, 2, 3, "B");
+        spokeStore.insert(channel + "/" + first.toUrl(), BYTES);
+        spokeStore.insert(channel + "/" + second.toUrl(), new byte[]{9, 8, 7});
+        File segment = new File(tempDir + "/" + channel + "/2015/02/01/12/45/" + SegmentSpokeStore.SEGMENT);
+        long complete = segment.length();
+        try (FileOutputStream output = new FileOutputStream(segment, true)) {
+            output.write(new byte[]{0, 40, 50});
+        }
+
+        SegmentSpokeStore reloaded = new SegmentSpokeStore(tempDir, ttlMinutes);
+        assertEquals(complete, segment.length());
+        assertArrayEquals(BYTES, reloaded.read(channel + "/" + first.toUrl()));
+        assertArrayEquals(new byte[]{9, 8, 7}, reloaded.read(channel + "/" + second.toUrl()));
+        assertEquals(2, keys(reloaded, channel + "/2015/02/01/12/45").size());
+    }
+
+    @Test
+    public void testRemovedSegment() throws Exception {
+        String channel = "testRemovedSegment";
+        ContentKey key = new ContentKey(2015, 2, 1, 12, 45, 1, 2, "A");
+        spokeStore.insert(channel + "/" + key.toUrl(), BYTES);
+        org.apache.commons.io.FileUtils.deleteDirectory(new File(tempDir + "/" + channel + "/2015/02/01/12"));
+        assertEquals(0, keys(channel + "/2015/02/01/12").size());
+    }
+
+    private List<ContentKey> keys(String path) {
+        return keys(spokeStore, path);
+    }
+
+    private List<ContentKey> keys(SegmentSpokeStore store, String path) {
+        List<ContentKey> keys = new ArrayList<>();
+        ContentKeyUtil.convertKeyStrings(store.readKeysInBucket(path), keys);
+        return keys;
+    }
+
+    private List<ContentKey> next(String channel, ContentKey startKey, int count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        spokeStore.getNext(channel, startKey.toUrl(), count, baos);
+        List<ContentKey> keys = new ArrayList<>();
+        ContentKeyUtil.convertKeyStrings(baos.toString(), keys);
+        return keys;
+    }
+}
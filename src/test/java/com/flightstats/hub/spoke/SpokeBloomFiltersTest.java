@@ -0,0 +1,62 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.hash.BloomFilter;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SpokeBloomFiltersTest {
+
+    private FileSpokeStore store;
+    private SpokeBloomFilters filters;
+    private DateTime minute;
+
+    @Before
+    public void setUp() {
+        store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        filters = new SpokeBloomFilters(store, 0.01, 100);
+        minute = TimeUtil.Unit.MINUTES.round(TimeUtil.now().minusMinutes(5));
+    }
+
+    @Test
+    public void testRebuiltOnWrite() throws Exception {
+        ContentKey first = new ContentKey(minute.plusSeconds(1), "A");
+        ContentKey second = new ContentKey(minute.plusSeconds(2), "B");
+        store.insert("bloom/" + first.toUrl(), new byte[]{1});
+        BloomFilter<ContentKey> filter = filters.get("bloom", minute);
+        assertTrue(filter.mightContain(first));
+        assertFalse(filter.mightContain(second));
+        assertSame(filter, filters.get("bloom", minute));
+
+        store.insert("bloom/" + second.toUrl(), new byte[]{2});
+        filter = filters.get("bloom", minute);
+        assertTrue(filter.mightContain(first));
+        assertTrue(filter.mightContain(second));
+        assertFalse(filters.get("other", minute).mightContain(first));
+    }
+
+    @Test
+    public void testSerialized() throws Exception {
+        ContentKey key = new ContentKey(minute.plusSeconds(3), "C");
+        store.insert("bloom/" + key.toUrl(), new byte[]{1});
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        filters.get("bloom", minute).writeTo(output);
+        BloomFilter<ContentKey> read = SpokeBloomFilters.read(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(read.mightContain(key));
+        assertFalse(read.mightContain(new ContentKey(minute.plusSeconds(3), "D")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIncompleteUsage() {
+        store.getUsage().setComplete(false);
+        filters.get("bloom", minute);
+    }
+}
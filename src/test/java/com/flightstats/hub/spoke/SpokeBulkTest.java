@@ -0,0 +1,123 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpokeBulkTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Content> items = createItems(3);
+        SpokeBulk bulk = new SpokeBulk(items);
+        byte[] bytes = toBytes(bulk);
+        assertEquals(bulk.getLength(), bytes.length);
+        assertArrayEquals("reproducible", bytes, toBytes(bulk));
+
+        SpokeBulk.Reader reader = new SpokeBulk.Reader(new ByteArrayInputStream(bytes));
+        for (Content item : items) {
+            assertTrue(reader.next());
+            assertEquals(item.getContentKey().get().toUrl(), reader.getKey());
+            assertArrayEquals(item.getData(), ByteStreams.toByteArray(reader.getData()));
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testSkipsUnreadData() throws Exception {
+        List<Content> items = createItems(2);
+        SpokeBulk.Reader reader = new SpokeBulk.Reader(new ByteArrayInputStream(toBytes(new SpokeBulk(items))));
+        assertTrue(reader.next());
+        assertTrue(reader.next());
+        assertEquals(items.get(1).getContentKey().get().toUrl(), reader.getKey());
+        assertFalse(reader.next());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        byte[] bytes = toBytes(new SpokeBulk(createItems(1)));
+        SpokeBulk.Reader reader = new SpokeBulk.Reader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 2)));
+        assertTrue(reader.next());
+        ByteStreams.toByteArray(reader.getData());
+    }
+
+    @Test
+    public void testNegativeLength() throws Exception {
+        byte[] bytes = toBytes(new SpokeBulk(createItems(1)));
+        int lengthOffset = 2 + ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF));
+        bytes[lengthOffset] = (byte) 0x80;
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        try {
+            store.insert("corrupt", new SpokeBulk.Reader(new ByteArrayInputStream(bytes)));
+            fail("expected a corrupt frame to be rejected");
+        } catch (EOFException e) {
+            fail("expected an invalid length, not " + e);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("invalid length"));
+        }
+        assertEquals(0, store.getUsage().getItems("corrupt"));
+    }
+
+    @Test
+    public void testStoreInsert() throws Exception {
+        List<Content> items = createItems(4);
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60,
+                new SpokeDurability(SpokeDurability.Mode.ITEM, 0));
+        byte[] bytes = toBytes(new SpokeBulk(items));
+        assertTrue(store.insert("bulkChannel", new SpokeBulk.Reader(new ByteArrayInputStream(bytes))));
+        for (Content item : items) {
+            assertArrayEquals(item.getData(), store.read("bulkChannel/" + item.getContentKey().get().toUrl()));
+        }
+        assertEquals(4, store.getUsage().getItems("bulkChannel"));
+    }
+
+    @Test
+    public void testWriteRegions() throws Exception {
+        List<Content> items = createItems(3);
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (Content item : items) {
+            String keyUrl = item.getContentKey().get().toUrl();
+            assertTrue(store.insert("regions/" + keyUrl, item.getData()));
+            try (SpokeRegion region = store.openRegion("regions/" + keyUrl)) {
+                SpokeBulk.write(output, keyUrl, region);
+            }
+        }
+        assertArrayEquals(toBytes(new SpokeBulk(items)), output.toByteArray());
+    }
+
+    private List<Content> createItems(int count) {
+        List<Content> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(Content.builder()
+                    .withContentKey(new ContentKey(TimeUtil.now(), "bulk" + i))
+                    .withData(("item " + i).getBytes())
+                    .build());
+        }
+        return items;
+    }
+
+    private byte[] toBytes(SpokeBulk bulk) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : bulk) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.write(bytes, 0, bytes.length);
+        }
+        return output.toByteArray();
+    }
+}
@@ -1,39 +1,33 @@
 package com.flightstats.hub.spoke;
 
-import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.model.ChannelContentKey;
 import com.flightstats.hub.model.ContentKey;
-import com.flightstats.hub.util.Commander;
 import com.google.common.base.Optional;
+import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
 
 public class SpokeContentDaoTest {
 
-    private Commander commander;
-    private SpokeStore spokeStore;
-    private String spokeStorePath;
-    private String getOldestItemCommand;
-    private String getItemCountCommand;
+    private static final byte[] BYTES = new byte[]{0, 2, 3, 4, 5, 6};
+    private FileSpokeStore writeStore;
+    private SegmentSpokeStore readStore;
+    private SpokeContentDao dao;
 
     @Before
     public void initialize() {
-        commander = mock(Commander.class);
-        spokeStore = SpokeStore.WRITE;
-        spokeStorePath = HubProperties.getSpokePath(spokeStore);
-        getOldestItemCommand = String.format(SpokeContentDao.GET_OLDEST_ITEM_COMMAND, spokeStorePath);
-        getItemCountCommand = String.format(SpokeContentDao.GET_ITEM_COUNT_COMMAND, spokeStorePath);
+        writeStore = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        readStore = new SegmentSpokeStore(Files.createTempDir().getPath(), 60);
+        dao = new SpokeContentDao(writeStore, readStore);
     }
 
     @Test
     public void getOldestItemDoesExist() {
-        when(commander.runInBash(getOldestItemCommand, 3)).thenReturn("1999-12-31+23:59:59.9999999999 /spoke/write/foo/1999/12/31/23/59/59999l33t");
-        SpokeContentDao dao = new SpokeContentDao(commander);
-        Optional<ChannelContentKey> potentialKey = dao.getOldestItem(spokeStore);
+        assertTrue(writeStore.insert("foo/1999/12/31/23/59/59/999/l33t", BYTES));
+        assertTrue(writeStore.insert("foo/2000/01/01/00/00/00/000/l33t", BYTES));
+        Optional<ChannelContentKey> potentialKey = dao.getOldestItem(SpokeStore.WRITE);
         assertTrue(potentialKey.isPresent());
         ChannelContentKey key = potentialKey.get();
         assertEquals("foo", key.getChannel());
@@ -41,18 +35,33 @@ public class SpokeContentDaoTest {
     }
 
     @Test
-    public void getOldestItemDoesNotExist() {
-        when(commander.runInBash(getOldestItemCommand, 3)).thenReturn("");
-        SpokeContentDao dao = new SpokeContentDao(commander);
-        Optional<ChannelContentKey> potentialKey = dao.getOldestItem(spokeStore);
-        assertFalse(potentialKey.isPresent());
+    public void getOldestItemDoesNotExist() throws Exception {
+        readStore.delete("hub-startup");
+        assertFalse(dao.getOldestItem(SpokeStore.READ).isPresent());
+        assertTrue(readStore.insert("foo/1999/12/31/23/59/59/999/l33t", BYTES));
+        readStore.delete("foo");
+        assertFalse(dao.getOldestItem(SpokeStore.READ).isPresent());
     }
 
     @Test
-    public void getNumberOfItems() {
-        when(commander.runInBash(getItemCountCommand, 1)).thenReturn("12345");
-        SpokeContentDao dao = new SpokeContentDao(commander);
-        assertEquals(12345, dao.getNumberOfItems(spokeStore));
+    public void getOldestItemAfterDelete() throws Exception {
+        assertTrue(readStore.insert("foo/1999/12/31/23/59/59/999/l33t", BYTES));
+        assertTrue(readStore.insert("foo/2000/01/01/00/00/00/000/l33t", BYTES));
+        readStore.delete("foo/1999");
+        Optional<ChannelContentKey> potentialKey = dao.getOldestItem(SpokeStore.READ);
+        assertTrue(potentialKey.isPresent());
+        assertEquals(new ContentKey(2000, 1, 1, 0, 0, 0, 0, "l33t"), potentialKey.get().getContentKey());
+    }
+
+    @Test
+    public void getNumberOfItems() throws Exception {
+        long startup = dao.getNumberOfItems(SpokeStore.WRITE);
+        assertTrue(writeStore.insert("foo/1999/12/31/23/59/59/999/a", BYTES));
+        assertTrue(writeStore.insert("foo/1999/12/31/23/59/59/999/b", BYTES));
+        assertTrue(writeStore.insert("foo/1999/12/31/23/59/59/999/b", BYTES));
+        assertEquals(startup + 2, dao.getNumberOfItems(SpokeStore.WRITE));
+        assertTrue(writeStore.deleteFile("foo/1999/12/31/23/59/59/999/a"));
+        assertEquals(startup + 1, dao.getNumberOfItems(SpokeStore.WRITE));
     }
 
 }
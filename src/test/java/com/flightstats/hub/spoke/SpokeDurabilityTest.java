@@ -0,0 +1,34 @@
+package com.flightstats.hub.spoke;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpokeDurabilityTest {
+
+    @Test
+    public void testPeriodicCommit() {
+        SpokeDurability durability = new SpokeDurability(SpokeDurability.Mode.PERIODIC, 1000);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        durability.schedule("first", first::incrementAndGet);
+        durability.schedule("first", first::incrementAndGet);
+        durability.schedule("second", second::incrementAndGet);
+        durability.commit();
+        assertEquals(1, first.get());
+        assertEquals(1, second.get());
+        durability.commit();
+        assertEquals(1, first.get());
+    }
+
+    @Test
+    public void testNoneIgnoresSchedule() {
+        SpokeDurability durability = SpokeDurability.none();
+        AtomicInteger count = new AtomicInteger();
+        durability.schedule("first", count::incrementAndGet);
+        durability.commit();
+        assertEquals(0, count.get());
+    }
+}
@@ -0,0 +1,143 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.cluster.ServerLoads;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.metrics.Traces;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpokeHandoffTest {
+
+    @Test
+    public void testHandoff() throws Exception {
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        DateTime minute = TimeUtil.Unit.MINUTES.round(TimeUtil.now().minusMinutes(5));
+        ContentKey keyA = new ContentKey(minute.plusSeconds(1), "A");
+        ContentKey keyB = new ContentKey(minute.plusSeconds(2), "B");
+        ContentKey keyC = new ContentKey(minute.plusMinutes(1), "C");
+        for (ContentKey key : Arrays.asList(keyA, keyB, keyC)) {
+            store.insert("handoff/" + key.toUrl(), key.toUrl().getBytes());
+        }
+        CuratorCluster cluster = mock(CuratorCluster.class);
+        when(cluster.getActiveServers()).thenReturn(Arrays.asList("one", "two", "three", "four"));
+        when(cluster.getWriteServers()).thenReturn(Arrays.asList("three", "one", "two"));
+        RemoteSpokeStore remoteStore = mock(RemoteSpokeStore.class);
+        SpokeUsage.Summary local = store.getUsage().getMinutes("handoff", minute.getMillis(), minute.getMillis(), false)
+                .iterator().next();
+        when(remoteStore.getMinuteSummaries(eq(SpokeStore.WRITE), eq("one"), eq("handoff"), anyLong(), anyLong()))
+                .thenReturn(Collections.singletonMap(minute.getMillis(), local));
+        when(remoteStore.getMinuteSummaries(eq(SpokeStore.WRITE), eq("two"), eq("handoff"), anyLong(), anyLong()))
+                .thenReturn(Collections.singletonMap(minute.getMillis(), new SpokeUsage.Summary(minute.getMillis(), 1, null, null, 1)));
+        when(remoteStore.readTimeBucket(SpokeStore.WRITE, "two", "handoff", TimeUtil.minutes(minute)))
+                .thenReturn(new TreeSet<>(Collections.singleton(keyA)));
+        Map<String, Object> sent = new HashMap<>();
+        when(remoteStore.insertAll(eq(SpokeStore.WRITE), anyString(), any(SpokeBulk.class), anyCollection(),
+                any(Traces.class), eq("bulkKey"), anyString())).then(invocation -> {
+            SpokeBulk.Reader reader = new SpokeBulk.Reader(new ByteArrayInputStream(toBytes((SpokeBulk) invocation.getArguments()[2])));
+            while (reader.next()) {
+                assertNull(sent.put(reader.getKey(), invocation.getArguments()[3]));
+            }
+            return true;
+        });
+
+        SpokeHandoff handoff = new SpokeHandoff(store, remoteStore, cluster, new NoOpMetricsService());
+        assertTrue(handoff.isReady());
+        assertTrue(handoff.handoff());
+        assertEquals(Collections.singletonList("three"), sent.get(keyA.toUrl()));
+        assertEquals(Arrays.asList("three", "two"), sent.get(keyB.toUrl()));
+        assertEquals(Arrays.asList("three", "one", "two"), sent.get(keyC.toUrl()));
+    }
+
+    @Test
+    public void testFailedHandoff() throws Exception {
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        store.insert("handoff/" + new ContentKey(TimeUtil.now().minusMinutes(1), "A").toUrl(), new byte[]{1});
+        CuratorCluster cluster = mock(CuratorCluster.class);
+        when(cluster.getActiveServers()).thenReturn(Arrays.asList("one", "two"));
+        when(cluster.getWriteServers()).thenReturn(Arrays.asList("one", "two"));
+        RemoteSpokeStore remoteStore = mock(RemoteSpokeStore.class);
+        SpokeHandoff handoff = new SpokeHandoff(store, remoteStore, cluster, new NoOpMetricsService());
+        assertFalse(handoff.handoff());
+    }
+
+    @Test
+    public void testOneTargetFails() throws Exception {
+        Server created = startServer(201);
+        Server failing = startServer(500);
+        try {
+            FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+            store.insert("handoff/" + new ContentKey(TimeUtil.now().minusMinutes(1), "A").toUrl(), new byte[]{1});
+            List<String> servers = Arrays.asList("localhost:" + getPort(created), "localhost:" + getPort(failing));
+            CuratorCluster cluster = mock(CuratorCluster.class);
+            when(cluster.getActiveServers()).thenReturn(servers);
+            when(cluster.getWriteServers()).thenReturn(servers);
+            when(cluster.getWriteLoads()).thenReturn(new ServerLoads(0.2, 10_000));
+            RemoteSpokeStore remoteStore = new RemoteSpokeStore(cluster, new NoOpMetricsService());
+            SpokeHandoff handoff = new SpokeHandoff(store, remoteStore, cluster, new NoOpMetricsService());
+            assertFalse(handoff.handoff());
+        } finally {
+            created.stop();
+            failing.stop();
+        }
+    }
+
+    private Server startServer(int status) throws Exception {
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                ByteStreams.exhaust(request.getInputStream());
+                response.setStatus(status);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private int getPort(Server server) {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    private byte[] toBytes(SpokeBulk bulk) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : bulk) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.write(bytes, 0, bytes.length);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,64 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.dao.ContentKeyUtil;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpokeKeysTest {
+
+    private final SortedSet<ContentKey> keys = new TreeSet<>(Arrays.asList(
+            new ContentKey(2015, 3, 17, 17, 31, 13, 686, "2905180"),
+            new ContentKey(2015, 3, 17, 17, 31, 13, 686, "A"),
+            ContentKey.bulkKey(new ContentKey(TimeUtil.now(), "B1c2D3"), 7),
+            new ContentKey(new DateTime(0L), "")
+    ));
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SpokeKeyWriter writer = SpokeKeys.binary(baos);
+        for (ContentKey key : keys) {
+            writer.write("testBinaryRoundTrip", key);
+        }
+        SortedSet<ContentKey> read = new TreeSet<>();
+        assertEquals(keys.size(), SpokeKeys.read(new ByteArrayInputStream(baos.toByteArray()), read));
+        assertEquals(keys, read);
+    }
+
+    @Test
+    public void testCsvMatchesOriginalFormat() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SpokeKeyWriter writer = SpokeKeys.csv(baos);
+        for (ContentKey key : keys) {
+            writer.write("testCsv", key);
+        }
+        SortedSet<ContentKey> read = new TreeSet<>();
+        ContentKeyUtil.convertKeyStrings(baos.toString(), read);
+        assertEquals(keys, read);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        SortedSet<ContentKey> read = new TreeSet<>();
+        assertEquals(0, SpokeKeys.read(new ByteArrayInputStream(new byte[0]), read));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SpokeKeys.binary(baos).write("testTruncated", new ContentKey());
+        byte[] bytes = Arrays.copyOf(baos.toByteArray(), baos.size() - 1);
+        SpokeKeys.read(new ByteArrayInputStream(bytes), new TreeSet<>());
+    }
+}
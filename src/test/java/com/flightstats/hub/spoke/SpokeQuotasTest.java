@@ -0,0 +1,45 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.exception.QuotaExceededException;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpokeQuotasTest {
+
+    @Test
+    public void testQuota() {
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        SpokeQuotas quotas = new SpokeQuotas(store, new NoOpMetricsService(), true, 400);
+        assertEquals(100, quotas.getQuota("quota"));
+        assertTrue(store.insert("quota/" + new ContentKey().toUrl(), new byte[60]));
+        quotas.check("quota");
+        assertTrue(store.insert("quota/" + new ContentKey().toUrl(), new byte[60]));
+        try {
+            quotas.check("quota");
+            fail("expected quota to be exceeded");
+        } catch (QuotaExceededException e) {
+            assertTrue(e.getMessage().contains("quota"));
+        }
+        quotas.check("other");
+    }
+
+    @Test
+    public void testNoVolume() {
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        SpokeQuotas quotas = new SpokeQuotas(store, new NoOpMetricsService(), true, 0);
+        assertTrue(store.insert("unlimited/" + new ContentKey().toUrl(), new byte[60]));
+        quotas.check("unlimited");
+    }
+
+    @Test
+    public void testDisabled() {
+        FileSpokeStore store = new FileSpokeStore(Files.createTempDir().getPath(), 60);
+        SpokeQuotas quotas = new SpokeQuotas(store, new NoOpMetricsService(), false, 100);
+        assertTrue(store.insert("disabled/" + new ContentKey().toUrl(), new byte[60]));
+        quotas.check("disabled");
+    }
+}
@@ -0,0 +1,57 @@
+package com.flightstats.hub.spoke;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpokeServerLatenciesTest {
+
+    @Test
+    public void testUnknownServer() {
+        SpokeServerLatencies latencies = new SpokeServerLatencies(100, 10, 0.95, 5, 500);
+        assertEquals(500, latencies.getHedgeMillis("unknown"));
+    }
+
+    @Test
+    public void testMinimumSamples() {
+        SpokeServerLatencies latencies = new SpokeServerLatencies(100, 10, 0.95, 5, 500);
+        for (int i = 0; i < 9; i++) {
+            latencies.record("server", 20);
+        }
+        assertEquals(500, latencies.getHedgeMillis("server"));
+        latencies.record("server", 20);
+        assertEquals(20, latencies.getHedgeMillis("server"));
+    }
+
+    @Test
+    public void testPercentile() {
+        SpokeServerLatencies latencies = new SpokeServerLatencies(100, 10, 0.95, 5, 500);
+        for (int i = 1; i <= 100; i++) {
+            latencies.record("server", i);
+        }
+        assertEquals(95, latencies.getHedgeMillis("server"));
+    }
+
+    @Test
+    public void testBounds() {
+        SpokeServerLatencies latencies = new SpokeServerLatencies(10, 10, 0.95, 5, 500);
+        for (int i = 0; i < 10; i++) {
+            latencies.record("fast", 1);
+            latencies.record("slow", 10000);
+        }
+        assertEquals(5, latencies.getHedgeMillis("fast"));
+        assertEquals(500, latencies.getHedgeMillis("slow"));
+    }
+
+    @Test
+    public void testRecentSamples() {
+        SpokeServerLatencies latencies = new SpokeServerLatencies(10, 10, 0.95, 5, 500);
+        for (int i = 0; i < 10; i++) {
+            latencies.record("server", 400);
+        }
+        for (int i = 0; i < 10; i++) {
+            latencies.record("server", 30);
+        }
+        assertEquals(30, latencies.getHedgeMillis("server"));
+    }
+}
@@ -0,0 +1,146 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SpokeUsageTest {
+
+    private final ContentKey first = new ContentKey(2017, 3, 4, 5, 6, 7, 8, "A");
+    private final ContentKey second = new ContentKey(2017, 3, 4, 5, 6, 9, 8, "B");
+    private final ContentKey nextHour = new ContentKey(2017, 3, 4, 6, 1, 2, 3, "C");
+
+    @Test
+    public void testAddRemove() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", second, 10);
+        usage.add("one", first, 20);
+        usage.add("two", nextHour, 5);
+        assertEquals(3, usage.getItems());
+        assertEquals(35, usage.getBytes());
+        assertEquals(2, usage.getItems("one"));
+        assertEquals(first, usage.getOldest("one").get().getContentKey());
+        assertEquals(first, usage.getOldest().get().getContentKey());
+
+        usage.remove("one", first, 20);
+        usage.remove("one", second, 10);
+        assertEquals(0, usage.getItems("one"));
+        assertFalse(usage.getOldest("one").isPresent());
+        assertEquals(nextHour, usage.getOldest().get().getContentKey());
+    }
+
+    @Test
+    public void testRemovePath() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", first, 10);
+        usage.add("one", nextHour, 10);
+        usage.add("two", first, 10);
+        usage.remove("one/2017/03/04/05");
+        assertEquals(1, usage.getItems("one"));
+        assertEquals(nextHour, usage.getOldest("one").get().getContentKey());
+        usage.remove("/two");
+        assertEquals(0, usage.getItems("two"));
+        assertEquals(1, usage.getItems());
+    }
+
+    @Test
+    public void testRemoveWrittenBefore() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", first, 10);
+        usage.removeWrittenBefore("one", System.currentTimeMillis() - 60_000);
+        assertEquals(1, usage.getItems());
+        usage.removeWrittenBefore("one", System.currentTimeMillis() + 1);
+        assertEquals(0, usage.getItems());
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        File file = new File(Files.createTempDir(), FileSpokeStore.USAGE_FILE);
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", first, 10);
+        usage.add("one", second, 11);
+        usage.add("two", nextHour, 12);
+        usage.save(file);
+
+        SpokeUsage loaded = new SpokeUsage();
+        assertTrue(loaded.load(file));
+        assertEquals(3, loaded.getItems());
+        assertEquals(33, loaded.getBytes());
+        assertEquals(first, loaded.getOldest("one").get().getContentKey());
+        assertEquals(nextHour, loaded.getOldest("two").get().getContentKey());
+        assertFalse(new SpokeUsage().load(new File(file.getParent(), "missing")));
+    }
+
+    @Test
+    public void testMinutes() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", second, 10);
+        usage.add("one", first, 10);
+        usage.add("one", nextHour, 10);
+        List<SpokeUsage.Summary> minutes = Lists.newArrayList(usage.getMinutes("one", 0, Long.MAX_VALUE, false));
+        assertEquals(2, minutes.size());
+        assertEquals(2, minutes.get(0).getItems());
+        assertEquals(first, minutes.get(0).getFirst());
+        assertEquals(second, minutes.get(0).getLast());
+        assertEquals(nextHour, minutes.get(1).getFirst());
+
+        minutes = Lists.newArrayList(usage.getMinutes("one", 0, second.getMillis(), true));
+        assertEquals(1, minutes.size());
+        assertEquals(first, minutes.get(0).getFirst());
+
+        usage.remove("one", nextHour, 10);
+        assertEquals(1, Iterables.size(usage.getMinutes("one", 0, Long.MAX_VALUE, true)));
+        assertEquals(0, Iterables.size(usage.getMinutes("missing", 0, Long.MAX_VALUE, true)));
+    }
+
+    @Test
+    public void testDigests() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", first, 10);
+        usage.add("one", second, 10);
+        usage.add("one", nextHour, 10);
+        SpokeUsage other = new SpokeUsage();
+        other.add("one", nextHour, 10);
+        other.add("one", second, 10);
+        SpokeUsage.Summary summary = usage.summarize(0, Long.MAX_VALUE).get("one");
+        assertEquals(3, summary.getItems());
+        assertFalse(summary.matches(other.summarize(0, Long.MAX_VALUE).get("one")));
+        long hour = TimeUtil.Unit.MINUTES.round(nextHour.getTime()).getMillis();
+        assertTrue(usage.summarize(hour, Long.MAX_VALUE).get("one")
+                .matches(other.summarize(hour, Long.MAX_VALUE).get("one")));
+
+        other.add("one", first, 10);
+        assertTrue(summary.matches(other.summarize(0, Long.MAX_VALUE).get("one")));
+        usage.remove("one", second, 10);
+        assertFalse(summary.matches(usage.summarize(0, Long.MAX_VALUE).get("one")));
+    }
+
+    @Test
+    public void testSummaryLines() {
+        SpokeUsage usage = new SpokeUsage();
+        usage.add("one", first, 10);
+        usage.add("two", nextHour, 10);
+        StringBuilder lines = new StringBuilder();
+        for (SpokeUsage.Summary summary : usage.getMinutes("one", 0, Long.MAX_VALUE, false)) {
+            lines.append(summary.toLine("one"));
+        }
+        for (SpokeUsage.Summary summary : usage.getMinutes("two", 0, Long.MAX_VALUE, false)) {
+            lines.append(summary.toLine("two"));
+        }
+        Map<String, SpokeUsage.Summary> parsed = SpokeUsage.Summary.parse(lines.toString(), 0);
+        assertEquals(2, parsed.size());
+        Map<String, SpokeUsage.Summary> local = usage.summarize(0, Long.MAX_VALUE);
+        assertTrue(parsed.get("one").matches(local.get("one")));
+        assertTrue(parsed.get("two").matches(local.get("two")));
+        assertFalse(parsed.get("one").matches(local.get("two")));
+    }
+}
@@ -0,0 +1,60 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.dao.QueryResult;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.DirectionQuery;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpokeWriteContentDaoPreviousTest {
+
+    @Test
+    public void testStableStartAfterStable() throws Exception {
+        DateTime stable = TimeUtil.now().minusMinutes(1);
+        TreeSet<ContentKey> keys = new TreeSet<>();
+        for (int i = 1; i <= 3; i++) {
+            keys.add(new ContentKey(stable.minusSeconds(i), "before" + i));
+            keys.add(new ContentKey(stable.plusSeconds(i), "after" + i));
+        }
+        RemoteSpokeStore remoteStore = mock(RemoteSpokeStore.class);
+        when(remoteStore.getPrevious(eq("previous"), anyInt(), anyString())).then(invocation -> {
+            int count = (Integer) invocation.getArguments()[1];
+            ContentKey start = ContentKey.fromUrl((String) invocation.getArguments()[2]).get();
+            QueryResult result = new QueryResult(1);
+            TreeSet<ContentKey> previous = new TreeSet<>();
+            for (ContentKey key : keys.headSet(start, false).descendingSet()) {
+                if (previous.size() < count) {
+                    previous.add(key);
+                }
+            }
+            result.addKeys(previous);
+            return result;
+        });
+        DirectionQuery query = DirectionQuery.builder()
+                .channelName("previous")
+                .channelConfig(ChannelConfig.builder().name("previous").build())
+                .startKey(new ContentKey(TimeUtil.now(), "start"))
+                .count(2)
+                .next(false)
+                .stable(true)
+                .channelStable(stable)
+                .build();
+
+        SortedSet<ContentKey> found = new SpokeWriteContentDao(remoteStore).query(query);
+        assertEquals(2, found.size());
+        assertEquals(new ContentKey(stable.minusSeconds(2), "before2"), found.first());
+        assertEquals(new ContentKey(stable.minusSeconds(1), "before1"), found.last());
+    }
+}
@@ -0,0 +1,57 @@
+package com.flightstats.hub.util;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkOutputStreamTest {
+
+    @Test
+    public void testBlockWrites() throws Exception {
+        int size = ChunkStrategy.getSize(1);
+        byte[] data = new byte[size * 2 + 1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ChunkPool pool = new ChunkPool(size * 4L, 0);
+        Map<Integer, byte[]> chunks = new ConcurrentSkipListMap<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ChunkOutputStream output = new ChunkOutputStream(executor, pool, 2, chunk -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                chunks.put(chunk.getCount(), ByteStreams.toByteArray(chunk.getStream()));
+                return "ok";
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        for (int offset = 0; offset < data.length; offset += 4096) {
+            output.write(data, offset, Math.min(4096, data.length - offset));
+        }
+        output.close();
+        executor.shutdown();
+
+        assertEquals(3, chunks.size());
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks.values()) {
+            joined.write(chunk);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        assertTrue(maxInFlight.get() <= 2);
+        assertTrue(pool.getPooledBytes() > 0);
+    }
+}
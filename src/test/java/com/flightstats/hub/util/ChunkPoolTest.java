@@ -0,0 +1,33 @@
+package com.flightstats.hub.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ChunkPoolTest {
+
+    private final int size = ChunkStrategy.getSize(1);
+
+    @Test
+    public void testReuse() {
+        ChunkPool pool = new ChunkPool(size, 0);
+        Chunk first = pool.acquire(1);
+        Chunk second = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+        assertEquals("only maxBytes are held", size, pool.getPooledBytes());
+        assertSame(first.getBuffer(), pool.acquire(1).getBuffer());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testDropIdle() {
+        ChunkPool pool = new ChunkPool(size * 2L, 60 * 1000);
+        pool.release(pool.acquire(1));
+        pool.dropIdle(System.currentTimeMillis());
+        assertEquals(size, pool.getPooledBytes());
+        pool.dropIdle(System.currentTimeMillis() + 60 * 1000);
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
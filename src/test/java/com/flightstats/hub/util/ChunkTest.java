@@ -28,4 +28,16 @@ public class ChunkTest {
         assertFalse(chunk.add(5));
         assertArrayEquals(expected, chunk.getBytes());
     }
+
+    @Test
+    public void testAddBlock() {
+        Chunk chunk = new Chunk(1, 4);
+        byte[] block = {1, 2, 3, 4, 5, 6};
+        assertEquals(3, chunk.add(block, 0, 3));
+        assertEquals(1, chunk.add(block, 3, 3));
+        assertTrue(chunk.isFull());
+        assertEquals(0, chunk.add(block, 4, 2));
+        assertEquals(4, chunk.getLength());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, chunk.getBytes());
+    }
 }
\ No newline at end of file
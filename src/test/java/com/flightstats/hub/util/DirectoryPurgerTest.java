@@ -0,0 +1,67 @@
+package com.flightstats.hub.util;
+
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DirectoryPurgerTest {
+
+    private File root;
+    private DirectoryPurger purger;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+        purger = new DirectoryPurger(new NoOpMetricsService(), new WriteActivity(), 100000, 2);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        File minute = new File(root, "channel/2017/01/02/03/04");
+        write(new File(minute, "00000A"));
+        write(new File(minute, "01000B"));
+        write(new File(root, "channel/2017/01/02/03/05/00000C"));
+        assertEquals(2, purger.delete(minute.getPath()));
+        assertFalse(minute.exists());
+        assertTrue(new File(root, "channel/2017/01/02/03/05/00000C").exists());
+
+        assertEquals(1, purger.delete(new File(root, "channel").getPath()));
+        assertFalse(new File(root, "channel").exists());
+        assertTrue(root.exists());
+    }
+
+    @Test
+    public void testDeleteMissing() {
+        assertEquals(0, purger.delete(new File(root, "missing").getPath()));
+    }
+
+    @Test
+    public void testDeleteByAge() throws Exception {
+        long old = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30);
+        File oldDir = new File(root, "channel/2017/01/02/03/04");
+        File oldFile = new File(oldDir, "00000A");
+        write(oldFile);
+        assertTrue(oldFile.setLastModified(old));
+        assertTrue(oldDir.setLastModified(old));
+        File newFile = new File(root, "channel/2017/01/02/03/05/00000B");
+        write(newFile);
+
+        File channel = new File(root, "channel");
+        assertEquals(1, purger.deleteByAge(channel.getPath(), 10));
+        assertFalse(oldFile.exists());
+        assertFalse(oldDir.exists());
+        assertTrue(newFile.exists());
+        assertTrue(channel.exists());
+    }
+
+    private void write(File file) throws Exception {
+        file.getParentFile().mkdirs();
+        Files.write(new byte[]{1, 2, 3}, file);
+    }
+}
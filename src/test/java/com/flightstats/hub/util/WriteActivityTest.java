@@ -0,0 +1,33 @@
+package com.flightstats.hub.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteActivityTest {
+
+    @Test
+    public void testInFlight() {
+        WriteActivity activity = new WriteActivity(1, 1000);
+        long first = activity.started();
+        assertFalse(activity.isBusy());
+        long second = activity.started();
+        assertTrue(activity.isBusy());
+        activity.completed(second);
+        activity.completed(first);
+        assertFalse(activity.isBusy());
+    }
+
+    @Test
+    public void testLatency() {
+        WriteActivity activity = new WriteActivity(100, 5);
+        for (int i = 0; i < 20; i++) {
+            activity.started();
+            activity.completed(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertTrue(activity.getAverageMillis() > 5);
+        assertTrue(activity.isBusy());
+    }
+}